@@ -31,6 +31,7 @@ import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -39,7 +40,6 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -48,6 +48,10 @@ import android.widget.Toast;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -66,6 +70,7 @@ public class BluetoothChatFragment extends Fragment {
     private ListView mConversationView;
     private EditText mOutEditText;
     private Button mSendButton;
+    private TextView mLatencyOverlay;
 
     /**
      * Name of the connected device
@@ -73,9 +78,19 @@ public class BluetoothChatFragment extends Fragment {
     private String mConnectedDeviceName = null;
 
     /**
-     * Array adapter for the conversation thread
+     * Names of the connected devices, by the id used in {@link Constants#MESSAGE_READ}
      */
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    private final SparseArray<String> mDeviceNames = new SparseArray<String>();
+
+    /**
+     * Rows kept in the conversation view; older rows are dropped
+     */
+    private static final int CONVERSATION_CAPACITY = 500;
+
+    /**
+     * Bounded adapter for the conversation thread
+     */
+    private ConversationAdapter mConversationAdapter;
 
     /**
      * String buffer for outgoing messages
@@ -92,6 +107,47 @@ public class BluetoothChatFragment extends Fragment {
      */
     private BluetoothChatService mChatService = null;
 
+    /**
+     * Directory under the external files dir that recordings go to
+     */
+    private static final String SESSION_DIR = "sessions";
+
+    /**
+     * Refresh interval of the latency overlay
+     */
+    private static final long LATENCY_REFRESH_MS = 500;
+
+    /**
+     * Whether the latency overlay is shown
+     */
+    private boolean mLatencyShown;
+
+    /**
+     * Whether the sequencer was on before quantize turned it on
+     */
+    private boolean mSequencerBeforeQuantize;
+
+    /**
+     * Redraws the latency overlay while it is shown
+     */
+    private final Runnable mRefreshLatency = new Runnable() {
+        @Override
+        public void run() {
+            if (!mLatencyShown || mChatService == null) {
+                return;
+            }
+            StringBuilder text = new StringBuilder();
+            for (LatencyTracker.Stats stats : mChatService.getLatencyStats()) {
+                if (text.length() > 0) {
+                    text.append('\n');
+                }
+                text.append(stats);
+            }
+            mLatencyOverlay.setText(text.length() > 0 ? text : getString(R.string.no_latency));
+            mLatencyOverlay.postDelayed(this, LATENCY_REFRESH_MS);
+        }
+    };
+
     /* variable ensure message only print once */
     private boolean messageSent = true;
 
@@ -153,6 +209,15 @@ public class BluetoothChatFragment extends Fragment {
                 mChatService.start();
             }
         }
+        if (mLatencyShown) {
+            mRefreshLatency.run();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mLatencyOverlay.removeCallbacks(mRefreshLatency);
     }
 
     @Override
@@ -166,6 +231,7 @@ public class BluetoothChatFragment extends Fragment {
         mConversationView = (ListView) view.findViewById(R.id.in);
         mOutEditText = (EditText) view.findViewById(R.id.edit_text_out);
         mSendButton = (Button) view.findViewById(R.id.button_send);
+        mLatencyOverlay = (TextView) view.findViewById(R.id.latency_overlay);
     }
 
     /**
@@ -175,9 +241,10 @@ public class BluetoothChatFragment extends Fragment {
         Log.d(TAG, "setupChat()");
 
         // Initialize the array adapter for the conversation thread
-        mConversationArrayAdapter = new ArrayAdapter<String>(getActivity(), R.layout.message);
+        mConversationAdapter = new ConversationAdapter(getActivity(), R.layout.message,
+                CONVERSATION_CAPACITY);
 
-        mConversationView.setAdapter(mConversationArrayAdapter);
+        mConversationView.setAdapter(mConversationAdapter);
 
         // Initialize the compose field with a listener for the return key
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -196,7 +263,8 @@ public class BluetoothChatFragment extends Fragment {
         });
 
         // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new BluetoothChatService(getActivity(), mHandler);
+        mChatService = new BluetoothChatService(new HandlerEvents(mHandler),
+                SoundBank.source(getActivity()), new RfcommTransport(mBluetoothAdapter));
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -305,7 +373,7 @@ public class BluetoothChatFragment extends Fragment {
                     switch (msg.arg1) {
                         case BluetoothChatService.STATE_CONNECTED:
                             setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
+                            mConversationAdapter.clear();
                             break;
                         case BluetoothChatService.STATE_CONNECTING:
                             setStatus(R.string.title_connecting);
@@ -321,16 +389,19 @@ public class BluetoothChatFragment extends Fragment {
                         byte[] writeBuf = (byte[]) msg.obj;
                         // construct a string from the buffer
                         String writeMessage = new String(writeBuf);
-                        mConversationArrayAdapter.add("ME:  " + writeMessage);
+                        mConversationAdapter.add("ME", writeMessage);
                         messageSent = true;
                     }
                     break;
                 case Constants.MESSAGE_READ:
+                    // One batch of the note codes a device sent during the last frame
                     byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
-                    Log.d(TAG, "message received");
+                    String readName = mDeviceNames.get(msg.arg2);
+                    if (readName == null) {
+                        readName = mConnectedDeviceName;
+                    }
+                    // A row per note, so repeats collapse across batches
+                    mConversationAdapter.addNotes(readName, readBuf, msg.arg1);
                     //playSound((char) readBuf[0]);
 
                     //playTone((char) readBuf[0]);
@@ -340,6 +411,7 @@ public class BluetoothChatFragment extends Fragment {
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
                     mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
+                    mDeviceNames.put(msg.arg1, mConnectedDeviceName);
                     if (null != activity) {
                         Toast.makeText(activity, "Connected to "
                                 + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
@@ -410,10 +482,8 @@ public class BluetoothChatFragment extends Fragment {
         // Get the device MAC address
         String address = data.getExtras()
                 .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-        // Get the BluetoothDevice object
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         // Attempt to connect to the device
-        mChatService.connect(device, secure);
+        mChatService.connect(address, secure);
     }
 
     /* Try to connect the device that are already paired. */
@@ -421,10 +491,13 @@ public class BluetoothChatFragment extends Fragment {
         // Get a set of currently paired devices
         if (mBluetoothAdapter.isEnabled()) {
             Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
-            // try to connect the already paired devices
+            List<String> addresses = new ArrayList<String>(pairedDevices.size());
             for (BluetoothDevice device : pairedDevices) {
-                mChatService.connect(device, false);    //insecure connection
+                addresses.add(device.getAddress());
             }
+            // try to connect the already paired devices, a few at a time
+            mChatService.connectAddresses(addresses, false,     //insecure connection
+                    BluetoothChatService.MAX_PARALLEL_CONNECTS);
         }
 
     }
@@ -434,6 +507,15 @@ public class BluetoothChatFragment extends Fragment {
         inflater.inflate(R.menu.bluetooth_chat, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.latency_overlay).setChecked(mLatencyShown);
+        menu.findItem(R.id.record_session).setChecked(
+                mChatService != null && mChatService.isRecording());
+        menu.findItem(R.id.sequencer).setChecked(SoundBank.isSequencer());
+        menu.findItem(R.id.quantize).setChecked(SoundBank.isMetronome());
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -449,6 +531,59 @@ public class BluetoothChatFragment extends Fragment {
                 startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_INSECURE);
                 return true;
             }
+            case R.id.latency_overlay: {
+                // Show or hide the receive latency of each connection
+                mLatencyShown = !mLatencyShown;
+                item.setChecked(mLatencyShown);
+                mLatencyOverlay.setVisibility(mLatencyShown ? View.VISIBLE : View.GONE);
+                mLatencyOverlay.removeCallbacks(mRefreshLatency);
+                mRefreshLatency.run();
+                return true;
+            }
+            case R.id.record_session: {
+                // Start or finish writing the traffic to the app's external files
+                if (mChatService == null) {
+                    return true;
+                }
+                if (mChatService.isRecording()) {
+                    mChatService.stopRecording();
+                } else {
+                    File dir = getActivity().getExternalFilesDir(SESSION_DIR);
+                    try {
+                        if (dir == null) {
+                            throw new IOException("no external storage");
+                        }
+                        mChatService.startRecording(dir);
+                    } catch (IOException e) {
+                        Log.e(TAG, "cannot record", e);
+                        Toast.makeText(getActivity(), R.string.recording_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+                item.setChecked(mChatService.isRecording());
+                return true;
+            }
+            case R.id.sequencer: {
+                // Time received notes on the audio clock instead of as they are read
+                SoundBank.setSequencer(!SoundBank.isSequencer());
+                item.setChecked(SoundBank.isSequencer());
+                return true;
+            }
+            case R.id.quantize: {
+                // Snap notes to sixteenths and click the beats; needs the sequencer
+                boolean quantize = !SoundBank.isMetronome();
+                SoundBank.setTempo(SoundBank.DEFAULT_TEMPO, 4, quantize ? 4 : 0);
+                SoundBank.setMetronome(quantize);
+                if (quantize) {
+                    mSequencerBeforeQuantize = SoundBank.isSequencer();
+                    SoundBank.setSequencer(true);
+                } else {
+                    // Leave the sequencer as the user had it
+                    SoundBank.setSequencer(mSequencerBeforeQuantize);
+                }
+                item.setChecked(quantize);
+                return true;
+            }
 
         }
         return false;
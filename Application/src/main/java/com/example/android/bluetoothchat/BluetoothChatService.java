@@ -16,35 +16,35 @@
 
 package com.example.android.bluetoothchat;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.media.AudioAttributes;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
-import android.media.MediaPlayer;
-import android.media.SoundPool;
-import android.os.Build;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-
 import com.example.android.common.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It has a task that listens for
+ * incoming connections, a task for connecting with a device, and a
+ * task for performing data transmissions when connected. All tasks share
+ * the small, fixed set of threads of an {@link IoScheduler}, so the thread
+ * count does not grow with the number of peers.
+ *
+ * <p>The service does not depend on the Android framework. Links go
+ * through a {@link Transport}, e.g. {@link RfcommTransport}; events reach
+ * the UI through {@link ChatEvents}, e.g. {@link HandlerEvents}; samples
+ * come from a {@link SoundSource}, e.g. {@link SoundBank#source}. With
+ * {@link TcpTransport} it runs on a plain JVM.</p>
  */
 public class BluetoothChatService {
     // Debugging
@@ -65,254 +65,717 @@ public class BluetoothChatService {
     //        UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-
-    /* multi */
-    private ArrayList<String> mDeviceAddresses;
-    private ArrayList<ConnectedThread> mConnThreads;
-    private ArrayList<BluetoothSocket> mSockets;
-
-    // Constants that indicate the current connection state
+    private final Transport mTransport;
+    private final ChatEvents mEvents;
+    private final SoundSource mSounds;
+    private AcceptTask mSecureAcceptTask;
+    private AcceptTask mInsecureAcceptTask;
+    /* multi: outgoing attempts in flight by device address */
+    private final ConcurrentHashMap<String, ConnectTask> mConnectTasks =
+            new ConcurrentHashMap<String, ConnectTask>();
+    private final CopyOnWriteArrayList<ConnectBatch> mBatches =
+            new CopyOnWriteArrayList<ConnectBatch>();
+    /* multi: state per peer; the service state is derived from it */
+    private final PeerStates mPeerStates = new PeerStates();
+    private volatile boolean mListening;
+    // Last state sent to the UI, guarded by mStateLock
+    private final Object mStateLock = new Object();
+    private int mReportedState = STATE_NONE;
+
+    /* multi: throughput and health counters by device address, kept across reconnects */
+    private final ConcurrentHashMap<String, PeerCounters> mCounters =
+            new ConcurrentHashMap<String, PeerCounters>();
+
+    /* multi: live connections by device address */
+    private final ConnectionRegistry<ConnectedTask> mConnections =
+            new ConnectionRegistry<ConnectedTask>();
+
+    // Constants that indicate the current connection state, summed over all peers
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_CONNECTED = 3;  // now connected to at least one remote device
+
+    // Size of the receive buffer used by each ConnectedTask
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    // Read whole chunks from the socket instead of one byte per read()
+    private volatile boolean mBulkRead = true;
+
+    // Decode the framed protocol (with legacy characters passed through) or legacy only
+    private volatile boolean mFramedProtocol = true;
+
+    // Time each received chunk through decode, playback and the UI
+    private volatile boolean mLatencyTracking = true;
+
+    // Writes the traffic of every connection to disk while set
+    private volatile SessionRecorder mRecorder;
+
+    // Most delay the jitter buffers may add to timestamped notes, in ms; 0 plays at once
+    private volatile int mPlayoutLatency;
+    private volatile PlayoutScheduler mPlayout;
+
+    // Received bytes are delivered to the UI at most once per interval per connection
+    private static final long BATCH_INTERVAL_MS = 16;
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    // Compact ids identifying connections in MESSAGE_READ (arg2)
+    private final AtomicInteger mNextDeviceId = new AtomicInteger();
+
+    // Threads shared by all connections: reads, writes, and accept/connect.
+    // Two I/O threads may block in reads of silent peers, one stays free;
+    // writers get a thread per peer up to the practical RFCOMM limit of 7
+    private static final int IO_THREADS = 3;
+    private static final int WRITE_THREADS = 7;
+    // Default number of simultaneous connects of a batch; the blocking pool
+    // also runs the two accept loops, which never give their threads back
+    public static final int MAX_PARALLEL_CONNECTS = 4;
+    private static final int BLOCKING_THREADS = 2 + MAX_PARALLEL_CONNECTS;
+    private final IoScheduler mScheduler = new IoScheduler(IO_THREADS, WRITE_THREADS,
+            BLOCKING_THREADS);
+
+    // Redials peers whose link dropped
+    private final ReconnectManager mReconnect = new ReconnectManager(mScheduler,
+            new Dialer() {
+                @Override
+                public void dial(String address, boolean secure) {
+                    startConnectTask(address, secure);
+                }
+            });
 
-    private Context mcontext;
+    // Polling interval of an idle connection grows up to the max while no data
+    // arrives. The max bounds the delay a note can see on a polled connection
+    private static final long MIN_POLL_INTERVAL_US = 250;
+    private static final long MAX_POLL_INTERVAL_US = 1000;
+    // Read tasks back off when this many tasks are already waiting for a thread
+    private static final int MAX_QUEUED_TASKS = 16;
+
+    // Outgoing messages waiting per peer, and what happens when a slow peer fills them
+    private static final int OUTBOUND_CAPACITY = 64;
+    private static final int MAX_COALESCE_BYTES = 1024;
+    // Writes per writer run before giving other tasks a turn
+    private static final int WRITE_BURST = 8;
+    // A write blocked for longer than this fails the link; 0 waits forever
+    private static final long DEFAULT_WRITE_TIMEOUT_MS = 2000;
+    private volatile long mWriteTimeoutMs = DEFAULT_WRITE_TIMEOUT_MS;
+    private volatile OutboundQueue.Policy mOutboundPolicy = OutboundQueue.Policy.COALESCE;
+
+    // Instrument kit pinned per device address; others follow the codes they send
+    private final ConcurrentHashMap<String, String> mProfiles =
+            new ConcurrentHashMap<String, String>();
+    // Kit each device played last, preloaded when it connects again
+    private final ConcurrentHashMap<String, String> mLastKits =
+            new ConcurrentHashMap<String, String>();
+
+    // Notes whose kit is still loading are held, up to this many per
+    // connection, and played once it is loaded unless they got too old
+    private static final int MAX_HELD_NOTES = 16;
+    private static final long MAX_HOLD_MS = 300;
+    private static final long HOLD_POLL_US = 2000;
 
     /**
-     * Constructor. Prepares a new BluetoothChat session.
+     * Constructor. Prepares a new BluetoothChat session on the given transport.
      *
-     * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
+     * @param events    Receives state changes, notes and messages for the user
+     * @param sounds    Supplies the samples received notes are played with
+     * @param transport The link layer to listen and connect on
+     */
+    public BluetoothChatService(ChatEvents events, SoundSource sounds, Transport transport) {
+        mTransport = transport;
+        mEvents = events;
+        mSounds = sounds;
+    }
+
+    /**
+     * Tell the UI Activity if the service state changed after a peer moved.
+     * Serialized, so the last message sent always has the latest state.
+     */
+    private void publishState() {
+        synchronized (mStateLock) {
+            int state = getState();
+            if (state == mReportedState) {
+                return;
+            }
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "setState() " + mReportedState + " -> " + state);
+            }
+            mReportedState = state;
+
+            // Give the new state to the UI Activity so it can update
+            mEvents.onStateChanged(state);
+        }
+    }
+
+    /**
+     * Return the current connection state: connected if any peer is,
+     * otherwise connecting if any attempt is in progress, otherwise
+     * listening or idle. Does not lock.
+     */
+    public int getState() {
+        if (mPeerStates.getConnectedCount() > 0) {
+            return STATE_CONNECTED;
+        }
+        if (mPeerStates.getConnectingCount() > 0) {
+            return STATE_CONNECTING;
+        }
+        return mListening ? STATE_LISTEN : STATE_NONE;
+    }
+
+    /**
+     * Return the state of one peer: {@link PeerStates#IDLE},
+     * {@link PeerStates#CONNECTING} or {@link PeerStates#CONNECTED}.
+     */
+    public int getPeerState(String address) {
+        return mPeerStates.get(address);
+    }
+
+    /**
+     * Returns the number of connected peers.
      */
-    public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
-        mDeviceAddresses = new ArrayList<String>();
-        mConnThreads = new ArrayList<ConnectedThread>();
-        mSockets = new ArrayList<BluetoothSocket>();
-        mcontext = context;
+    public int getConnectedCount() {
+        return mPeerStates.getConnectedCount();
     }
 
     /**
-     * Set the current state of the chat connection
+     * Choose how new connections read from their socket. Bulk mode hands every
+     * available byte to the decoder in one pass; the single-byte mode is the
+     * original one read() per byte. Only affects connections made afterwards.
      *
-     * @param state An integer defining the current connection state
+     * @param bulk true to read whole chunks, false to read one byte at a time
+     */
+    public void setBulkReadEnabled(boolean bulk) {
+        mBulkRead = bulk;
+    }
+
+    /**
+     * Returns the addresses of the currently connected devices.
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    public List<String> getConnectedAddresses() {
+        return mConnections.addresses();
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    /**
+     * Returns a snapshot of the I/O threads and their scheduling latency.
+     */
+    public IoScheduler.Stats getIoStats() {
+        return mScheduler.getStats();
     }
 
     /**
-     * Return the current connection state.
+     * Returns the counters of every peer that has been connected.
      */
-    public synchronized int getState() {
-        return mState;
+    public List<PeerCounters.Snapshot> getPeerCounters() {
+        List<PeerCounters.Snapshot> snapshots = new ArrayList<PeerCounters.Snapshot>();
+        for (PeerCounters counters : mCounters.values()) {
+            snapshots.add(counters.snapshot());
+        }
+        return snapshots;
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
+     * Returns the counters of one peer, or null if it was never connected.
+     */
+    public PeerCounters.Snapshot getPeerCounters(String address) {
+        PeerCounters counters = mCounters.get(address);
+        return counters != null ? counters.snapshot() : null;
+    }
+
+    private PeerCounters countersFor(String address) {
+        PeerCounters counters = mCounters.get(address);
+        if (counters == null) {
+            PeerCounters created = new PeerCounters(address);
+            counters = mCounters.putIfAbsent(address, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Record everything received and sent from now on into segment files
+     * in dir (see {@link SessionRecorder}). Replaces a running recording.
+     *
+     * @throws IOException if the first segment cannot be created
+     */
+    public synchronized void startRecording(File dir) throws IOException {
+        stopRecording();
+        SessionRecorder recorder = new SessionRecorder(dir, SessionRecorder.DEFAULT_SEGMENT_SIZE);
+        for (ConnectedTask connection : mConnections.all()) {
+            recorder.deviceConnected(connection.getDeviceId(), connection.getAddress());
+        }
+        mRecorder = recorder;
+        Log.i(TAG, "recording to " + dir);
+    }
+
+    /**
+     * Finish the running recording, if any, writing out what is queued.
+     */
+    public synchronized void stopRecording() {
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            mRecorder = null;
+            recorder.close();
+            if (recorder.getFailure() != null) {
+                Log.e(TAG, "recording failed", recorder.getFailure());
+            }
+            Log.i(TAG, "recording stopped, " + recorder.getStats());
+        }
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /**
+     * Returns the figures of the running recording, or null if not recording.
+     */
+    public SessionRecorder.Stats getRecordingStats() {
+        SessionRecorder recorder = mRecorder;
+        return recorder != null ? recorder.getStats() : null;
+    }
+
+    /**
+     * Even out bursty delivery of framed notes: hold each note back so it
+     * keeps its spacing from the sender's timestamps, adding at most
+     * latencyMs of delay (see {@link JitterBuffer}). 0, the default, plays
+     * every note as soon as it is read. Legacy notes carry no timestamp
+     * and are always played at once.
+     */
+    public synchronized void setPlayoutLatency(int latencyMs) {
+        mPlayoutLatency = Math.max(0, latencyMs);
+        if (mPlayoutLatency > 0) {
+            startPlayout();
+        } else {
+            stopPlayout();
+        }
+        for (ConnectedTask connection : mConnections.all()) {
+            connection.getJitterBuffer().setTargetLatency(mPlayoutLatency);
+        }
+    }
+
+    private synchronized void startPlayout() {
+        if (mPlayout == null) {
+            mPlayout = new PlayoutScheduler(mSounds.getAudioThreadFactory());
+        }
+    }
+
+    /**
+     * End the playout thread; notes still waiting are dropped.
+     */
+    private synchronized void stopPlayout() {
+        if (mPlayout != null) {
+            mPlayout.shutdown();
+            mPlayout = null;
+        }
+    }
+
+    public int getPlayoutLatency() {
+        return mPlayoutLatency;
+    }
+
+    /**
+     * Returns the jitter absorbed and latency added for every live connection.
+     */
+    public List<JitterBuffer.Stats> getPlayoutStats() {
+        List<JitterBuffer.Stats> stats = new ArrayList<JitterBuffer.Stats>();
+        for (ConnectedTask connection : mConnections.all()) {
+            stats.add(connection.getJitterBuffer().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Turn the receive latency measurements on or off (on by default).
+     * They cost a few {@link System#nanoTime()} calls per note.
+     */
+    public void setLatencyTracking(boolean enabled) {
+        mLatencyTracking = enabled;
+    }
+
+    public boolean isLatencyTracking() {
+        return mLatencyTracking;
+    }
+
+    /**
+     * Returns the receive latency of every live connection.
+     */
+    public List<LatencyTracker.Stats> getLatencyStats() {
+        List<LatencyTracker.Stats> stats = new ArrayList<LatencyTracker.Stats>();
+        for (ConnectedTask connection : mConnections.all()) {
+            stats.add(connection.getLatency().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the receive latency of one connection, or null if it is not connected.
+     */
+    public LatencyTracker.Stats getLatencyStats(String address) {
+        ConnectedTask connection = mConnections.get(address);
+        return connection != null ? connection.getLatency().getStats() : null;
+    }
+
+    /**
+     * Clear the latency histograms of every live connection.
+     */
+    public void resetLatencyStats() {
+        for (ConnectedTask connection : mConnections.all()) {
+            connection.getLatency().reset();
+        }
+    }
+
+    /**
+     * Choose the wire protocol of new connections. The framed protocol (see
+     * {@link FrameCodec}) still understands legacy single-character notes
+     * outside frames. Disabling it decodes every byte as a legacy note, for
+     * old firmware that may send bytes with the top bit set.
+     *
+     * @param framed true to decode frames, false for the legacy protocol only
+     */
+    public void setFramedProtocolEnabled(boolean framed) {
+        mFramedProtocol = framed;
+    }
+
+    /**
+     * Choose what happens to outgoing messages for a peer whose queue is
+     * full. Only affects connections made afterwards.
+     */
+    public void setOutboundPolicy(OutboundQueue.Policy policy) {
+        mOutboundPolicy = policy;
+    }
+
+    /**
+     * Give up on a peer whose write has not returned after the given time:
+     * the link is closed, which unblocks the write, and handled like any
+     * other dropped link. Applies to writes started afterwards.
+     *
+     * @param timeoutMs The longest a single write may block, 0 for no limit
+     */
+    public void setWriteTimeout(long timeoutMs) {
+        mWriteTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Bind a device to an instrument kit (a {@link NoteMap} kit such as
+     * "piano", "drum" or "xylophone"). The kit is loaded as soon as the
+     * device connects, and codes from other kits are not played for it.
+     * Without a profile a connection binds to the kit of the codes it sends,
+     * loading it on first use; a device that connects again has the kit it
+     * played last loaded right away. Notes that arrive while their kit is
+     * loading are held briefly and played once it is loaded.
+     *
+     * @param address The device address
+     * @param kit     The kit name, or null to follow the device's codes
+     */
+    public void setInstrumentProfile(String address, String kit) {
+        if (kit == null) {
+            mProfiles.remove(address);
+        } else {
+            mProfiles.put(address, kit);
+        }
+        ConnectedTask connection = mConnections.get(address);
+        if (connection != null) {
+            connection.setKit(kit);
+        }
+    }
+
+    /**
+     * Turn automatic redialing of lost peers on or off (on by default).
+     */
+    public void setAutoReconnect(boolean enabled) {
+        mReconnect.setEnabled(enabled);
+    }
+
+    /**
+     * Remember a device to be redialed whenever its link is lost. Devices
+     * become known on their own once connected; this adds one ahead of time,
+     * and dials it if it is not connected.
+     *
+     * @param address The device address
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public void addKnownPeer(String address, boolean secure) {
+        mReconnect.addPeer(address, secure, mConnections.get(address) != null);
+    }
+
+    /**
+     * Stop redialing a device.
+     */
+    public void forgetPeer(String address) {
+        mReconnect.forgetPeer(address);
+    }
+
+    /**
+     * Returns the redial state and time-to-reconnect figures of every known peer.
+     */
+    public List<ReconnectManager.PeerStats> getReconnectStats() {
+        return mReconnect.getStats();
+    }
+
+    /**
+     * Start the chat service. Specifically start AcceptTask to begin a
      * session in listening (server) mode. Called by the Activity onResume()
      */
     public synchronized void start() {
         Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        // Live connections and outgoing attempts of other devices are kept;
+        // they are in mConnections and mConnectTasks
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        mListening = true;
+        publishState();
+        if (mPlayoutLatency > 0) {
+            startPlayout();
         }
 
-        setState(STATE_LISTEN);
-
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
+        // Start the tasks to listen on a server Channel
+        if (mSecureAcceptTask == null) {
+            mSecureAcceptTask = new AcceptTask(true);
+            mScheduler.executeBlocking(mSecureAcceptTask);
         }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
+        if (mInsecureAcceptTask == null) {
+            mInsecureAcceptTask = new AcceptTask(false);
+            mScheduler.executeBlocking(mInsecureAcceptTask);
         }
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start the ConnectTask to initiate a connection to a remote device.
      *
-     * @param device The BluetoothDevice to connect
-     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     * @param address The address of the device, in the format of the {@link Transport}
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+    public synchronized void connect(String address, boolean secure) {
+        if (Log.isLoggable(Log.DEBUG)) {
+            Log.d(TAG, "connect to: " + address);
+        }
 
-        // Cancel any thread attempting to make a connection
+        // Cancel an earlier attempt to the same device; other devices' attempts continue
+        ConnectTask previous = mConnectTasks.remove(address);
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        // Start the task to connect with the given device
+        startConnectTask(address, secure);
+
+    }
 
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                /*multi*/
-                //mConnectThread.cancel();
-                mConnectThread = null;
+    /**
+     * Connect a set of devices, at most maxConcurrent at a time. Progress,
+     * per-device timing and the time until all were connected can be read
+     * from the returned batch. Devices that are connected already count as
+     * connected and are not dialed. Failures are not reported one by one;
+     * when the batch is done a single toast sums it up.
+     *
+     * @param addresses     The devices to connect, in the format of the {@link Transport}
+     * @param secure        Socket Security type - Secure (true) , Insecure (false)
+     * @param maxConcurrent Upper bound on connects in flight, e.g. {@link #MAX_PARALLEL_CONNECTS}
+     */
+    public ConnectBatch connectAddresses(Collection<String> addresses, boolean secure,
+                                         int maxConcurrent) {
+        ConnectBatch batch = new ConnectBatch(new ArrayList<String>(addresses), secure,
+                maxConcurrent, new Dialer() {
+                    @Override
+                    public void dial(String address, boolean secure) {
+                        startConnectTask(address, secure);
+                    }
+                });
+        for (String address : addresses) {
+            if (mConnections.get(address) != null) {
+                batch.markConnected(address);
             }
         }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            /*multi*/
-            //mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (batch.isDone()) {
+            return batch;
         }
+        mBatches.add(batch);
+        batch.start();
+        return batch;
+    }
 
-        // Start the thread to connect with the given device
+    /**
+     * Dial a device without touching the service state; the outcome reaches
+     * connected() or connectionFailed().
+     */
+    private void startConnectTask(String address, boolean secure) {
+        ConnectTask task = new ConnectTask(address, secure);
+        ConnectTask previous = mConnectTasks.put(address, task);
+        if (previous != null) {
+            // A batch or a redial raced an earlier attempt to the same device
+            previous.cancel();
+        }
+        // A peer that is already connected stays so while it is redialed
+        mPeerStates.transition(address, PeerStates.IDLE, PeerStates.CONNECTING);
+        publishState();
+        mScheduler.executeBlocking(task);
+    }
 
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * Tell the batches in progress how a connect to a device ended, and sum
+     * up the batches that are done.
+     *
+     * @return true if the connect was dialed by a batch
+     */
+    private boolean reportToBatches(String address, boolean connected) {
+        boolean batched = false;
+        for (ConnectBatch batch : mBatches) {
+            batched |= batch.onResult(address, connected);
+            if (batch.isDone() && mBatches.remove(batch)) {
+                batchFinished(batch);
+            }
+        }
+        return batched;
+    }
 
+    /**
+     * Report a finished batch to the Activity, once for all its devices.
+     */
+    private void batchFinished(ConnectBatch batch) {
+        int failed = batch.getFailedCount();
+        mEvents.onToast("Connected " + batch.getConnectedCount() + " of "
+                + (batch.getConnectedCount() + failed) + " devices");
+
+        if (failed > 0) {
+            // Start the service over to restart listening mode
+            BluetoothChatService.this.start();
+        }
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start the ConnectedTask to begin managing a Bluetooth connection
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param socket The Channel on which the connection was made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
+    public synchronized void connected(Transport.Channel socket, final String socketType) {
+        if (Log.isLoggable(Log.DEBUG)) {
+            Log.d(TAG, "connected, Socket Type:" + socketType);
+        }
 
         // Cancel the thread that completed the connection
         /*multi*/
         /*
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
         // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
         }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
         }
         */
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType, device.getName());
-        mConnectedThread.start();
+        // Start the task to manage the connection and perform transmissions
+        ConnectedTask connection = new ConnectedTask(socket, socketType, socket.getRemoteName());
         /*multi*/
-        mConnThreads.add(mConnectedThread);
+        ConnectedTask previous = mConnections.put(connection.getAddress(), connection);
+        if (previous != null) {
+            // The device reconnected before its old link was noticed as dead
+            previous.cancel();
+        }
+        connection.getCounters().onConnected();
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.deviceConnected(connection.getDeviceId(), connection.getAddress());
+        }
+        mPeerStates.moveTo(connection.getAddress(), PeerStates.CONNECTED);
+        publishState();
+        if (socket.isRedialable()) {
+            mReconnect.onConnected(connection.getAddress(), "Secure".equals(socketType));
+        }
+        reportToBatches(connection.getAddress(), true);
 
 
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        // Send the id and name of the connected device back to the UI Activity;
+        // later reads only carry the id
+        mEvents.onDeviceConnected(connection.getDeviceId(), socket.getRemoteName());
 
-        /*multi*/
-        setState(STATE_CONNECTED);
+        // Read last: a link that fails on its first read must find the peer
+        // connected and recorded, or it could not undo either
+        connection.start();
     }
 
     /**
-     * Stop all threads
+     * Stop all tasks
      */
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        mReconnect.cancelAll();
+
+        // Unregister the attempts first so that none of them reports a failure
+        List<ConnectTask> attempts = new ArrayList<ConnectTask>(mConnectTasks.values());
+        mConnectTasks.clear();
+        for (ConnectTask task : attempts) {
+            task.cancel();
+        }
+        // ...so finish the batches here, or they would wait on them forever
+        for (ConnectBatch batch : mBatches) {
+            batch.cancel();
         }
+        mBatches.clear();
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        for (ConnectedTask connection : mConnections.clear()) {
+            connection.cancel();
         }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
         }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
         }
-        setState(STATE_NONE);
+        mListening = false;
+        mPeerStates.reset();
+        publishState();
+        stopRecording();
+        stopPlayout();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue bytes for every connected device and return immediately. Each
+     * peer has its own bounded queue drained by its own writer on the write
+     * pool, so a slow or half-dead peer cannot hold up the caller (the UI
+     * thread) or the writes to the others. A peer whose write blocks for
+     * longer than the write timeout is dropped (see {@link #setWriteTimeout}).
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see ConnectedTask#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        /* Single
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
-        */
-        // When writing, try to write out to all connected threads
-        for (int i = 0; i < mConnThreads.size(); i++) {
-            try {
-                // Create temporary object
-                ConnectedThread r;
-                // Synchronize a copy of the ConnectedThread
-                synchronized (this) {
-                    if (mState != STATE_CONNECTED) return;
-                    r = mConnThreads.get(i);
-                }
-                // Perform the write unsynchronized
-                r.write(out);
-            } catch (Exception e) {
-            }
+        // No global state check: whoever is connected gets it, whatever the others are doing.
+        // The snapshot is iterated without locking; dead links have been removed already
+        for (ConnectedTask r : mConnections.all()) {
+            r.write(out);
         }
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Indicate that the connection attempt failed and notify the UI Activity,
+     * unless it was a redial that will be retried.
+     *
+     * @param address The device that could not be reached
      */
-    private void connectionFailed() {
+    private void connectionFailed(String address) {
+        mPeerStates.transition(address, PeerStates.CONNECTING, PeerStates.IDLE);
+        publishState();
+        boolean batched = reportToBatches(address, false);
+        if (mReconnect.onAttemptFailed(address) || batched) {
+            // A redial follows, or the batch reports once it is done
+            return;
+        }
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mEvents.onToast("Unable to connect device");
 
         // Start the service over to restart listening mode
         BluetoothChatService.this.start();
@@ -320,42 +783,42 @@ public class BluetoothChatService {
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
+     * Known peers are redialed.
+     *
+     * @param address The device whose link dropped
      */
-    private void connectionLost() {
+    private void connectionLost(String address) {
+        mReconnect.onConnectionLost(address);
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mEvents.onToast("Device connection was lost");
 
         // Start the service over to restart listening mode
         BluetoothChatService.this.start();
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * This task runs on the blocking pool while listening for incoming
+     * connections. It behaves like a server-side client. It runs until a
+     * connection is accepted (or until cancelled).
      */
-    private class AcceptThread extends Thread {
+    private class AcceptTask implements Runnable {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final Transport.ServerChannel mmServerSocket;
         private String mSocketType;
+        private volatile boolean mmCancelled;
 
-        public AcceptThread(boolean secure) {
+        public AcceptTask(boolean secure) {
 
-            BluetoothServerSocket tmp = null;
+            Transport.ServerChannel tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
                 if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
+                    tmp = mTransport.listen(NAME_SECURE, MY_UUID_SECURE, true);
                 } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
+                    tmp = mTransport.listen(NAME_INSECURE, MY_UUID_INSECURE, false);
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
@@ -365,61 +828,62 @@ public class BluetoothChatService {
         }
 
         public void run() {
-            Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "Socket Type: " + mSocketType +
+                        "BEGIN mAcceptTask" + this);
+            }
+
+            if (mmServerSocket == null) {
+                Log.e(TAG, "Socket Type: " + mSocketType + " no server socket, not accepting");
+                return;
+            }
 
-            BluetoothSocket socket = null;
+            Transport.Channel socket = null;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Keep accepting: every peer that dials in gets its own connection
+            while (!mmCancelled) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    if (!mmCancelled) {
+                        Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                        forget();
+                    }
                     break;
                 }
 
                 // If a connection was accepted
                 if (socket != null) {
-                    synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                /* multiple */
-                                String address = socket.getRemoteDevice().getAddress();
-                                mSockets.add(socket);
-                                mDeviceAddresses.add(address);
-
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                /* multi
-                                try {
-                                    socket.close();
-
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                */
-                                break;
-                        }
-                    }
+                    connected(socket, mSocketType);
                 }
             }
-            Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
+            Log.i(TAG, "END mAcceptTask, socket Type: " + mSocketType);
+
+        }
 
+        /**
+         * Let the next start() open a new server socket in place of this broken one.
+         */
+        private void forget() {
+            synchronized (BluetoothChatService.this) {
+                if (mSecureAcceptTask == this) {
+                    mSecureAcceptTask = null;
+                } else if (mInsecureAcceptTask == this) {
+                    mInsecureAcceptTask = null;
+                }
+            }
         }
 
         public void cancel() {
-            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            }
+            mmCancelled = true;
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -430,31 +894,24 @@ public class BluetoothChatService {
 
 
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * This task runs on the blocking pool while attempting to make an
+     * outgoing connection with a device. It runs straight through; the
+     * connection either succeeds or fails.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectTask implements Runnable {
+        private final Transport.Channel mmSocket;
+        private final String mmAddress;
         private String mSocketType;
-        SoundPoolManager spm = new SoundPoolManager();
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(String address, boolean secure) {
+            Transport.Channel tmp = null;
+            mmAddress = address;
             mSocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a Channel for a connection with the given device
             try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
+                tmp = mTransport.createChannel(address,
+                        secure ? MY_UUID_SECURE : MY_UUID_INSECURE, secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
@@ -463,13 +920,19 @@ public class BluetoothChatService {
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
+            if (Log.isLoggable(Log.INFO)) {
+                Log.i(TAG, "BEGIN mConnectTask SocketType:" + mSocketType);
+            }
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            if (mmSocket == null) {
+                if (mConnectTasks.remove(mmAddress, this)) {
+                    connectionFailed(mmAddress);
+                }
+                return;
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the Channel; the transport cancels any
+            // discovery first because it will slow down a connection
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
@@ -484,20 +947,27 @@ public class BluetoothChatService {
                             " socket during connection failure", e2);
                 }
                 Log.e(TAG, "mmSocket.connect: " + e.getMessage());
-                connectionFailed();
+                // A replaced attempt was cancelled; the newer one reports the outcome
+                if (mConnectTasks.remove(mmAddress, this)) {
+                    connectionFailed(mmAddress);
+                }
                 return;
             }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+            // Done; a newer attempt to the same device may have replaced this one
+            if (!mConnectTasks.remove(mmAddress, this)) {
+                cancel();
+                return;
             }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            // Start the connected task
+            connected(mmSocket, mSocketType);
         }
 
         public void cancel() {
+            if (mmSocket == null) {
+                return;
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -507,34 +977,71 @@ public class BluetoothChatService {
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * This task is scheduled on the I/O pool during a connection with a
+     * remote device. It handles all incoming and outgoing transmissions.
+     *
+     * <p>Each run is one read step. When data is ready it is read without
+     * blocking and the task goes straight back into the queue. When nothing
+     * is ready the task blocks in read() if the scheduler has a
+     * blocking-read slot free, or else polls again after a short, growing
+     * interval. Only one run of a connection is queued at a time. Outgoing
+     * messages are written by the connection's {@link WriterTask}.</p>
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedTask extends IoScheduler.Task
+            implements EventDecoder.EventSink, PlayoutScheduler.Player,
+            SoundEngine.PlayListener {
+        private final Transport.Channel mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final ChunkReader mmReader;
+        private final EventDecoder mmDecoder;
+        private final EventBatcher mmBatcher;
+        private final OutboundQueue mmOutbound;
+        private final WriterTask mmWriter = new WriterTask();
+        private final WriteWatchdog mmWatchdog = new WriteWatchdog();
+        private final HeldNotesTask mmHeldNotes = new HeldNotesTask();
+        private final int mmDeviceId;
+        private final String mmAddress;
         private String deviceName;
-        SoundPoolManager spm;
-        // audioTrack;
-        //boolean loaded = false;
-        //int soundID;
-        //SoundPool soundPool;
-        //boolean plays = false;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType, String name) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
+        private volatile SoundEngine spm;
+        // Kit bound in the SoundSource for this connection, and whether it is pinned
+        private String mmKit;
+        private boolean mmKitPinned;
+        // Map and kit index of the last note that was allowed to play
+        private volatile NoteMap mmKitMap;
+        private int mmKitIndex;
+        private volatile boolean mmClosed;
+        private long mmPollIntervalUs = MIN_POLL_INTERVAL_US;
+        // System.nanoTime() at which the write in progress started, 0 if none
+        private volatile long mmWriteStartNanos;
+        private final AtomicBoolean mmWatchdogArmed = new AtomicBoolean();
+        private final LatencyTracker mmLatency;
+        private final PeerCounters mmCounters;
+        // Notes decoded from the current chunk, and how many of them were not played
+        private int mmChunkEvents;
+        private int mmChunkDropped;
+        // nanoTime of the chunk being decoded, and of the first chunk of the
+        // pending UI batch; 0 when not tracking
+        private long mmReadNanos;
+        private volatile long mmBatchReadNanos;
+        // Arrival time of the chunk being decoded, which scheduled notes are timed from
+        private long mmArrivalNanos;
+        private final JitterBuffer mmJitter;
+        // Sender timestamp of the note being delivered, if it came in a frame
+        private boolean mmTimedNote;
+        private long mmNoteTimestampUs;
+
+        public ConnectedTask(Transport.Channel socket, String socketType, String name) {
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "create ConnectedTask: " + socketType);
+            }
             mmSocket = socket;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the Channel input and output streams
             try {
                 tmpIn = socket.getInputStream();
-                byte[] tmpbuffer = new byte[1024];
-                //code hangs here if included, until the first character is read.
-                //tmpIn.read(tmpbuffer);
-
                 tmpOut = socket.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
@@ -542,208 +1049,540 @@ public class BluetoothChatService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmReader = new ChunkReader(tmpIn, READ_BUFFER_SIZE, mBulkRead);
+            if (mFramedProtocol) {
+                FrameDecoder decoder = new FrameDecoder(true);
+                decoder.setFrameListener(new FrameDecoder.FrameListener() {
+                    @Override
+                    public void onFrame(int deviceId, int sequence, long timestampUs, int type,
+                                        byte[] payload, int offset, int length) {
+                        // Called right before the note reaches onEvent(); a frame
+                        // that yields no note must not time the next legacy byte
+                        mmTimedNote = type == FrameCodec.TYPE_NOTE && length > 0;
+                        mmNoteTimestampUs = timestampUs;
+                    }
+                });
+                mmDecoder = decoder;
+            } else {
+                mmDecoder = new NoteDecoder();
+            }
+            mmBatcher = new EventBatcher(MAX_BATCH_SIZE);
+            mmOutbound = new OutboundQueue(OUTBOUND_CAPACITY, mOutboundPolicy, MAX_COALESCE_BYTES);
+            mmDeviceId = mNextDeviceId.incrementAndGet();
+            mmAddress = socket.getRemoteAddress();
+            mmLatency = new LatencyTracker(mmAddress);
+            mmJitter = new JitterBuffer(mmAddress, mPlayoutLatency);
+            mmCounters = countersFor(mmAddress);
             deviceName = name;
 
+            // Share the process-wide samples; loading happens off the connect path
+            spm = mSounds.acquire();
+            String profile = mProfiles.get(mmAddress);
+            if (profile != null) {
+                setKit(profile);
+            } else {
+                // Start loading what the device played last time, so its
+                // first notes need not wait for the kit
+                String last = mLastKits.get(mmAddress);
+                if (last != null) {
+                    useKit(last);
+                }
+            }
+        }
+
+        /**
+         * Queue the first read step.
+         */
+        public void start() {
+            if (Log.isLoggable(Log.INFO)) {
+                Log.i(TAG, "BEGIN mConnectedTask, bulk read: " + mmReader.isBulk());
+            }
+            mScheduler.schedule(this, 0, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        protected void runTask() {
+            if (mmClosed) {
+                return;
+            }
+            int bytes;
             try {
-                initSoundPoolManager();
-            } catch (Exception e){e.printStackTrace();}
+                if (mmInStream.available() > 0) {
+                    // Data is waiting; this read will not block
+                    bytes = mmReader.read();
+                } else if (mScheduler.tryAcquireReadSlot()) {
+                    // A thread may park here while the others keep polling
+                    try {
+                        bytes = mmReader.read();
+                    } finally {
+                        mScheduler.releaseReadSlot();
+                    }
+                } else {
+                    // Nothing ready and no thread to spare: poll again later
+                    mScheduler.poll(this, mmPollIntervalUs, TimeUnit.MICROSECONDS);
+                    mmPollIntervalUs = Math.min(mmPollIntervalUs * 2, MAX_POLL_INTERVAL_US);
+                    return;
+                }
+                if (bytes < 0) {
+                    throw new IOException("InputStream closed by remote device");
+                }
+            } catch (IOException e) {
+                linkFailed(e);
+                return;
+            }
 
+            long now = System.nanoTime();
+            mmReadNanos = mLatencyTracking ? now : 0;
+            mmArrivalNanos = now;
+            mmCounters.onRead(bytes);
+            byte[] buffer = mmReader.getBuffer();
+            SessionRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.record(SessionRecorder.TYPE_IN, mmDeviceId, buffer, 0, bytes);
+            }
+            /* Decode the whole chunk; each note is played via onEvent() */
+            mmDecoder.decode(buffer, 0, bytes, this);
+            mmCounters.onDecoded(mmChunkEvents, mmChunkDropped);
+            mmChunkEvents = 0;
+            mmChunkDropped = 0;
+
+            // More may follow right away. Go to the back of the queue so other
+            // peers get their turn, and back off if the pool is saturated.
+            mmPollIntervalUs = MIN_POLL_INTERVAL_US;
+            long delayUs = mScheduler.getQueueDepth() > MAX_QUEUED_TASKS ? MIN_POLL_INTERVAL_US : 0;
+            mScheduler.schedule(this, delayUs, TimeUnit.MICROSECONDS);
+        }
 
+        @Override
+        public void onEvent(int code) {
+            if (mmReadNanos != 0) {
+                mmLatency.record(LatencyTracker.STAGE_DECODE, mmReadNanos);
+            }
+            mmChunkEvents++;
+            // Queue the note code, not the frame bytes, for the UI Activity;
+            // the first code of a batch schedules its delivery one frame later
+            if (mmBatcher.add(code)) {
+                mmBatchReadNanos = mmReadNanos;
+                mEvents.postDelayed(mmFlushBatch, BATCH_INTERVAL_MS);
+            }
+            boolean timed = mmTimedNote;
+            mmTimedNote = false;
+            if (!playSound((char) code, timed)) {
+                mmChunkDropped++;
+            }
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes = 1;
-            byte ch;
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    //bytes = 0;
-                    /*
-                    while ((ch = (byte) mmInStream.read()) != '\n') {
-                        bytes++;
-                        buffer[bytes - 1] = ch;
+        /**
+         * Runs on the UI thread and hands the collected batch to
+         * {@link ChatEvents#onNotes}.
+         */
+        private final Runnable mmFlushBatch = new Runnable() {
+            @Override
+            public void run() {
+                long readNanos = mmBatchReadNanos;
+                byte[] batch = mmBatcher.drain();
+                if (batch != null) {
+                    // Handled right here, so the UI stage is timed
+                    mEvents.onNotes(mmDeviceId, batch);
+                    if (readNanos != 0) {
+                        mmLatency.record(LatencyTracker.STAGE_UI, readNanos);
                     }
-                    */
-                    buffer[0] = (byte) mmInStream.read();
-                    //Log.i(TAG, "receive message: "+buffer);
-                    // Send the name of the connected device back to the UI Activity
-                    Message msg = mHandler.obtainMessage(Constants.MESSAGE_CHANGE_DEVICE_NAME);
-                    Bundle bundle = new Bundle();
-                    bundle.putString(Constants.DEVICE_NAME, deviceName);
-                    msg.setData(bundle);
-                    mHandler.sendMessage(msg);
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, 1, -1, buffer)
-                            .sendToTarget();
+                }
+            }
+        };
 
+        public int getDeviceId() {
+            return mmDeviceId;
+        }
 
-                    //AudioPlayManager APM = new AudioPlayManager((char) buffer[0]);
-                    //APM.play();
+        public String getAddress() {
+            return mmAddress;
+        }
 
-                    /* SoundPool using a method defined below within the same class */
-                    //playNote((char) buffer[0]);
+        public PeerCounters getCounters() {
+            return mmCounters;
+        }
 
-                    /* Use SoundPoolManager class*/
-                    playSound((char) buffer[0]);
+        public JitterBuffer getJitterBuffer() {
+            return mmJitter;
+        }
 
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothChatService.this.start();
-                    break;
-                }
+        public LatencyTracker getLatency() {
+            return mmLatency;
+        }
+
+        /**
+         * Pin this connection to a kit, or with null let it follow its codes.
+         */
+        public synchronized void setKit(String kit) {
+            if (spm == null) {
+                return;
+            }
+            if (mmKit != null) {
+                mSounds.unbindKit(mmKit);
             }
+            mmKit = kit;
+            mmKitPinned = kit != null;
+            if (kit != null) {
+                mSounds.bindKit(kit);
+            }
+            mmKitMap = null;
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue bytes for the connected OutStream. Never blocks; a writer
+         * task does the actual write.
          *
          * @param buffer The bytes to write
          */
         public void write(byte[] buffer) {
+            if (mmClosed) {
+                return;
+            }
+            if (mmOutbound.offer(buffer)) {
+                mScheduler.executeWrite(mmWriter);
+            }
+        }
+
+        public OutboundQueue getOutboundQueue() {
+            return mmOutbound;
+        }
+
+        /**
+         * Drains the outbound queue on the write pool, a few messages per run.
+         * A write to a slow peer blocks only this connection's writer.
+         */
+        private class WriterTask extends IoScheduler.Task {
+            @Override
+            protected void runTask() {
+                if (mmClosed) {
+                    mmOutbound.clear();
+                    return;
+                }
+                try {
+                    for (int i = 0; i < WRITE_BURST; i++) {
+                        byte[] buffer = mmOutbound.poll();
+                        if (buffer == null) {
+                            // Drained; the next write() schedules us again
+                            return;
+                        }
+                        startWatchdog();
+                        try {
+                            mmOutStream.write(buffer);
+                        } finally {
+                            mmWriteStartNanos = 0;
+                        }
+                        mmOutbound.onWritten();
+                        mmCounters.onWritten(buffer.length);
+                        SessionRecorder recorder = mRecorder;
+                        if (recorder != null) {
+                            recorder.record(SessionRecorder.TYPE_OUT, mmDeviceId,
+                                    buffer, 0, buffer.length);
+                        }
+                        // Share the sent message back to the UI Activity
+                        mEvents.onWritten(buffer);
+                    }
+                } catch (IOException e) {
+                    mmOutbound.clear();
+                    if (mmClosed) {
+                        // The watchdog or a cancel() closed the link under us
+                        return;
+                    }
+                    Log.e(TAG, "Exception during write", e);
+                    mmCounters.onWriteError();
+                    linkFailed(e);
+                    return;
+                }
+                // More queued; let the other writers run first
+                mScheduler.executeWrite(this);
+            }
+        }
+
+        /**
+         * Time the write about to start and make sure the watchdog is
+         * looking at it.
+         */
+        private void startWatchdog() {
+            long timeoutMs = mWriteTimeoutMs;
+            if (timeoutMs <= 0) {
+                return;
+            }
+            mmWriteStartNanos = System.nanoTime();
+            if (mmWatchdogArmed.compareAndSet(false, true)) {
+                mScheduler.schedule(mmWatchdog, timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Runs on the I/O pool while writes are going on and fails the link
+         * once one of them has blocked for longer than the write timeout.
+         * Closing the channel unblocks the writer.
+         */
+        private class WriteWatchdog extends IoScheduler.Task {
+            @Override
+            protected void runTask() {
+                long timeoutMs = mWriteTimeoutMs;
+                if (mmClosed || timeoutMs <= 0) {
+                    mmWatchdogArmed.set(false);
+                    return;
+                }
+                long start = mmWriteStartNanos;
+                if (start != 0) {
+                    long leftNanos = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+                            - System.nanoTime();
+                    if (leftNanos <= 0) {
+                        mmCounters.onWriteError();
+                        linkFailed(new IOException("write blocked for over "
+                                + timeoutMs + " ms"));
+                        return;
+                    }
+                    // Still armed; look again when this write is due
+                    mScheduler.schedule(this, leftNanos, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                mmWatchdogArmed.set(false);
+                // A write that started after the check above could not arm us
+                if (mmWriteStartNanos != 0 && mmWatchdogArmed.compareAndSet(false, true)) {
+                    mScheduler.schedule(this, timeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        /**
+         * Tear down after a read or write failed: unregister, close and tell
+         * the UI. Only the first failure counts; a cancel() wins over both.
+         */
+        private void linkFailed(IOException e) {
+            synchronized (this) {
+                if (mmClosed) {
+                    return;
+                }
+                mmClosed = true;
+            }
+            Log.e(TAG, "disconnected", e);
+            mEvents.removeCallbacks(mmFlushBatch);
+            recordClosed();
+            if (mConnections.remove(mmAddress, this)) {
+                // Still the peer's current link, not one already replaced by a reconnect
+                mPeerStates.transition(mmAddress, PeerStates.CONNECTED, PeerStates.IDLE);
+                publishState();
+            }
             try {
-                mmOutStream.write(buffer);
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                mmSocket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "close() of connect socket failed", e2);
             }
+            releaseSoundBank();
+            connectionLost(mmAddress);
+            // Start the service over to restart listening mode
+            BluetoothChatService.this.start();
         }
 
         public void cancel() {
+            boolean wasClosed;
+            synchronized (this) {
+                wasClosed = mmClosed;
+                mmClosed = true;
+            }
+            if (!wasClosed) {
+                recordClosed();
+            }
+            mEvents.removeCallbacks(mmFlushBatch);
+            mConnections.remove(mmAddress, this);
             try {
+                // Also unblocks a read in progress
                 mmSocket.close();
-                spm.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
+            releaseSoundBank();
+        }
+
+
+        private void recordClosed() {
+            SessionRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.deviceClosed(mmDeviceId);
+            }
         }
 
 
         /* SoundPoolManager functions */
 
-        private void initSoundPoolManager() {
-            spm = new SoundPoolManager();
-            spm.initSounds(mcontext);
-            /* piano */
-            /*
-            spm.addSound(0, R.raw.piano_c);
-            spm.addSound(1, R.raw.piano_d);
-            spm.addSound(2, R.raw.piano__e);
-            spm.addSound(3, R.raw.piano__f);
-            spm.addSound(4, R.raw.piano__g);
-            spm.addSound(5, R.raw.piano__a);
-            spm.addSound(6, R.raw.piano__b);
-            spm.addSound(7, R.raw.piano_c5);
-            */
-            spm.addSound(0, R.raw.piano_c4);
-            spm.addSound(1, R.raw.piano_d4);
-            spm.addSound(2, R.raw.piano_e4);
-            spm.addSound(3, R.raw.piano_f4);
-            spm.addSound(4, R.raw.piano_g4);
-            spm.addSound(5, R.raw.piano_a4);
-            spm.addSound(6, R.raw.piano_b4);
-            spm.addSound(7, R.raw.piano_c5);
-
-            /* drums */
-            spm.addSound(8, R.raw.drum_bada);
-            spm.addSound(9, R.raw.drum_kick);
-            spm.addSound(10, R.raw.drum_snare);
-            spm.addSound(11, R.raw.drum_steel6);
-            /*xylophone */
-            spm.addSound(12, R.raw.xylophone_c);
-            spm.addSound(13, R.raw.xylophone_d);
-            spm.addSound(14, R.raw.xylophone_e);
-            spm.addSound(15, R.raw.xylophone_f);
-            spm.addSound(16, R.raw.xylophone_g);
-            spm.addSound(17, R.raw.xylophone_a);
-            spm.addSound(18, R.raw.xylophone_b);
-            spm.addSound(19, R.raw.xylophone_c2);
-        }
-
-        private void playSound(char c) {
-            //spm = new SoundPoolManager();
-            if (spm != null){
-                switch (c) {
-                    case 'c':
-                        spm.playSound(0);
-                        break;
-                    case 'd':
-                        spm.playSound(1);
-                        break;
-                    case 'e':
-                        spm.playSound(2);
-                        break;
-                    case 'f':
-                        spm.playSound(3);
-                        break;
-                    case 'g':
-                        spm.playSound(4);
-                        break;
-                    case 'a':
-                        spm.playSound(5);
-                        break;
-                    case 'b':
-                        spm.playSound(6);
-                        break;
-                    case 'C':
-                        spm.playSound(7);
-                        break;
-                    /* drums */
-                    case 'w':
-                        spm.playSound(8);
-                        break;
-                    case 'x':
-                        spm.playSound(9);
-                        break;
-                    case 'y':
-                        spm.playSound(10);
-                        break;
-                    case 'z':
-                        spm.playSound(11);
-                        break;
-                    /*xylophone*/
-                    case '1':
-                        spm.playSound(12);
-                        break;
-                    case '2':
-                        spm.playSound(13);
-                        break;
-                    case '3':
-                        spm.playSound(14);
-                        break;
-                    case '4':
-                        spm.playSound(15);
-                        break;
-                    case '5':
-                        spm.playSound(16);
-                        break;
-                    case '6':
-                        spm.playSound(17);
-                        break;
-                    case '7':
-                        spm.playSound(18);
-                        break;
-                    case '8':
-                        spm.playSound(19);
-                        break;
-                    /*
-                    default:    //rebroadcast
-                        Message msg = mHandler.obtainMessage(Constants.MESSAGE_BROADCASTMSG);
-                        Bundle bundle = new Bundle();
-                        String tem = "";
-                        tem=tem+c;
-
-                        bundle.putString(Constants.BRDCAST_MSG, tem);
-                        msg.setData(bundle);
-                        mHandler.sendMessage(msg);
-                        break;
-                    */
+        private synchronized void releaseSoundBank() {
+            if (spm != null) {
+                spm = null;
+                if (mmKit != null) {
+                    mSounds.unbindKit(mmKit);
+                    mmKit = null;
+                }
+                mSounds.release();
+            }
+        }
+
+        /**
+         * Play the sample of a received note, through the jitter buffer if
+         * it is on and the note has a sender timestamp.
+         *
+         * @param timed The note came in a frame with {@link #mmNoteTimestampUs}
+         * @return false if the note was not played
+         */
+        private boolean playSound(char c, boolean timed) {
+            // Read once; cancel() may drop the reference from another thread
+            SoundEngine spm = this.spm;
+            NoteMap map = NoteMap.getCurrent();
+            int index = map.indexOf(c);
+            if (spm == null || index == NoteMap.NO_SOUND) {
+                return false;
+            }
+            // Only a note from a different kit than the last one needs the lock
+            if (map != mmKitMap || map.kitOf(index) != mmKitIndex) {
+                if (!useKit(map, index)) {
+                    return false;
+                }
+            }
+            long readNanos = mmReadNanos;
+            if (!spm.isLoaded(index)) {
+                // Its kit is still loading; play it once it is there
+                return mmHeldNotes.hold(index, readNanos);
+            }
+            if (readNanos != 0) {
+                mmLatency.record(LatencyTracker.STAGE_DISPATCH, readNanos);
+            }
+            // An engine in sequencer mode times the note on its own clock,
+            // from when the chunk was read rather than when we got here, and
+            // reports back when it starts
+            PlayoutScheduler playout = mPlayout;
+            if (timed && playout != null && mPlayoutLatency > 0) {
+                long due = mmJitter.playoutTime(mmNoteTimestampUs, mmArrivalNanos);
+                if (!spm.playSoundAt(index, due, this, readNanos)) {
+                    playout.schedule(due, this, index, readNanos);
+                }
+            } else if (!spm.playSoundAt(index, mmArrivalNanos, this, readNanos)) {
+                play(index, readNanos);
+            }
+            return true;
+        }
+
+        /**
+         * A note queued with the engine was placed; runs on the mixer thread.
+         */
+        @Override
+        public void onNoteStarted(long readNanos, long startNanos) {
+            if (readNanos != 0) {
+                mmLatency.recordAt(LatencyTracker.STAGE_PLAY, readNanos, startNanos);
+            }
+        }
+
+        /**
+         * A note queued with the engine was not played.
+         */
+        @Override
+        public void onNoteDropped(long readNanos) {
+            mmCounters.onDecoded(0, 1);
+        }
+
+        /**
+         * Play a note now; runs on the read task or the playout thread.
+         */
+        @Override
+        public void play(int index, long readNanos) {
+            SoundEngine spm = this.spm;
+            if (spm == null) {
+                // Closed while the note was waiting
+                return;
+            }
+            spm.playSound(index);
+            if (readNanos != 0) {
+                mmLatency.record(LatencyTracker.STAGE_PLAY, readNanos);
+            }
+        }
+
+        /**
+         * Bind the kit of a note unless the connection is pinned to another.
+         * Returns false if the note must not be played.
+         */
+        private synchronized boolean useKit(NoteMap map, int index) {
+            if (!useKit(map.getKit(map.kitOf(index)))) {
+                return false;
+            }
+            mmKitIndex = map.kitOf(index);
+            mmKitMap = map;
+            return true;
+        }
+
+        private synchronized boolean useKit(String kit) {
+            if (spm == null) {
+                return false;
+            }
+            if (!kit.equals(mmKit)) {
+                if (mmKitPinned) {
+                    return false;
+                }
+                if (mmKit != null) {
+                    mSounds.unbindKit(mmKit);
+                }
+                if (Log.isLoggable(Log.DEBUG)) {
+                    Log.d(TAG, mmAddress + " now playing kit " + kit);
+                }
+                mSounds.bindKit(kit);
+                mmKit = kit;
+                mLastKits.put(mmAddress, kit);
+            }
+            return true;
+        }
+
+        /**
+         * Holds notes whose sample is still loading and plays them, in
+         * order, as soon as it is loaded. Polls on the I/O pool while any
+         * note is held; notes held longer than {@link #MAX_HOLD_MS} are
+         * dropped, as they would be too late to be of use.
+         */
+        private class HeldNotesTask extends IoScheduler.Task {
+            private final int[] mmIndex = new int[MAX_HELD_NOTES];
+            private final long[] mmReads = new long[MAX_HELD_NOTES];
+            private final long[] mmHeldAt = new long[MAX_HELD_NOTES];
+            private int mmHead;
+            private int mmCount;
+
+            /**
+             * Returns false if the note cannot be held and is dropped.
+             */
+            synchronized boolean hold(int index, long readNanos) {
+                if (mmCount == MAX_HELD_NOTES) {
+                    return false;
+                }
+                int slot = (mmHead + mmCount) % MAX_HELD_NOTES;
+                mmIndex[slot] = index;
+                mmReads[slot] = readNanos;
+                mmHeldAt[slot] = System.nanoTime();
+                if (mmCount++ == 0) {
+                    mScheduler.schedule(this, HOLD_POLL_US, TimeUnit.MICROSECONDS);
+                }
+                return true;
+            }
+
+            @Override
+            protected void runTask() {
+                SoundEngine spm = ConnectedTask.this.spm;
+                long oldest = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MAX_HOLD_MS);
+                synchronized (this) {
+                    while (mmCount > 0) {
+                        int slot = mmHead;
+                        if (spm != null && spm.isLoaded(mmIndex[slot])) {
+                            play(mmIndex[slot], mmReads[slot]);
+                        } else if (spm != null && mmHeldAt[slot] - oldest > 0) {
+                            // Still loading; later notes wait their turn
+                            break;
+                        } else {
+                            mmCounters.onDecoded(0, 1);
+                        }
+                        mmHead = (slot + 1) % MAX_HELD_NOTES;
+                        mmCount--;
+                    }
+                    if (mmCount > 0) {
+                        mScheduler.schedule(this, HOLD_POLL_US, TimeUnit.MICROSECONDS);
+                    }
                 }
             }
         }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Where {@link BluetoothChatService} reports to its user, usually the UI.
+ *
+ * <p>The service calls these from its own threads, except
+ * {@link #onNotes}, which it calls from a task it posted with
+ * {@link #postDelayed}. On Android {@link HandlerEvents} turns every call
+ * into a message for the UI Activity's Handler; a JVM harness can
+ * implement it directly.</p>
+ */
+public interface ChatEvents {
+
+    /**
+     * The service state changed, see {@link BluetoothChatService#getState()}.
+     */
+    void onStateChanged(int state);
+
+    /**
+     * A device connected; later notes from it only carry its id.
+     */
+    void onDeviceConnected(int deviceId, String name);
+
+    /**
+     * The note codes a device sent during the last batch interval.
+     *
+     * @param codes Owned by the receiver
+     */
+    void onNotes(int deviceId, byte[] codes);
+
+    /**
+     * Bytes were written to a device.
+     */
+    void onWritten(byte[] buffer);
+
+    /**
+     * Something the user should be told, e.g. that a connect failed.
+     */
+    void onToast(String text);
+
+    /**
+     * Run a task on the receiving thread after the given delay.
+     */
+    void postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Drop a task posted with {@link #postDelayed} that has not run yet.
+     */
+    void removeCallbacks(Runnable task);
+}
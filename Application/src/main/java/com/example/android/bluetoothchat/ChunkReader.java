@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads from a connection's InputStream into a reusable buffer.
+ *
+ * <p>In bulk mode every call returns whatever the stream has ready (at least
+ * one byte, at most the buffer size), so a burst of events costs a single
+ * blocking read. Single-byte mode keeps the original one-read-per-byte
+ * behaviour for comparison.</p>
+ */
+public class ChunkReader {
+
+    private final InputStream mInStream;
+    private final byte[] mBuffer;
+    private final boolean mBulk;
+
+    /**
+     * @param in         The stream to read from
+     * @param bufferSize Size of the reusable receive buffer
+     * @param bulk       Read whole chunks (true) or one byte per call (false)
+     */
+    public ChunkReader(InputStream in, int bufferSize, boolean bulk) {
+        mInStream = in;
+        mBuffer = new byte[bufferSize];
+        mBulk = bulk;
+    }
+
+    /**
+     * Block until at least one byte is available and read it into the buffer.
+     *
+     * @return The number of bytes now at the start of {@link #getBuffer()},
+     * or -1 once the stream has been closed by the remote side
+     */
+    public int read() throws IOException {
+        if (!mBulk) {
+            int b = mInStream.read();
+            if (b < 0) {
+                return -1;
+            }
+            mBuffer[0] = (byte) b;
+            return 1;
+        }
+        int available = mInStream.available();
+        int len = available > 0 ? Math.min(available, mBuffer.length) : mBuffer.length;
+        return mInStream.read(mBuffer, 0, len);
+    }
+
+    /**
+     * Returns the buffer filled by the last {@link #read()}. The contents are
+     * overwritten on the next call.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public boolean isBulk() {
+        return mBulk;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a set of devices with a bounded number of attempts in flight.
+ *
+ * <p>Each device gets one attempt. Whenever an attempt finishes, the next
+ * queued device is dialed, so at most the given number of connects run at
+ * once. Every attempt's state and timing is tracked, as is the time until
+ * the whole batch was connected.</p>
+ */
+public class ConnectBatch {
+    private static final String TAG = "ConnectBatch";
+
+    /** Waiting for a free connect slot. */
+    public static final int ATTEMPT_QUEUED = 0;
+    /** Dialing. */
+    public static final int ATTEMPT_CONNECTING = 1;
+    /** Connected, by this attempt or by the device connecting to us. */
+    public static final int ATTEMPT_CONNECTED = 2;
+    /** The connect failed. */
+    public static final int ATTEMPT_FAILED = 3;
+    /** The batch was cancelled before the attempt finished. */
+    public static final int ATTEMPT_CANCELLED = 4;
+
+    private static final class Attempt {
+        final String address;
+        int state = ATTEMPT_QUEUED;
+        long startedAt;
+        long finishedAt;
+
+        Attempt(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Dialer mDialer;
+    private final boolean mSecure;
+    private final int mMaxConcurrent;
+    private final List<Attempt> mAttempts = new ArrayList<Attempt>();
+    private final long mStartedAt;
+    private long mFinishedAt;
+    private int mNextQueued;
+    private int mInFlight;
+    private int mFinished;
+    private int mConnected;
+
+    /**
+     * @param addresses     The devices to connect, each once
+     * @param secure        Socket Security type - Secure (true) , Insecure (false)
+     * @param maxConcurrent Upper bound on attempts in flight
+     * @param dialer        Starts the attempts; outcomes come back through
+     *                      {@link #onResult(String, boolean)}
+     */
+    ConnectBatch(List<String> addresses, boolean secure, int maxConcurrent, Dialer dialer) {
+        mDialer = dialer;
+        mSecure = secure;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        for (String address : addresses) {
+            if (indexOf(address) < 0) {
+                mAttempts.add(new Attempt(address));
+            }
+        }
+        mStartedAt = nowMillis();
+        if (mAttempts.isEmpty()) {
+            mFinishedAt = mStartedAt;
+        }
+    }
+
+    /**
+     * Dial the first devices.
+     */
+    void start() {
+        dial(takeQueued());
+    }
+
+    /**
+     * Mark a device that is connected already, so that it is not dialed.
+     * Call before {@link #start()}.
+     */
+    synchronized void markConnected(String address) {
+        int index = indexOf(address);
+        if (index < 0 || mAttempts.get(index).state != ATTEMPT_QUEUED) {
+            return;
+        }
+        Attempt attempt = mAttempts.get(index);
+        attempt.state = ATTEMPT_CONNECTED;
+        attempt.startedAt = mStartedAt;
+        attempt.finishedAt = mStartedAt;
+        mFinished++;
+        mConnected++;
+        if (mFinished == mAttempts.size()) {
+            finish(mStartedAt);
+        }
+    }
+
+    /**
+     * Record the outcome of a connect to a device; addresses that are not
+     * part of the batch are ignored.
+     *
+     * @return true if the outcome was that of an attempt this batch dialed
+     */
+    boolean onResult(String address, boolean connected) {
+        List<Attempt> next;
+        boolean dialed;
+        synchronized (this) {
+            int index = indexOf(address);
+            if (index < 0) {
+                return false;
+            }
+            Attempt attempt = mAttempts.get(index);
+            if (attempt.state != ATTEMPT_QUEUED && attempt.state != ATTEMPT_CONNECTING) {
+                return false;
+            }
+            dialed = attempt.state == ATTEMPT_CONNECTING;
+            if (attempt.state == ATTEMPT_QUEUED) {
+                if (!connected) {
+                    // Not ours; it will still get its own attempt
+                    return false;
+                }
+                // The device connected to us first; no need to dial it
+                attempt.startedAt = nowMillis();
+            } else {
+                mInFlight--;
+            }
+            attempt.state = connected ? ATTEMPT_CONNECTED : ATTEMPT_FAILED;
+            attempt.finishedAt = nowMillis();
+            mFinished++;
+            if (connected) {
+                mConnected++;
+            }
+            if (mFinished == mAttempts.size()) {
+                finish(attempt.finishedAt);
+            }
+            next = takeQueued();
+        }
+        dial(next);
+        return dialed;
+    }
+
+    /**
+     * End the batch: attempts still queued or in flight are marked
+     * cancelled and no more devices are dialed. Their outcomes, if they
+     * still come, are ignored.
+     */
+    synchronized void cancel() {
+        if (isDone()) {
+            return;
+        }
+        long now = nowMillis();
+        for (Attempt attempt : mAttempts) {
+            if (attempt.state == ATTEMPT_QUEUED || attempt.state == ATTEMPT_CONNECTING) {
+                if (attempt.state == ATTEMPT_QUEUED) {
+                    attempt.startedAt = now;
+                }
+                attempt.state = ATTEMPT_CANCELLED;
+                attempt.finishedAt = now;
+                mFinished++;
+            }
+        }
+        mInFlight = 0;
+        mNextQueued = mAttempts.size();
+        finish(now);
+    }
+
+    /**
+     * Called with the lock held once every attempt has finished.
+     */
+    private void finish(long now) {
+        mFinishedAt = now;
+        if (Log.isLoggable(Log.INFO)) {
+            Log.i(TAG, mConnected + "/" + mAttempts.size() + " connected in "
+                    + (mFinishedAt - mStartedAt) + " ms");
+        }
+        notifyAll();
+    }
+
+    /**
+     * Mark queued attempts as connecting, up to the concurrency limit. The
+     * caller dials them after letting go of the lock.
+     */
+    private List<Attempt> takeQueued() {
+        List<Attempt> next = new ArrayList<Attempt>();
+        synchronized (this) {
+            while (mInFlight < mMaxConcurrent && mNextQueued < mAttempts.size()) {
+                Attempt attempt = mAttempts.get(mNextQueued++);
+                if (attempt.state != ATTEMPT_QUEUED) {
+                    continue;
+                }
+                attempt.state = ATTEMPT_CONNECTING;
+                attempt.startedAt = nowMillis();
+                mInFlight++;
+                next.add(attempt);
+            }
+        }
+        return next;
+    }
+
+    private void dial(List<Attempt> attempts) {
+        for (Attempt attempt : attempts) {
+            mDialer.dial(attempt.address, mSecure);
+        }
+    }
+
+    private int indexOf(String address) {
+        for (int i = 0; i < mAttempts.size(); i++) {
+            if (mAttempts.get(i).address.equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether every attempt has finished.
+     */
+    public synchronized boolean isDone() {
+        return mFinished == mAttempts.size();
+    }
+
+    /**
+     * Wait until every attempt has finished.
+     *
+     * @return true if done, false on timeout
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isDone()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    public synchronized int getConnectedCount() {
+        return mConnected;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFinished - mConnected;
+    }
+
+    /**
+     * Returns the time from starting the batch until every device was
+     * connected, or -1 while any is outstanding or if any failed.
+     */
+    public synchronized long getTimeToAllConnectedMillis() {
+        return isDone() && mConnected == mAttempts.size() ? mFinishedAt - mStartedAt : -1;
+    }
+
+    /**
+     * Returns the time since the batch started, or its total run time once done.
+     */
+    public synchronized long getElapsedMillis() {
+        return (isDone() ? mFinishedAt : nowMillis()) - mStartedAt;
+    }
+
+    /**
+     * Returns a snapshot of every attempt, in the order they were given.
+     */
+    public synchronized List<AttemptStats> getAttempts() {
+        long now = nowMillis();
+        List<AttemptStats> stats = new ArrayList<AttemptStats>(mAttempts.size());
+        for (Attempt attempt : mAttempts) {
+            AttemptStats s = new AttemptStats();
+            s.address = attempt.address;
+            s.state = attempt.state;
+            s.queuedMillis = (attempt.state == ATTEMPT_QUEUED ? now : attempt.startedAt)
+                    - mStartedAt;
+            s.connectMillis = attempt.state == ATTEMPT_QUEUED ? 0
+                    : (attempt.state == ATTEMPT_CONNECTING ? now : attempt.finishedAt)
+                    - attempt.startedAt;
+            stats.add(s);
+        }
+        return stats;
+    }
+
+    /**
+     * Monotonic milliseconds; only differences are meaningful.
+     */
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Point-in-time view of one attempt.
+     */
+    public static class AttemptStats {
+        public String address;
+        /** One of the ATTEMPT_ constants. */
+        public int state;
+        /** Time spent waiting for a connect slot. */
+        public long queuedMillis;
+        /** Time from dialing to the outcome, or so far. */
+        public long connectMillis;
+
+        @Override
+        public String toString() {
+            return address + " state " + state + ", queued " + queuedMillis
+                    + " ms, connect " + connectMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The live connections of {@link BluetoothChatService}, keyed by remote
+ * device address.
+ *
+ * <p>Lookups go straight to a ConcurrentHashMap. Broadcast iteration uses
+ * an immutable snapshot list that is rebuilt on every add or remove
+ * (copy-on-write). Changes update the map and the snapshot together under
+ * the registry's monitor, so the two never disagree. Connections change
+ * rarely and broadcasts happen often, so readers never take a lock and
+ * never see a half-updated list.</p>
+ *
+ * @param <C> The connection type
+ */
+public class ConnectionRegistry<C> {
+
+    private final ConcurrentHashMap<String, C> mByAddress = new ConcurrentHashMap<String, C>();
+    private volatile List<C> mSnapshot = Collections.emptyList();
+
+    /**
+     * Register a connection, replacing any previous one to the same device.
+     *
+     * @return The replaced connection, or null
+     */
+    public synchronized C put(String address, C connection) {
+        C previous = mByAddress.put(address, connection);
+        rebuildSnapshot();
+        return previous;
+    }
+
+    /**
+     * Returns the connection to a device, or null.
+     */
+    public C get(String address) {
+        return mByAddress.get(address);
+    }
+
+    /**
+     * Unregister a connection. Nothing happens if the address has meanwhile
+     * been taken over by another connection, so a stale connection tearing
+     * down cannot remove its replacement.
+     *
+     * @return true if the connection was registered and is now removed
+     */
+    public synchronized boolean remove(String address, C connection) {
+        if (mByAddress.remove(address, connection)) {
+            rebuildSnapshot();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unregister all connections.
+     *
+     * @return The connections that were registered
+     */
+    public synchronized List<C> clear() {
+        List<C> removed = mSnapshot;
+        mByAddress.clear();
+        mSnapshot = Collections.emptyList();
+        return removed;
+    }
+
+    /**
+     * Returns the current connections. The list is immutable and can be
+     * iterated without locking; later changes do not affect it.
+     */
+    public List<C> all() {
+        return mSnapshot;
+    }
+
+    /**
+     * Returns the addresses of the current connections.
+     */
+    public List<String> addresses() {
+        return new ArrayList<String>(mByAddress.keySet());
+    }
+
+    public int size() {
+        return mByAddress.size();
+    }
+
+    /**
+     * Caller holds the monitor.
+     */
+    private void rebuildSnapshot() {
+        mSnapshot = Collections.unmodifiableList(new ArrayList<C>(mByAddress.values()));
+    }
+}
@@ -23,8 +23,10 @@ public interface Constants {
 
     // Message types sent from the BluetoothChatService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
+    // arg1: number of note codes, arg2: device id (see MESSAGE_DEVICE_NAME), obj: byte[] of codes
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
+    // arg1: device id, data: DEVICE_NAME
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
     public static final int MESSAGE_CHANGE_DEVICE_NAME = 6;
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * List adapter over a {@link ConversationLog}. Only the rows on screen are
+ * ever turned into text, and row views are recycled.
+ */
+public class ConversationAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+    private final int mResource;
+    private final ConversationLog mLog;
+
+    /**
+     * @param context  The current context
+     * @param resource Layout of a row; must be a single TextView
+     * @param capacity Maximum number of rows kept
+     */
+    public ConversationAdapter(Context context, int resource, int capacity) {
+        mInflater = LayoutInflater.from(context);
+        mResource = resource;
+        mLog = new ConversationLog(capacity);
+    }
+
+    /**
+     * Append a row, or count it as a repeat of a recent identical row.
+     */
+    public void add(String sender, String text) {
+        if (mLog.add(sender, text)) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Append a row per note code; see {@link ConversationLog#addNotes}.
+     */
+    public void addNotes(String sender, byte[] codes, int length) {
+        if (mLog.addNotes(sender, codes, length)) {
+            notifyDataSetChanged();
+        }
+    }
+
+    public void clear() {
+        mLog.clear();
+        notifyDataSetChanged();
+    }
+
+    public ConversationLog getLog() {
+        return mLog;
+    }
+
+    @Override
+    public int getCount() {
+        return mLog.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mLog.format(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null
+                ? convertView : mInflater.inflate(mResource, parent, false));
+        view.setText(mLog.format(position));
+        return view;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Fixed-capacity history of conversation rows.
+ *
+ * <p>Rows live in a ring of preallocated entries, so memory stays flat no
+ * matter how long a session runs: once full, each new row overwrites the
+ * oldest. A row that repeats the latest row of the same sender within the
+ * last few rows is not stored again; that row's repeat count goes up
+ * instead, shown as a suffix like "x32". Received notes get a row each
+ * (see {@link #addNotes}), so a repeated note collapses whichever batch
+ * it arrived in.</p>
+ *
+ * <p>Not thread-safe; the chat UI only touches it from the main thread.</p>
+ */
+public class ConversationLog {
+
+    // How far back a repeat is looked for, in rows
+    private static final int COLLAPSE_WINDOW = 8;
+
+    // Row text of each note code, shared so a note row does not allocate.
+    // Codes outside 7 bits are not notes; they show as their hex value
+    private static final String[] NOTE_TEXT = new String[256];
+
+    static {
+        for (int i = 0; i < NOTE_TEXT.length; i++) {
+            NOTE_TEXT[i] = i < 0x80 ? String.valueOf((char) i) : "?0x" + Integer.toHexString(i);
+        }
+    }
+
+    private static final class Entry {
+        String sender;
+        String text;
+        int count;
+    }
+
+    private final Entry[] mEntries;
+    // Index of the oldest row, and number of rows held
+    private int mHead;
+    private int mSize;
+
+    private long mCollapsed;
+    private long mEvicted;
+
+    /**
+     * @param capacity Maximum number of rows kept
+     */
+    public ConversationLog(int capacity) {
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+    /**
+     * Add a row.
+     *
+     * @return true if the visible rows changed
+     */
+    public boolean add(String sender, String text) {
+        for (int back = 1; back <= Math.min(COLLAPSE_WINDOW, mSize); back++) {
+            Entry entry = entryAt(mSize - back);
+            if (entry.sender.equals(sender)) {
+                if (entry.text.equals(text)) {
+                    entry.count++;
+                    mCollapsed++;
+                    return true;
+                }
+                break;
+            }
+        }
+        Entry entry;
+        if (mSize == mEntries.length) {
+            entry = mEntries[mHead];
+            mHead = (mHead + 1) % mEntries.length;
+            mEvicted++;
+        } else {
+            entry = entryAt(mSize++);
+        }
+        entry.sender = sender;
+        entry.text = text;
+        entry.count = 1;
+        return true;
+    }
+
+    /**
+     * Add one row per note code, as received in one batch.
+     *
+     * @return true if the visible rows changed
+     */
+    public boolean addNotes(String sender, byte[] codes, int length) {
+        boolean changed = false;
+        for (int i = 0; i < length; i++) {
+            if (add(sender, NOTE_TEXT[codes[i] & 0xff])) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Remove all rows.
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = entryAt(i);
+            entry.sender = null;
+            entry.text = null;
+        }
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    /**
+     * Returns the sender of a row, 0 being the oldest.
+     */
+    public String getSender(int position) {
+        return entryAt(position).sender;
+    }
+
+    public String getText(int position) {
+        return entryAt(position).text;
+    }
+
+    /**
+     * Returns how many times the row was received in a row.
+     */
+    public int getCount(int position) {
+        return entryAt(position).count;
+    }
+
+    /**
+     * Returns the row as displayed: "sender:  text", with a repeat count suffix.
+     */
+    public String format(int position) {
+        Entry entry = entryAt(position);
+        StringBuilder sb = new StringBuilder(entry.sender.length() + entry.text.length() + 8);
+        sb.append(entry.sender).append(":  ").append(entry.text);
+        if (entry.count > 1) {
+            sb.append(" \u00d7").append(entry.count);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of rows folded into an earlier identical row.
+     */
+    public long getCollapsed() {
+        return mCollapsed;
+    }
+
+    /**
+     * Returns the number of rows overwritten because the log was full.
+     */
+    public long getEvicted() {
+        return mEvicted;
+    }
+
+    private Entry entryAt(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+        }
+        return mEntries[(mHead + position) % mEntries.length];
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Starts an outgoing connection without waiting for it. The service reports
+ * the outcome back to whoever asked for the dial.
+ */
+public interface Dialer {
+
+    /**
+     * @param address The device address, in the format of the {@link Transport}
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    void dial(String address, boolean secure);
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Collects the note codes decoded on one connection so they can be
+ * delivered to the UI as one message per frame instead of one per read.
+ *
+ * <p>Reader threads {@link #add} (or {@link #append} whole runs of codes)
+ * and the UI thread {@link #drain}s. The first code into an empty batch
+ * returns true, telling the caller to schedule a flush, so exactly one
+ * flush is pending at a time. A batch holds at most maxBatch codes;
+ * anything beyond that while the UI thread is behind is counted by
+ * {@link #getDropped()} rather than buffered without bound. The sounds have
+ * already been played at that point, only the display is thinned.</p>
+ */
+public class EventBatcher {
+
+    private final byte[] mPending;
+    private int mCount;
+    private long mDropped;
+
+    /**
+     * @param maxBatch Largest number of codes delivered in one batch
+     */
+    public EventBatcher(int maxBatch) {
+        mPending = new byte[maxBatch];
+    }
+
+    /**
+     * Add one decoded note code, 0-255, to the current batch.
+     *
+     * @return true if the batch was empty, i.e. the caller should schedule a flush
+     */
+    public synchronized boolean add(int code) {
+        boolean wasEmpty = mCount == 0;
+        if (mCount < mPending.length) {
+            mPending[mCount++] = (byte) code;
+        } else {
+            mDropped++;
+        }
+        return wasEmpty;
+    }
+
+    /**
+     * Add a run of note codes, one per byte, to the current batch.
+     *
+     * @return true if the batch was empty, i.e. the caller should schedule a flush
+     */
+    public synchronized boolean append(byte[] buffer, int offset, int length) {
+        boolean wasEmpty = mCount == 0;
+        int room = mPending.length - mCount;
+        int copy = Math.min(room, length);
+        System.arraycopy(buffer, offset, mPending, mCount, copy);
+        mCount += copy;
+        mDropped += length - copy;
+        return wasEmpty && length > 0;
+    }
+
+    /**
+     * Take the current batch.
+     *
+     * @return The batched codes, or null if nothing arrived since the last drain
+     */
+    public synchronized byte[] drain() {
+        if (mCount == 0) {
+            return null;
+        }
+        byte[] batch = new byte[mCount];
+        System.arraycopy(mPending, 0, batch, 0, mCount);
+        mCount = 0;
+        return batch;
+    }
+
+    /**
+     * Returns the number of codes waiting for the next drain.
+     */
+    public synchronized int pending() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of codes left out of batches because one was full.
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+}
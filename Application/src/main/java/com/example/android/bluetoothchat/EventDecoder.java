@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Turns raw bytes received from a remote device into note events. A decoder
+ * is handed whole chunks at a time, so implementations must keep any state
+ * needed to continue a partial event on the next call.
+ */
+public interface EventDecoder {
+
+    /**
+     * Receives the events found by an {@link EventDecoder}.
+     */
+    public interface EventSink {
+        /**
+         * Called once per decoded event.
+         *
+         * @param code The event code, in the range 0-255
+         */
+        public void onEvent(int code);
+    }
+
+    /**
+     * Decode a chunk of received bytes.
+     *
+     * @param buffer The buffer holding the received bytes
+     * @param offset Index of the first valid byte
+     * @param length Number of valid bytes
+     * @param sink   Where decoded events are delivered
+     * @return The number of events delivered to the sink
+     */
+    public int decode(byte[] buffer, int offset, int length, EventSink sink);
+
+    /**
+     * Drop any partially decoded state, e.g. after the stream was reopened.
+     */
+    public void reset();
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * The binary framed wire protocol, and a zero-allocation encoder for it.
+ *
+ * <pre>
+ * offset  size  field
+ * 0       1     SYNC, always 0xF5
+ * 1       1     LEN, number of bytes after this field (8 + payload length)
+ * 2       1     device id, assigned by the sensor firmware
+ * 3       2     sequence number, big endian, wraps at 65536
+ * 5       4     sender timestamp in microseconds, big endian, wraps
+ * 9       1     event type, e.g. {@link #TYPE_NOTE}
+ * 10      n     payload, at most {@link #MAX_PAYLOAD} bytes
+ * </pre>
+ *
+ * <p>The legacy protocol sends one 7-bit ASCII character per note. SYNC has
+ * the top bit set, so both protocols can share a stream and
+ * {@link FrameDecoder} can tell them apart. Several frames may be packed
+ * into one write.</p>
+ */
+public final class FrameCodec {
+
+    public static final int SYNC = 0xF5;
+    /** Bytes before the payload, SYNC and LEN included. */
+    public static final int HEADER_SIZE = 10;
+    /** Bytes counted by LEN before the payload. */
+    static final int LEN_HEADER = HEADER_SIZE - 2;
+    public static final int MAX_PAYLOAD = 255 - LEN_HEADER;
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_PAYLOAD;
+
+    /** A note was triggered. Payload: note code, velocity (0-127, optional). */
+    public static final int TYPE_NOTE = 1;
+    /** Keep-alive without payload; keeps sequence and clock tracking fresh. */
+    public static final int TYPE_HEARTBEAT = 2;
+
+    /** Velocity assumed for legacy notes and notes without one. */
+    public static final int DEFAULT_VELOCITY = 100;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Write one frame into out.
+     *
+     * @return The number of bytes written, HEADER_SIZE + payloadLength
+     * @throws IllegalArgumentException if the payload or the output space is too big/small
+     */
+    public static int encode(byte[] out, int offset, int deviceId, int sequence,
+                             long timestampUs, int type,
+                             byte[] payload, int payloadOffset, int payloadLength) {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload length " + payloadLength);
+        }
+        int size = HEADER_SIZE + payloadLength;
+        if (out.length - offset < size) {
+            throw new IllegalArgumentException("no room for " + size + " bytes");
+        }
+        writeHeader(out, offset, deviceId, sequence, timestampUs, type, payloadLength);
+        if (payloadLength > 0) {
+            System.arraycopy(payload, payloadOffset, out, offset + HEADER_SIZE, payloadLength);
+        }
+        return size;
+    }
+
+    /**
+     * Write one {@link #TYPE_NOTE} frame into out.
+     *
+     * @return The number of bytes written
+     */
+    public static int encodeNote(byte[] out, int offset, int deviceId, int sequence,
+                                 long timestampUs, int code, int velocity) {
+        int size = HEADER_SIZE + 2;
+        if (out.length - offset < size) {
+            throw new IllegalArgumentException("no room for " + size + " bytes");
+        }
+        writeHeader(out, offset, deviceId, sequence, timestampUs, TYPE_NOTE, 2);
+        out[offset + HEADER_SIZE] = (byte) code;
+        out[offset + HEADER_SIZE + 1] = (byte) velocity;
+        return size;
+    }
+
+    /**
+     * Returns the signed distance from sequence number a to b, accounting
+     * for wrap-around, e.g. 1 for (65535, 0).
+     */
+    public static int sequenceDelta(int a, int b) {
+        return (short) (b - a);
+    }
+
+    /**
+     * Returns the signed distance in microseconds from timestamp a to b,
+     * accounting for the 32 bit wrap-around.
+     */
+    public static long timestampDelta(long a, long b) {
+        return (int) (b - a);
+    }
+
+    private static void writeHeader(byte[] out, int offset, int deviceId, int sequence,
+                                    long timestampUs, int type, int payloadLength) {
+        out[offset] = (byte) SYNC;
+        out[offset + 1] = (byte) (LEN_HEADER + payloadLength);
+        out[offset + 2] = (byte) deviceId;
+        out[offset + 3] = (byte) (sequence >>> 8);
+        out[offset + 4] = (byte) sequence;
+        out[offset + 5] = (byte) (timestampUs >>> 24);
+        out[offset + 6] = (byte) (timestampUs >>> 16);
+        out[offset + 7] = (byte) (timestampUs >>> 8);
+        out[offset + 8] = (byte) timestampUs;
+        out[offset + 9] = (byte) type;
+    }
+}
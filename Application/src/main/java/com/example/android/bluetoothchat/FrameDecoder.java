@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Streaming decoder for the {@link FrameCodec} wire protocol. It can also
+ * pass legacy single-character notes through.
+ *
+ * <p>Frames may be split across reads at any byte; the decoder keeps its
+ * position between calls. Nothing is allocated per frame: the header is
+ * parsed into fields, and the payload is collected in a fixed buffer that
+ * is handed to the {@link FrameListener}.</p>
+ *
+ * <p>Every {@link FrameCodec#TYPE_NOTE} frame is also delivered to the
+ * {@link EventSink} as its note code, so code built for the legacy
+ * protocol keeps working.</p>
+ */
+public class FrameDecoder implements EventDecoder {
+
+    /**
+     * Receives every complete frame, including its sender metadata.
+     */
+    public interface FrameListener {
+        /**
+         * @param payload The decoder's payload buffer, only valid during the call
+         */
+        public void onFrame(int deviceId, int sequence, long timestampUs, int type,
+                            byte[] payload, int offset, int length);
+    }
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_LEN = 1;
+    private static final int STATE_HEADER = 2;
+    private static final int STATE_PAYLOAD = 3;
+
+    private final boolean mLegacy;
+    private FrameListener mListener;
+
+    private final byte[] mHeader = new byte[FrameCodec.LEN_HEADER];
+    private final byte[] mPayload = new byte[FrameCodec.MAX_PAYLOAD];
+    private int mState = STATE_IDLE;
+    private int mLength;
+    private int mPos;
+
+    private boolean mHaveSequence;
+    private int mLastSequence;
+    private long mFrames;
+    private long mLostFrames;
+    private long mBadFrames;
+
+    /**
+     * @param legacy Also deliver 7-bit bytes outside frames as legacy notes
+     */
+    public FrameDecoder(boolean legacy) {
+        mLegacy = legacy;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, EventSink sink) {
+        int events = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = buffer[i] & 0xFF;
+            switch (mState) {
+                case STATE_IDLE:
+                    if (b == FrameCodec.SYNC) {
+                        mState = STATE_LEN;
+                    } else if (mLegacy && b < 0x80) {
+                        sink.onEvent(b);
+                        events++;
+                    }
+                    break;
+                case STATE_LEN:
+                    if (b < FrameCodec.LEN_HEADER) {
+                        // Impossible length: this SYNC was noise, resync
+                        mBadFrames++;
+                        mState = STATE_IDLE;
+                    } else {
+                        mLength = b - FrameCodec.LEN_HEADER;
+                        mPos = 0;
+                        mState = STATE_HEADER;
+                    }
+                    break;
+                case STATE_HEADER:
+                    mHeader[mPos++] = (byte) b;
+                    if (mPos == FrameCodec.LEN_HEADER) {
+                        mPos = 0;
+                        if (mLength == 0) {
+                            events += completeFrame(sink);
+                        } else {
+                            mState = STATE_PAYLOAD;
+                        }
+                    }
+                    break;
+                case STATE_PAYLOAD:
+                    // Copy as much of the payload as this chunk holds in one go
+                    int n = Math.min(mLength - mPos, end - i);
+                    System.arraycopy(buffer, i, mPayload, mPos, n);
+                    mPos += n;
+                    i += n - 1;
+                    if (mPos == mLength) {
+                        events += completeFrame(sink);
+                    }
+                    break;
+            }
+        }
+        return events;
+    }
+
+    private int completeFrame(EventSink sink) {
+        mState = STATE_IDLE;
+        int deviceId = mHeader[0] & 0xFF;
+        int sequence = ((mHeader[1] & 0xFF) << 8) | (mHeader[2] & 0xFF);
+        long timestampUs = ((mHeader[3] & 0xFFL) << 24) | ((mHeader[4] & 0xFF) << 16)
+                | ((mHeader[5] & 0xFF) << 8) | (mHeader[6] & 0xFF);
+        int type = mHeader[7] & 0xFF;
+
+        mFrames++;
+        if (mHaveSequence) {
+            int gap = FrameCodec.sequenceDelta(mLastSequence, sequence) - 1;
+            if (gap > 0) {
+                mLostFrames += gap;
+            }
+        }
+        mHaveSequence = true;
+        mLastSequence = sequence;
+
+        if (mListener != null) {
+            mListener.onFrame(deviceId, sequence, timestampUs, type, mPayload, 0, mLength);
+        }
+        if (type == FrameCodec.TYPE_NOTE && mLength > 0) {
+            sink.onEvent(mPayload[0] & 0xFF);
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        mState = STATE_IDLE;
+        mPos = 0;
+        mHaveSequence = false;
+    }
+
+    /** Complete frames decoded. */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /** Frames missing according to gaps in the sequence numbers. */
+    public long getLostFrames() {
+        return mLostFrames;
+    }
+
+    /** SYNC bytes followed by an impossible length. */
+    public long getBadFrames() {
+        return mBadFrames;
+    }
+}
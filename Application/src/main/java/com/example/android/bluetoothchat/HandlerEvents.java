@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * {@link ChatEvents} as messages to a Handler of the UI Activity, with the
+ * what codes and keys of {@link Constants}.
+ */
+public class HandlerEvents implements ChatEvents {
+
+    private final Handler mHandler;
+
+    public HandlerEvents(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    }
+
+    @Override
+    public void onDeviceConnected(int deviceId, String name) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME, deviceId, -1);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, name);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    /**
+     * Handles the batch right away, on the Handler's thread where the
+     * service posted the flush, as one MESSAGE_READ with the device id in arg2.
+     */
+    @Override
+    public void onNotes(int deviceId, byte[] codes) {
+        // Not queued, so the message is ours to recycle
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_READ, codes.length, deviceId, codes);
+        mHandler.dispatchMessage(msg);
+        msg.recycle();
+    }
+
+    @Override
+    public void onWritten(byte[] buffer) {
+        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+    }
+
+    @Override
+    public void onToast(String text) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, text);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mHandler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all connection I/O of {@link BluetoothChatService} on three small,
+ * fixed-size pools instead of one thread per peer.
+ *
+ * <ul>
+ * <li>The I/O pool runs short {@link Task}s, typically one read step of a
+ * connection. Each connection keeps at most one task in flight and
+ * reschedules itself, so a busy peer cannot starve the others.</li>
+ * <li>The write pool runs writer tasks, which may block in a write to a
+ * slow peer. Each connection keeps at most one writer in flight, so with a
+ * thread per peer a stalled peer only ever holds up its own writes.</li>
+ * <li>The blocking pool runs jobs that park in a system call for a long
+ * time, such as accept() and connect().</li>
+ * </ul>
+ *
+ * <p>The streams are blocking, so an I/O task may only make a read that
+ * can block while it holds one of the read slots (see
+ * {@link #tryAcquireReadSlot()}). Readers of silent peers can hold their
+ * slots indefinitely; there is one read slot fewer than I/O threads, so at
+ * least one thread keeps serving the other connections.</p>
+ *
+ * <p>Scheduling latency, the time between a task being due and it
+ * starting, is recorded for every task and reported by {@link #getStats()},
+ * as is the delay of every {@link #poll} of a task that found nothing to
+ * do; data arriving meanwhile waits up to that long.</p>
+ */
+public class IoScheduler {
+
+    private final ScheduledThreadPoolExecutor mIoPool;
+    private final ThreadPoolExecutor mWritePool;
+    private final ThreadPoolExecutor mBlockingPool;
+    private final Semaphore mReadSlots;
+    private final int mIoThreads;
+
+    private final AtomicLong mTasksRun = new AtomicLong();
+    private final AtomicLong mLatencySumNanos = new AtomicLong();
+    private final AtomicLong mLatencyMaxNanos = new AtomicLong();
+    private final AtomicLong mPolls = new AtomicLong();
+    private final AtomicLong mPollSumNanos = new AtomicLong();
+    private final AtomicLong mPollMaxNanos = new AtomicLong();
+
+    /**
+     * @param ioThreads       Threads serving connection read tasks, at least 2
+     * @param writeThreads    Threads for writer tasks, ideally one per peer
+     * @param blockingThreads Threads for accept/connect jobs
+     */
+    public IoScheduler(int ioThreads, int writeThreads, int blockingThreads) {
+        if (ioThreads < 2) {
+            throw new IllegalArgumentException("need at least 2 I/O threads");
+        }
+        mIoThreads = ioThreads;
+        mIoPool = new ScheduledThreadPoolExecutor(ioThreads, new NamedThreadFactory("BtIo-"));
+        mIoPool.setKeepAliveTime(30, TimeUnit.SECONDS);
+        mIoPool.allowCoreThreadTimeOut(true);
+        mWritePool = new ThreadPoolExecutor(writeThreads, writeThreads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("BtWrite-"));
+        mWritePool.allowCoreThreadTimeOut(true);
+        mBlockingPool = new ThreadPoolExecutor(blockingThreads, blockingThreads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("BtBlocking-"));
+        mBlockingPool.allowCoreThreadTimeOut(true);
+        mReadSlots = new Semaphore(ioThreads - 1);
+    }
+
+    /**
+     * A unit of work on the I/O or the write pool. A task object may be rescheduled from
+     * its own {@link #runTask()}, but must never be scheduled twice at once.
+     */
+    public abstract static class Task implements Runnable {
+        private IoScheduler mScheduler;
+        private long mDueNanos;
+
+        @Override
+        public final void run() {
+            mScheduler.recordLatency(System.nanoTime() - mDueNanos);
+            runTask();
+        }
+
+        protected abstract void runTask();
+    }
+
+    /**
+     * Run a task on the I/O pool after the given delay.
+     */
+    public void schedule(Task task, long delay, TimeUnit unit) {
+        long delayNanos = unit.toNanos(delay);
+        task.mScheduler = this;
+        task.mDueNanos = System.nanoTime() + delayNanos;
+        if (delayNanos <= 0) {
+            mIoPool.execute(task);
+        } else {
+            mIoPool.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Run a task again after the given delay because it found nothing to do,
+     * e.g. a read step without data. The delay is recorded as poll delay.
+     */
+    public void poll(Task task, long delay, TimeUnit unit) {
+        long delayNanos = unit.toNanos(delay);
+        mPolls.incrementAndGet();
+        mPollSumNanos.addAndGet(delayNanos);
+        updateMax(mPollMaxNanos, delayNanos);
+        schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run a task on the write pool now. Its latency is recorded like that
+     * of any other task.
+     */
+    public void executeWrite(Task task) {
+        task.mScheduler = this;
+        task.mDueNanos = System.nanoTime();
+        mWritePool.execute(task);
+    }
+
+    /**
+     * Run a long blocking job, e.g. an accept() loop, on the blocking pool.
+     */
+    public void executeBlocking(Runnable job) {
+        mBlockingPool.execute(job);
+    }
+
+    /**
+     * Try to reserve the right to block an I/O thread in a read.
+     * Must be paired with {@link #releaseReadSlot()}.
+     */
+    public boolean tryAcquireReadSlot() {
+        return mReadSlots.tryAcquire();
+    }
+
+    public void releaseReadSlot() {
+        mReadSlots.release();
+    }
+
+    /**
+     * Queued tasks waiting for an I/O thread. Read tasks use it to back off
+     * when the pool is saturated.
+     */
+    public int getQueueDepth() {
+        return mIoPool.getQueue().size();
+    }
+
+    private void recordLatency(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mTasksRun.incrementAndGet();
+        mLatencySumNanos.addAndGet(nanos);
+        updateMax(mLatencyMaxNanos, nanos);
+    }
+
+    private static void updateMax(AtomicLong max, long nanos) {
+        long current;
+        while (nanos > (current = max.get())) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the scheduler metrics.
+     */
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.ioThreads = mIoPool.getPoolSize();
+        stats.writeThreads = mWritePool.getPoolSize();
+        stats.blockingThreads = mBlockingPool.getPoolSize();
+        stats.maxThreads = mIoThreads + mWritePool.getMaximumPoolSize()
+                + mBlockingPool.getMaximumPoolSize();
+        stats.activeIoThreads = mIoPool.getActiveCount();
+        stats.activeWriteThreads = mWritePool.getActiveCount();
+        stats.blockedSlots = (mIoThreads - 1) - mReadSlots.availablePermits();
+        stats.queueDepth = mIoPool.getQueue().size();
+        stats.tasksRun = mTasksRun.get();
+        stats.meanLatencyNanos = stats.tasksRun == 0 ? 0 : mLatencySumNanos.get() / stats.tasksRun;
+        stats.maxLatencyNanos = mLatencyMaxNanos.get();
+        stats.polls = mPolls.get();
+        stats.meanPollNanos = stats.polls == 0 ? 0 : mPollSumNanos.get() / stats.polls;
+        stats.maxPollNanos = mPollMaxNanos.get();
+        return stats;
+    }
+
+    /**
+     * Clear the scheduling latency and poll counters.
+     */
+    public void resetLatency() {
+        mTasksRun.set(0);
+        mLatencySumNanos.set(0);
+        mLatencyMaxNanos.set(0);
+        mPolls.set(0);
+        mPollSumNanos.set(0);
+        mPollMaxNanos.set(0);
+    }
+
+    /**
+     * Stop all pools. Queued tasks are dropped.
+     */
+    public void shutdown() {
+        mIoPool.shutdownNow();
+        mWritePool.shutdownNow();
+        mBlockingPool.shutdownNow();
+    }
+
+    /**
+     * Point-in-time view of the scheduler.
+     */
+    public static class Stats {
+        /** Live threads of the I/O pool. */
+        public int ioThreads;
+        /** Live threads of the write pool. */
+        public int writeThreads;
+        /** Live threads of the blocking pool. */
+        public int blockingThreads;
+        /** Upper bound on threads this scheduler will ever start. */
+        public int maxThreads;
+        /** I/O threads currently running a task. */
+        public int activeIoThreads;
+        /** Write threads currently running a writer, possibly blocked in a write. */
+        public int activeWriteThreads;
+        /** I/O threads currently in a read that may block. */
+        public int blockedSlots;
+        /** Tasks waiting for an I/O thread. */
+        public int queueDepth;
+        /** Tasks run since the last reset. */
+        public long tasksRun;
+        /** Mean time between a task being due and it starting. */
+        public long meanLatencyNanos;
+        /** Worst time between a task being due and it starting. */
+        public long maxLatencyNanos;
+        /** Polls since the last reset. */
+        public long polls;
+        /** Mean delay of a poll. */
+        public long meanPollNanos;
+        /** Longest delay of a poll. */
+        public long maxPollNanos;
+
+        @Override
+        public String toString() {
+            return "threads " + (ioThreads + writeThreads + blockingThreads) + "/" + maxThreads
+                    + " (io " + ioThreads + ", write " + writeThreads
+                    + ", blocking " + blockingThreads + ")"
+                    + ", active " + activeIoThreads + ", blocked " + blockedSlots
+                    + ", writing " + activeWriteThreads
+                    + ", queued " + queueDepth + ", tasks " + tasksRun
+                    + ", sched latency mean " + meanLatencyNanos / 1000 + "us"
+                    + " max " + maxLatencyNanos / 1000 + "us"
+                    + ", polls " + polls + " delay mean " + meanPollNanos / 1000 + "us"
+                    + " max " + maxPollNanos / 1000 + "us";
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the notes of one connection should sound, so that they
+ * keep the spacing the sensor sent them with even if the radio delivers
+ * them in bursts.
+ *
+ * <p>Each note's sender timestamp (see {@link FrameCodec}) is mapped onto
+ * the local clock through the smallest transit delay seen recently, i.e.
+ * that of the least delayed note. How much later than that a note arrives
+ * is its jitter. Every note is played at its mapped time plus a playout
+ * delay that follows the recent peak jitter, but never exceeds the target
+ * latency. A note that arrives after its playout time is played at once
+ * and counted as late.</p>
+ *
+ * <p>Used from the connection's read task only, apart from {@link #getStats()}.</p>
+ */
+public class JitterBuffer {
+
+    // The baseline is the minimum transit over the current and the previous window,
+    // so it follows clock drift between sender and phone
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // A transit this far from the baseline means the sender restarted its clock
+    private static final long RESYNC_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Peak jitter decays by 1/DECAY of the difference per note
+    private static final int DECAY = 64;
+
+    private final String mAddress;
+    private volatile long mTargetNanos;
+
+    private boolean mSynced;
+    private long mLastTimestampUs;
+    private long mSenderNanos;
+    private long mWindowStart;
+    private long mWindowMin;
+    private long mPreviousMin;
+    private long mPeakJitter;
+
+    private volatile long mNotes;
+    private volatile long mLate;
+    private volatile long mJitterSumNanos;
+    private volatile long mJitterMaxNanos;
+    private volatile long mAddedSumNanos;
+    private volatile long mAddedMaxNanos;
+    private volatile long mDelayNanos;
+
+    /**
+     * @param address       Address of the connection, for the stats
+     * @param targetLatency Most delay the buffer adds, in ms
+     */
+    public JitterBuffer(String address, int targetLatency) {
+        mAddress = address;
+        setTargetLatency(targetLatency);
+    }
+
+    public void setTargetLatency(int targetLatency) {
+        mTargetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, targetLatency));
+    }
+
+    /**
+     * Returns the local time at which a note should be played.
+     *
+     * @param timestampUs  Sender timestamp of the note, 32 bits, wrapping
+     * @param arrivalNanos {@link System#nanoTime()} when the note was read
+     * @return A {@link System#nanoTime()} value, never before arrivalNanos
+     */
+    public long playoutTime(long timestampUs, long arrivalNanos) {
+        if (mSynced) {
+            // Signed 32-bit difference, so a wrap or a reordered note is handled
+            long delta = (int) (timestampUs - mLastTimestampUs);
+            mSenderNanos += delta * 1000;
+        } else {
+            mSenderNanos = 0;
+        }
+        mLastTimestampUs = timestampUs;
+        long transit = arrivalNanos - mSenderNanos;
+
+        if (!mSynced || Math.abs(transit - baseline()) > RESYNC_NANOS) {
+            mSynced = true;
+            mWindowStart = arrivalNanos;
+            mWindowMin = transit;
+            mPreviousMin = transit;
+            mPeakJitter = 0;
+        } else if (arrivalNanos - mWindowStart > WINDOW_NANOS) {
+            mWindowStart = arrivalNanos;
+            mPreviousMin = mWindowMin;
+            mWindowMin = transit;
+        } else if (transit < mWindowMin) {
+            mWindowMin = transit;
+        }
+
+        long base = baseline();
+        long jitter = transit - base;
+        if (jitter > mPeakJitter) {
+            mPeakJitter = jitter;
+        } else {
+            mPeakJitter -= (mPeakJitter - jitter) / DECAY;
+        }
+        long delay = Math.min(mPeakJitter, mTargetNanos);
+        long playout = mSenderNanos + base + delay;
+
+        mNotes++;
+        mDelayNanos = delay;
+        if (playout < arrivalNanos) {
+            mLate++;
+            playout = arrivalNanos;
+        } else {
+            mJitterSumNanos += jitter;
+            mJitterMaxNanos = Math.max(mJitterMaxNanos, jitter);
+        }
+        long added = playout - arrivalNanos;
+        mAddedSumNanos += added;
+        mAddedMaxNanos = Math.max(mAddedMaxNanos, added);
+        return playout;
+    }
+
+    private long baseline() {
+        return Math.min(mWindowMin, mPreviousMin);
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.address = mAddress;
+        stats.notes = mNotes;
+        stats.late = mLate;
+        long onTime = stats.notes - stats.late;
+        stats.meanJitterAbsorbedNanos = onTime == 0 ? 0 : mJitterSumNanos / onTime;
+        stats.maxJitterAbsorbedNanos = mJitterMaxNanos;
+        stats.meanAddedNanos = stats.notes == 0 ? 0 : mAddedSumNanos / stats.notes;
+        stats.maxAddedNanos = mAddedMaxNanos;
+        stats.delayNanos = mDelayNanos;
+        return stats;
+    }
+
+    /**
+     * Point-in-time view of a jitter buffer.
+     */
+    public static class Stats {
+        /** Address of the connection. */
+        public String address;
+        /** Notes scheduled. */
+        public long notes;
+        /** Notes that arrived after their playout time and were played at once. */
+        public long late;
+        /** Mean and worst arrival delay evened out for the notes that were on time. */
+        public long meanJitterAbsorbedNanos;
+        public long maxJitterAbsorbedNanos;
+        /** Mean and worst time a note was held back. */
+        public long meanAddedNanos;
+        public long maxAddedNanos;
+        /** Playout delay currently applied. */
+        public long delayNanos;
+
+        @Override
+        public String toString() {
+            return address + ": " + notes + " notes, " + late + " late"
+                    + ", jitter absorbed mean " + meanJitterAbsorbedNanos / 1000
+                    + "us max " + maxJitterAbsorbedNanos / 1000 + "us"
+                    + ", latency added mean " + meanAddedNanos / 1000
+                    + "us max " + maxAddedNanos / 1000 + "us"
+                    + ", delay now " + delayNanos / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds, in the style of
+ * HdrHistogram: values below 64 ns are counted exactly, larger ones in
+ * log-linear buckets 32 to a power of two, so any reported value is
+ * within about 3% of the true one. Durations of a minute or more land in
+ * the top bucket; the maximum is kept exactly.
+ *
+ * <p>{@link #record(long)} is lock-free and never allocates, so any number
+ * of threads may record while another reads a {@link Summary}.</p>
+ */
+public class LatencyHistogram {
+
+    // Counted exactly below 2^SUB_BITS, then HALF buckets per power of two
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_BITS = 36;
+    private static final long MAX_TRACKED = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BITS) * HALF;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Count one duration. Negative values are counted as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        mCounts.incrementAndGet(indexOf(Math.min(value, MAX_TRACKED)));
+        mTotal.incrementAndGet();
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     */
+    public long getCount() {
+        return mTotal.get();
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the duration that the given percentage of the recorded ones
+     * do not exceed, or 0 if nothing was recorded.
+     *
+     * @param percentile 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return valueAt(counts, total, percentile);
+    }
+
+    /**
+     * Returns count, median, 99th percentile and maximum from one pass.
+     */
+    public Summary getSummary() {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        Summary summary = new Summary();
+        summary.count = total;
+        summary.p50Nanos = valueAt(counts, total, 50);
+        summary.p99Nanos = valueAt(counts, total, 99);
+        summary.maxNanos = mMax.get();
+        return summary;
+    }
+
+    /**
+     * Forget everything recorded so far. Durations recorded meanwhile may
+     * be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    private long valueAt(long[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Never claim more than was actually seen; the top bucket is open-ended
+                return i == BUCKETS - 1 ? mMax.get() : Math.min(highestValueOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the top SUB_BITS bits; the leading one is implied
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >> shift) - HALF;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Point-in-time view of a histogram.
+     */
+    public static class Summary {
+        /** Durations recorded. */
+        public long count;
+        /** Median duration. */
+        public long p50Nanos;
+        /** 99th percentile duration. */
+        public long p99Nanos;
+        /** Longest duration. */
+        public long maxNanos;
+
+        @Override
+        public String toString() {
+            return "p50 " + format(p50Nanos) + " p99 " + format(p99Nanos)
+                    + " max " + format(maxNanos) + " (n=" + count + ")";
+        }
+
+        private static String format(long nanos) {
+            if (nanos < 10000) {
+                return nanos / 1000 + "." + nanos / 100 % 10 + "us";
+            }
+            if (nanos < 10000000) {
+                return nanos / 1000 + "us";
+            }
+            return nanos / 1000000 + "ms";
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Latency of one connection's receive path, from the moment a chunk is
+ * returned by the socket read to each later stage, in one
+ * {@link LatencyHistogram} per stage.
+ *
+ * <p>Timestamps are {@link System#nanoTime()}, so they are monotonic and
+ * comparable across threads.</p>
+ */
+public class LatencyTracker {
+
+    /** Read until the decoder produced the event. */
+    public static final int STAGE_DECODE = 0;
+    /** Read until the note was handed to the sound engine. */
+    public static final int STAGE_DISPATCH = 1;
+    /**
+     * Read until the note started: when the sound engine's play call
+     * returned, or for a note the engine times itself, the time its first
+     * sample is due.
+     */
+    public static final int STAGE_PLAY = 2;
+    /** Read until the bytes were delivered to the UI as a conversation row. */
+    public static final int STAGE_UI = 3;
+
+    private static final int STAGE_COUNT = 4;
+
+    private final String mAddress;
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+
+    public LatencyTracker(String address) {
+        mAddress = address;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the time from a read to now for one stage.
+     *
+     * @param stage     One of the STAGE_ constants
+     * @param readNanos {@link System#nanoTime()} when the chunk was read
+     */
+    public void record(int stage, long readNanos) {
+        mStages[stage].record(System.nanoTime() - readNanos);
+    }
+
+    /**
+     * Record the time from a read to a given {@link System#nanoTime()}, which
+     * may lie ahead, for one stage.
+     */
+    public void recordAt(int stage, long readNanos, long atNanos) {
+        mStages[stage].record(atNanos - readNanos);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mStages[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mStages) {
+            histogram.reset();
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.address = mAddress;
+        stats.decode = mStages[STAGE_DECODE].getSummary();
+        stats.dispatch = mStages[STAGE_DISPATCH].getSummary();
+        stats.play = mStages[STAGE_PLAY].getSummary();
+        stats.ui = mStages[STAGE_UI].getSummary();
+        return stats;
+    }
+
+    /**
+     * Point-in-time view of one connection's latency, every stage measured
+     * from the socket read.
+     */
+    public static class Stats {
+        /** Address of the connected device. */
+        public String address;
+        /** Read to decoded event. */
+        public LatencyHistogram.Summary decode;
+        /** Read to note handed to the sound engine. */
+        public LatencyHistogram.Summary dispatch;
+        /** Read to the note starting; what a user hears as lag. */
+        public LatencyHistogram.Summary play;
+        /** Read to conversation row delivered. */
+        public LatencyHistogram.Summary ui;
+
+        @Override
+        public String toString() {
+            return address
+                    + "\n decode   " + decode
+                    + "\n dispatch " + dispatch
+                    + "\n play     " + play
+                    + "\n ui       " + ui;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates a room full of sensors dialing in to a
+ * {@link BluetoothChatService} through a {@link ReplayTransport}, each
+ * sending the legacy single-character note codes.
+ *
+ * <pre>
+ * ReplayTransport transport = new ReplayTransport();
+ * BluetoothChatService service = new BluetoothChatService(events, sounds, transport);
+ * service.setAutoReconnect(false);
+ * service.start();
+ * LoadGenerator load = new LoadGenerator(transport);
+ * load.setSensors(32);
+ * load.setRate(50);
+ * load.start(10000);
+ * load.await(15, TimeUnit.SECONDS);
+ * // compare load.getStats() with service.getPeerCounters() and getLatencyStats()
+ * </pre>
+ *
+ * <p>Each sensor writes at random (Poisson) times, on average
+ * {@link #setRate(double)} times a second. A write is one note, or with
+ * {@link #setBurst(int, double)} sometimes a burst of several. After any
+ * write a sensor may drop its link and dial in again a little later.
+ * All randomness comes from one seed, so a run can be repeated.</p>
+ *
+ * <p>A sensor never waits for the service: a write that does not fit in
+ * the peer's buffer is counted as overflowed. Overflow, a growing lag
+ * behind schedule, or fewer notes decoded than sent show where the
+ * service stops keeping up. LoadGeneratorTest in the Benchmark module
+ * runs it against the service on a plain JVM.</p>
+ */
+public class LoadGenerator {
+
+    /** Every note code understood by the current firmware. */
+    public static final String NOTE_CODES = "cdefgabCwxyz12345678";
+
+    private final ReplayTransport mTransport;
+    private int mSensors = 8;
+    private double mRate = 20;
+    private int mBurstSize = 1;
+    private double mBurstProbability;
+    private double mDisconnectProbability;
+    private long mReconnectDelayMs = 1000;
+    private long mSeed = 42;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    private volatile long mWrites;
+    private volatile long mNotesSent;
+    private volatile long mNotesOverflowed;
+    private volatile long mConnects;
+    private volatile long mDisconnects;
+    private volatile long mMaxLagNanos;
+    private volatile long mElapsedNanos;
+
+    public LoadGenerator(ReplayTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Set the number of simulated sensors.
+     */
+    public void setSensors(int sensors) {
+        mSensors = sensors;
+    }
+
+    /**
+     * Set the mean number of writes per second of each sensor.
+     */
+    public void setRate(double writesPerSecond) {
+        if (writesPerSecond <= 0) {
+            throw new IllegalArgumentException("rate " + writesPerSecond);
+        }
+        mRate = writesPerSecond;
+    }
+
+    /**
+     * Make a write carry size notes at once with the given probability.
+     */
+    public void setBurst(int size, double probability) {
+        mBurstSize = Math.max(1, size);
+        mBurstProbability = probability;
+    }
+
+    /**
+     * Set the chance that a sensor drops its link after a write, and how
+     * long it stays away before dialing in again.
+     */
+    public void setDisconnects(double probability, long reconnectDelayMs) {
+        mDisconnectProbability = probability;
+        mReconnectDelayMs = reconnectDelayMs;
+    }
+
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Connect the sensors and start sending on a thread of its own.
+     *
+     * @param durationMs How long to send; the sensors disconnect afterwards
+     */
+    public synchronized void start(final long durationMs) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    generate(TimeUnit.MILLISECONDS.toNanos(durationMs));
+                } finally {
+                    mDone.countDown();
+                }
+            }
+        }, "LoadGenerator");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Wait for the end of the run.
+     *
+     * @return false if it did not end in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDone.await(timeout, unit);
+    }
+
+    /**
+     * End the run early.
+     */
+    public void stop() {
+        mStopped = true;
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static class Sensor implements Comparable<Sensor> {
+        final String mmAddress;
+        ReplayTransport.ReplayChannel mmChannel;
+        long mmDueNanos;
+
+        Sensor(String address) {
+            mmAddress = address;
+        }
+
+        @Override
+        public int compareTo(Sensor other) {
+            // Due times are compared by difference, nanoTime may wrap
+            long diff = mmDueNanos - other.mmDueNanos;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    private void generate(long durationNanos) {
+        Random random = new Random(mSeed);
+        byte[] notes = new byte[mBurstSize];
+        long meanIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / mRate);
+        long reconnectNanos = TimeUnit.MILLISECONDS.toNanos(mReconnectDelayMs);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+
+        PriorityQueue<Sensor> queue = new PriorityQueue<Sensor>();
+        List<Sensor> sensors = new ArrayList<Sensor>();
+        for (int i = 0; i < mSensors; i++) {
+            Sensor sensor = new Sensor(String.format(Locale.US, "00:00:5E:00:%02X:%02X",
+                    i >> 8 & 0xff, i & 0xff));
+            sensor.mmDueNanos = start;
+            sensors.add(sensor);
+            queue.add(sensor);
+        }
+
+        while (!mStopped) {
+            Sensor sensor = queue.poll();
+            if (sensor == null || sensor.mmDueNanos - end >= 0) {
+                break;
+            }
+            long now = System.nanoTime();
+            while (now - sensor.mmDueNanos < 0 && !mStopped) {
+                LockSupport.parkNanos(sensor.mmDueNanos - now);
+                now = System.nanoTime();
+            }
+            if (now - sensor.mmDueNanos > mMaxLagNanos) {
+                mMaxLagNanos = now - sensor.mmDueNanos;
+            }
+
+            if (sensor.mmChannel == null) {
+                sensor.mmChannel = mTransport.dialIn(sensor.mmAddress);
+                mConnects++;
+            } else {
+                int count = random.nextDouble() < mBurstProbability ? mBurstSize : 1;
+                for (int i = 0; i < count; i++) {
+                    notes[i] = (byte) NOTE_CODES.charAt(random.nextInt(NOTE_CODES.length()));
+                }
+                if (sensor.mmChannel.offer(notes, 0, count)) {
+                    mNotesSent += count;
+                } else {
+                    mNotesOverflowed += count;
+                }
+                mWrites++;
+                if (random.nextDouble() < mDisconnectProbability) {
+                    sensor.mmChannel.finish();
+                    sensor.mmChannel = null;
+                    mDisconnects++;
+                    sensor.mmDueNanos += reconnectNanos;
+                    queue.add(sensor);
+                    continue;
+                }
+            }
+            // Exponential gaps make each sensor a Poisson source
+            double gap = -Math.log(1 - random.nextDouble()) * meanIntervalNanos;
+            sensor.mmDueNanos += (long) gap;
+            queue.add(sensor);
+        }
+
+        for (Sensor sensor : sensors) {
+            if (sensor.mmChannel != null) {
+                sensor.mmChannel.finish();
+            }
+        }
+        mElapsedNanos = System.nanoTime() - start;
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.writes = mWrites;
+        stats.notesSent = mNotesSent;
+        stats.notesOverflowed = mNotesOverflowed;
+        stats.connects = mConnects;
+        stats.disconnects = mDisconnects;
+        stats.maxLagNanos = mMaxLagNanos;
+        stats.elapsedNanos = mElapsedNanos;
+        return stats;
+    }
+
+    /**
+     * Point-in-time view of a run.
+     */
+    public static class Stats {
+        /** Writes made by all sensors. */
+        public long writes;
+        /** Notes taken by the service's side of the links. */
+        public long notesSent;
+        /** Notes that did not fit because the service fell behind. */
+        public long notesOverflowed;
+        /** Links opened, first connections included. */
+        public long connects;
+        /** Links dropped on purpose before the end of the run. */
+        public long disconnects;
+        /** Worst delay of a write behind its schedule; the generator itself saturating. */
+        public long maxLagNanos;
+        /** Duration of the run, once it has ended. */
+        public long elapsedNanos;
+
+        @Override
+        public String toString() {
+            long rate = elapsedNanos == 0 ? 0
+                    : notesSent * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+            return notesSent + " notes sent (" + rate + "/s), " + notesOverflowed
+                    + " overflowed, " + writes + " writes, " + connects + " connects, "
+                    + disconnects + " disconnects, max lag " + maxLagNanos / 1000 + "us";
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.view.MenuItem;
 import android.widget.ViewAnimator;
 
 import com.example.android.common.activities.SampleActivityBase;
+import com.example.android.common.logger.AsyncLogNode;
 import com.example.android.common.logger.Log;
 import com.example.android.common.logger.LogFragment;
 import com.example.android.common.logger.LogWrapper;
@@ -95,10 +96,17 @@ public class MainActivity extends SampleActivityBase {
         LogWrapper logWrapper = new LogWrapper();
         // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
         Log.setLogNode(logWrapper);
+        // Release builds skip building debug and verbose messages on the I/O threads
+        Log.setMinPriority(BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO);
+
+        // Everything after logcat runs on the UI thread in per-frame batches, so
+        // the I/O threads never wait for the on-screen log.
+        AsyncLogNode asyncNode = new AsyncLogNode();
+        logWrapper.setNext(asyncNode);
 
         // Filter strips out everything except the message text.
         MessageOnlyLogFilter msgFilter = new MessageOnlyLogFilter();
-        logWrapper.setNext(msgFilter);
+        asyncNode.setNext(msgFilter);
 
         // On screen logging via a fragment with a TextView.
         LogFragment logFragment = (LogFragment) getSupportFragmentManager()
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Decoder for the original sensor protocol, where every received byte is
+ * one note code (e.g. 'c' for piano C4, 'w' for the bada drum).
+ */
+public class NoteDecoder implements EventDecoder {
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, EventSink sink) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            sink.onEvent(buffer[i] & 0xFF);
+        }
+        return length;
+    }
+
+    @Override
+    public void reset() {
+        // Stateless, nothing to drop
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the single-byte note codes sent by the sensors to the sample indexes
+ * loaded by {@link SoundBank}.
+ *
+ * <p>A map is an immutable 256-entry table, so a lookup is one array read
+ * with no boxing or branching on the code. Each distinct sample named by the
+ * map gets a dense index in order of first appearance; those indexes are the
+ * slots the {@link SoundEngine} loads them into.</p>
+ *
+ * <p>A map can be read from a text file with one mapping per line:</p>
+ * <pre>
+ * # code  sample (raw resource name)
+ * c       piano_c4
+ * 0x41    drum_kick
+ * </pre>
+ * <p>The code is either a single character or a hex byte. Blank lines and
+ * lines starting with '#' are ignored.</p>
+ *
+ * <p>Samples are grouped into kits by the part of their name before the
+ * first '_', so "drum_kick" belongs to the "drum" kit. {@link SoundBank}
+ * loads and evicts whole kits.</p>
+ */
+public final class NoteMap {
+
+    /**
+     * Returned for codes that have no sound.
+     */
+    public static final int NO_SOUND = -1;
+
+    /**
+     * Name of the optional mapping file in the app's external files directory.
+     */
+    public static final String CONFIG_FILE = "notemap.txt";
+
+    private static final String[][] DEFAULT_MAPPING = {
+            /* piano */
+            {"c", "piano_c4"}, {"d", "piano_d4"}, {"e", "piano_e4"}, {"f", "piano_f4"},
+            {"g", "piano_g4"}, {"a", "piano_a4"}, {"b", "piano_b4"}, {"C", "piano_c5"},
+            /* drums */
+            {"w", "drum_bada"}, {"x", "drum_kick"}, {"y", "drum_snare"}, {"z", "drum_steel6"},
+            /*xylophone*/
+            {"1", "xylophone_c"}, {"2", "xylophone_d"}, {"3", "xylophone_e"}, {"4", "xylophone_f"},
+            {"5", "xylophone_g"}, {"6", "xylophone_a"}, {"7", "xylophone_b"}, {"8", "xylophone_c2"},
+    };
+
+    private static final NoteMap DEFAULT = fromPairs(DEFAULT_MAPPING);
+
+    private static volatile NoteMap sCurrent = DEFAULT;
+
+    private final int[] mTable;
+    private final String[] mSamples;
+    private final String[] mKits;
+    // Sample index -> index into mKits
+    private final int[] mSampleKit;
+
+    private NoteMap(int[] table, String[] samples) {
+        mTable = table;
+        mSamples = samples;
+        mSampleKit = new int[samples.length];
+        List<String> kits = new ArrayList<String>();
+        for (int i = 0; i < samples.length; i++) {
+            String kit = kitName(samples[i]);
+            int k = kits.indexOf(kit);
+            if (k < 0) {
+                k = kits.size();
+                kits.add(kit);
+            }
+            mSampleKit[i] = k;
+        }
+        mKits = kits.toArray(new String[kits.size()]);
+    }
+
+    /**
+     * Returns the sample index for a note code in the current map, or
+     * {@link #NO_SOUND}.
+     */
+    public static int soundIndex(char c) {
+        return c < 256 ? sCurrent.mTable[c] : NO_SOUND;
+    }
+
+    /**
+     * Returns the map used by {@link #soundIndex(char)}.
+     */
+    public static NoteMap getCurrent() {
+        return sCurrent;
+    }
+
+    /**
+     * Install a map. Called by {@link SoundBank} once the map's samples are loaded.
+     */
+    static void setCurrent(NoteMap map) {
+        sCurrent = map;
+    }
+
+    /**
+     * Returns the built-in mapping of the SenseMe sensor codes.
+     */
+    public static NoteMap getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the sample index for a byte code in this map, or {@link #NO_SOUND}.
+     */
+    public int indexOf(int code) {
+        return mTable[code & 0xFF];
+    }
+
+    /**
+     * Returns the sample names in index order.
+     */
+    public String[] getSamples() {
+        return mSamples.clone();
+    }
+
+    /**
+     * Returns the kit of a sample index as an index into {@link #getKits()}.
+     */
+    public int kitOf(int index) {
+        return mSampleKit[index];
+    }
+
+    /**
+     * Returns the name of a kit index.
+     */
+    public String getKit(int kitIndex) {
+        return mKits[kitIndex];
+    }
+
+    /**
+     * Returns the kit names of this map.
+     */
+    public String[] getKits() {
+        return mKits.clone();
+    }
+
+    /**
+     * Returns the sample indexes that belong to a kit; empty if the map has no such kit.
+     */
+    public int[] samplesOf(String kit) {
+        int k = Arrays.asList(mKits).indexOf(kit);
+        int count = 0;
+        for (int i = 0; i < mSampleKit.length; i++) {
+            if (mSampleKit[i] == k) {
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        count = 0;
+        for (int i = 0; i < mSampleKit.length; i++) {
+            if (mSampleKit[i] == k) {
+                indexes[count++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Read a map from a file.
+     *
+     * @throws IOException if the file cannot be read or has a malformed line
+     */
+    public static NoteMap load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse a map in the format described above. The reader is not closed.
+     *
+     * @throws IOException on a malformed line or too many distinct samples
+     */
+    public static NoteMap parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<String[]> pairs = new ArrayList<String[]>();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2 || parseCode(fields[0]) < 0) {
+                throw new IOException("bad mapping on line " + lineNumber + ": " + line);
+            }
+            pairs.add(fields);
+        }
+        try {
+            return fromPairs(pairs.toArray(new String[pairs.size()][]));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static NoteMap fromPairs(String[][] pairs) {
+        int[] table = new int[256];
+        Arrays.fill(table, NO_SOUND);
+        List<String> samples = new ArrayList<String>();
+        for (String[] pair : pairs) {
+            int index = samples.indexOf(pair[1]);
+            if (index < 0) {
+                if (samples.size() == SoundEngine.MAX_SOUNDS) {
+                    throw new IllegalArgumentException("more than " + SoundEngine.MAX_SOUNDS
+                            + " distinct samples");
+                }
+                index = samples.size();
+                samples.add(pair[1]);
+            }
+            table[parseCode(pair[0])] = index;
+        }
+        return new NoteMap(table, samples.toArray(new String[samples.size()]));
+    }
+
+    private static String kitName(String sample) {
+        int end = sample.indexOf('_');
+        return end > 0 ? sample.substring(0, end) : sample;
+    }
+
+    private static int parseCode(String code) {
+        if (code.length() == 1) {
+            return code.charAt(0) < 256 ? code.charAt(0) : -1;
+        }
+        if (code.length() == 4 && code.startsWith("0x")) {
+            try {
+                return Integer.parseInt(code.substring(2), 16);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Bounded ring buffer of messages waiting to be written to one peer.
+ *
+ * <p>Callers only {@link #offer} and return at once. A writer task drains
+ * the queue with {@link #poll()}. The queue tracks whether a drain is
+ * pending: offer() returns true exactly when the caller has to schedule
+ * one, and poll() clears that state once the queue is empty. So at most one
+ * writer runs per peer and no message is left behind.</p>
+ *
+ * <p>When a slow peer lets the queue fill up, the {@link Policy} decides
+ * what to give up. Every outcome is counted.</p>
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a message that arrives while the queue is full.
+     */
+    public enum Policy {
+        /** Discard the new message. */
+        DROP_NEWEST,
+        /** Discard the oldest queued message to make room. */
+        DROP_OLDEST,
+        /**
+         * Append the new message to the last queued one, up to the coalesce
+         * limit; beyond that behave like DROP_OLDEST.
+         */
+        COALESCE
+    }
+
+    private final byte[][] mRing;
+    private final Policy mPolicy;
+    private final int mMaxCoalesceBytes;
+    private int mHead;
+    private int mSize;
+    private boolean mDrainPending;
+
+    private long mEnqueued;
+    private long mWritten;
+    private long mDropped;
+    private long mCoalesced;
+
+    /**
+     * @param capacity         Maximum number of queued messages
+     * @param policy           Overflow policy
+     * @param maxCoalesceBytes Largest message COALESCE may build
+     */
+    public OutboundQueue(int capacity, Policy policy, int maxCoalesceBytes) {
+        mRing = new byte[capacity][];
+        mPolicy = policy;
+        mMaxCoalesceBytes = maxCoalesceBytes;
+    }
+
+    /**
+     * Queue a message. Never blocks.
+     *
+     * @return true if the caller must schedule a writer to drain the queue
+     */
+    public synchronized boolean offer(byte[] message) {
+        mEnqueued++;
+        if (mSize == mRing.length) {
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    mDropped++;
+                    return false;
+                case COALESCE:
+                    if (coalesce(message)) {
+                        return false;
+                    }
+                    // Too big to merge, drop the oldest instead
+                    dropOldest();
+                    break;
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+            }
+        }
+        mRing[(mHead + mSize) % mRing.length] = message;
+        mSize++;
+        if (mDrainPending) {
+            return false;
+        }
+        mDrainPending = true;
+        return true;
+    }
+
+    /**
+     * Append message to the last queued one. Returns false if the result
+     * would exceed maxCoalesceBytes.
+     */
+    private boolean coalesce(byte[] message) {
+        int tail = (mHead + mSize - 1) % mRing.length;
+        byte[] last = mRing[tail];
+        if (last.length + message.length > mMaxCoalesceBytes) {
+            return false;
+        }
+        byte[] merged = new byte[last.length + message.length];
+        System.arraycopy(last, 0, merged, 0, last.length);
+        System.arraycopy(message, 0, merged, last.length, message.length);
+        mRing[tail] = merged;
+        mCoalesced++;
+        return true;
+    }
+
+    private void dropOldest() {
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        mSize--;
+        mDropped++;
+    }
+
+    /**
+     * Take the next message to write.
+     *
+     * @return The message, or null if the queue is empty. In that case the
+     * drain is over and the next offer() schedules a new one.
+     */
+    public synchronized byte[] poll() {
+        if (mSize == 0) {
+            mDrainPending = false;
+            return null;
+        }
+        byte[] message = mRing[mHead];
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        mSize--;
+        return message;
+    }
+
+    /**
+     * Record that a message returned by poll() reached the stream.
+     */
+    public synchronized void onWritten() {
+        mWritten++;
+    }
+
+    /**
+     * Drop everything queued, e.g. when the link is closed.
+     */
+    public synchronized void clear() {
+        mDropped += mSize;
+        for (int i = 0; i < mSize; i++) {
+            mRing[(mHead + i) % mRing.length] = null;
+        }
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /** Messages offered, including dropped and coalesced ones. */
+    public synchronized long getEnqueued() {
+        return mEnqueued;
+    }
+
+    /** Messages written to the stream. */
+    public synchronized long getWritten() {
+        return mWritten;
+    }
+
+    /** Messages given up because the queue was full or the link closed. */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /** Messages merged into a queued one. */
+    public synchronized long getCoalesced() {
+        return mCoalesced;
+    }
+}
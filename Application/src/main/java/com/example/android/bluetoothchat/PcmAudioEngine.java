@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sound engine that keeps every sample decoded in memory and mixes the active
+ * voices itself into a single streaming {@link AudioTrack}.
+ *
+ * <p>Compared to SoundPool this avoids the per-play round trip into the
+ * media server: a note is picked up by the mixing thread within one block
+ * (256 frames, about 6 ms) and goes out through a buffer sized close to the
+ * device minimum. The track runs at the native output rate so the platform
+ * does not resample it. When more notes overlap than the configured
+ * polyphony allows, the voice that has played longest is stolen.</p>
+ *
+ * <p>After a second of silence the mixing thread parks until the next note,
+ * so an idle engine costs no CPU.</p>
+ *
+ * <p>In sequencer mode ({@link #setSequencer(boolean)}) a note is not started
+ * at the next block but at the frame matching the time it was triggered (or
+ * the time given to {@link #playSoundAt(int, long)}), a fixed 20 ms later.
+ * The mixer keeps a frame clock fitted to System.nanoTime(), so notes keep
+ * their spacing to the sample whichever reader thread delivered them and
+ * however late it was woken. With a tempo set the start frames can be
+ * snapped to a grid, and a metronome can click the beats.</p>
+ */
+public class PcmAudioEngine implements SoundEngine {
+    private static final String TAG = "PcmAudioEngine";
+
+    public static final int DEFAULT_POLYPHONY = 16;
+
+    private static final int BLOCK_FRAMES = 256;
+    private static final int TRIGGER_CAPACITY = 64;
+    private static final int IDLE_TIMEOUT_MS = 1000;
+
+    // Delay from trigger to sound in sequencer mode; covers the wait for the next block
+    private static final int SCHEDULE_AHEAD_MS = 20;
+    // Blocks the frame clock is averaged over
+    private static final int CLOCK_SMOOTHING = 32;
+    // Trigger time of a note to start at the next block
+    private static final long NOW = Long.MIN_VALUE;
+
+    private static final String ACCENT_SAMPLE = "drum_kick";
+    private static final String CLICK_SAMPLE = "drum_steel6";
+
+    private final Context mContext;
+    private final int mSampleRate;
+    private final AudioTrack mTrack;
+    private final Thread mMixer;
+    private volatile boolean mRunning = true;
+
+    // Written by the loader thread, read by the mixer
+    private final AtomicReferenceArray<short[]> mSamples =
+            new AtomicReferenceArray<short[]>(MAX_SOUNDS);
+
+    // Pending note triggers, guarded by mTriggerLock
+    private final Object mTriggerLock = new Object();
+    private final int[] mTriggers = new int[TRIGGER_CAPACITY];
+    private final long[] mTriggerTimes = new long[TRIGGER_CAPACITY];
+    private final PlayListener[] mTriggerListeners = new PlayListener[TRIGGER_CAPACITY];
+    private final long[] mTriggerReads = new long[TRIGGER_CAPACITY];
+    private int mTriggerHead;
+    private int mTriggerCount;
+
+    // Listener calls of the triggers just taken, made once mTriggerLock is
+    // released; owned by the mixing thread
+    private final PlayListener[] mTakenListeners = new PlayListener[TRIGGER_CAPACITY];
+    private final long[] mTakenReads = new long[TRIGGER_CAPACITY];
+    private final boolean[] mTakenPlayed = new boolean[TRIGGER_CAPACITY];
+    private final long[] mTakenStarts = new long[TRIGGER_CAPACITY];
+
+    // Voices and mix buffers are owned by the mixing thread
+    private final short[][] mVoiceData;
+    // Frame at which each voice plays its first sample
+    private final long[] mVoiceStart;
+    private final int[] mMix = new int[BLOCK_FRAMES];
+    private final short[] mOut = new short[BLOCK_FRAMES];
+
+    // Frame clock, owned by the mixing thread: mFrame is the first frame of
+    // the block being mixed, mClockOffset + (t - mClockBaseNanos) * rate the
+    // frame due at System.nanoTime() t
+    private final double mFramesPerNano;
+    private final int mAheadFrames;
+    private long mFrame;
+    private long mClockBaseNanos;
+    private double mClockOffset;
+    private int mClockTicks;
+
+    // Grid in use by the mixer, the frame its first beat fell on, and the next beat
+    private Grid mGridSeen;
+    private long mGridOrigin;
+    private long mBeatCount;
+
+    private volatile boolean mSequencer;
+    private volatile Grid mGrid;
+    private volatile short[] mAccent;
+    private volatile short[] mClick;
+
+    // Tempo settings, guarded by this
+    private double mTempo;
+    private int mBeatsPerBar;
+    private int mStepsPerBeat;
+    private boolean mMetronome;
+
+    private volatile int mActiveVoices;
+    private volatile long mNotesPlayed;
+    private volatile long mVoicesStolen;
+    private volatile long mTriggersDropped;
+    private volatile long mNotesLate;
+
+    /**
+     * Tempo settings as the mixer sees them; replaced as a whole.
+     */
+    private static final class Grid {
+        final double framesPerBeat;
+        final int beatsPerBar;
+        // 0 if notes are not snapped
+        final double framesPerStep;
+        final boolean metronome;
+
+        Grid(double framesPerBeat, int beatsPerBar, int stepsPerBeat, boolean metronome) {
+            this.framesPerBeat = framesPerBeat;
+            this.beatsPerBar = beatsPerBar;
+            this.framesPerStep = stepsPerBeat > 0 ? framesPerBeat / stepsPerBeat : 0;
+            this.metronome = metronome;
+        }
+    }
+
+    /**
+     * @param context   Used to open the sample resources
+     * @param polyphony Maximum number of samples sounding at once
+     */
+    public PcmAudioEngine(Context context, int polyphony) {
+        mContext = context;
+        mSampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        mVoiceData = new short[Math.max(1, polyphony)][];
+        mVoiceStart = new long[mVoiceData.length];
+        mFramesPerNano = mSampleRate / 1e9;
+        mAheadFrames = (int) ((long) mSampleRate * SCHEDULE_AHEAD_MS / 1000);
+
+        int minBytes = AudioTrack.getMinBufferSize(mSampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        // Two mix blocks is the least that keeps the track fed between writes
+        int bufferBytes = Math.max(minBytes, 2 * BLOCK_FRAMES * 2);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                bufferBytes, AudioTrack.MODE_STREAM);
+        Log.d(TAG, "output " + mSampleRate + " Hz, buffer " + bufferBytes
+                + " bytes, " + mVoiceData.length + " voices");
+
+        mMixer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mixLoop();
+            }
+        }, "PcmMixer");
+        mMixer.setDaemon(true);
+        mMixer.start();
+    }
+
+    @Override
+    public void addSound(int index, int resId) {
+        if (index < 0 || index >= MAX_SOUNDS) {
+            Log.w(TAG, "sample index out of range: " + index);
+            return;
+        }
+        try {
+            mSamples.set(index, decode(resId));
+        } catch (IOException e) {
+            Log.e(TAG, "cannot decode sample " + index, e);
+        }
+    }
+
+    private short[] decode(int resId) throws IOException {
+        InputStream in = mContext.getResources().openRawResource(resId);
+        try {
+            return WavDecoder.decode(in, mSampleRate);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void removeSound(int index) {
+        if (index >= 0 && index < MAX_SOUNDS) {
+            mSamples.set(index, null);
+        }
+    }
+
+    @Override
+    public boolean isLoaded(int index) {
+        return index >= 0 && index < MAX_SOUNDS && mSamples.get(index) != null;
+    }
+
+    @Override
+    public void playSound(int index) {
+        trigger(index, mSequencer ? System.nanoTime() : NOW, null, 0);
+    }
+
+    /**
+     * In sequencer mode, queue the note to sound at the frame that matches
+     * the given System.nanoTime(). The listener is told the time of that
+     * frame once the mixer has placed the note. Returns false without
+     * playing otherwise.
+     */
+    @Override
+    public boolean playSoundAt(int index, long timeNanos, PlayListener listener,
+                               long readNanos) {
+        if (!mSequencer) {
+            return false;
+        }
+        trigger(index, timeNanos, listener, readNanos);
+        return true;
+    }
+
+    private void trigger(int index, long timeNanos, PlayListener listener, long readNanos) {
+        if (index < 0 || index >= MAX_SOUNDS || mSamples.get(index) == null) {
+            if (listener != null) {
+                listener.onNoteDropped(readNanos);
+            }
+            return;
+        }
+        synchronized (mTriggerLock) {
+            if (mTriggerCount < TRIGGER_CAPACITY) {
+                int slot = (mTriggerHead + mTriggerCount) % TRIGGER_CAPACITY;
+                mTriggers[slot] = index;
+                mTriggerTimes[slot] = timeNanos;
+                mTriggerListeners[slot] = listener;
+                mTriggerReads[slot] = readNanos;
+                if (mTriggerCount++ == 0) {
+                    mTriggerLock.notify();
+                }
+                return;
+            }
+            // The mixer is far behind; a late note is worse than a lost one
+            mTriggersDropped++;
+        }
+        if (listener != null) {
+            listener.onNoteDropped(readNanos);
+        }
+    }
+
+    /**
+     * Place notes on the audio clock instead of starting them at the next
+     * block. Off by default.
+     */
+    public void setSequencer(boolean enabled) {
+        mSequencer = enabled;
+        wakeMixer();
+    }
+
+    public boolean isSequencer() {
+        return mSequencer;
+    }
+
+    /**
+     * Set the tempo of the grid used in sequencer mode.
+     *
+     * @param bpm          Beats per minute; 0 or less removes the grid
+     * @param beatsPerBar  Beats between metronome accents
+     * @param stepsPerBeat Grid lines per beat that notes are snapped to; 0 leaves them unsnapped
+     */
+    public synchronized void setTempo(double bpm, int beatsPerBar, int stepsPerBeat) {
+        mTempo = bpm;
+        mBeatsPerBar = Math.max(1, beatsPerBar);
+        mStepsPerBeat = Math.max(0, stepsPerBeat);
+        updateGrid();
+    }
+
+    /**
+     * Click every beat of the grid in sequencer mode, accenting the first of
+     * each bar. May block while the click samples are decoded.
+     */
+    public synchronized void setMetronome(boolean enabled) {
+        if (enabled && mClick == null) {
+            try {
+                mAccent = decode(findSample(ACCENT_SAMPLE));
+                mClick = decode(findSample(CLICK_SAMPLE));
+            } catch (IOException e) {
+                Log.e(TAG, "cannot load the metronome", e);
+                return;
+            }
+        }
+        mMetronome = enabled;
+        updateGrid();
+    }
+
+    private int findSample(String name) throws IOException {
+        int resId = mContext.getResources().getIdentifier(name, "raw",
+                mContext.getPackageName());
+        if (resId == 0) {
+            throw new IOException("no raw resource named " + name);
+        }
+        return resId;
+    }
+
+    /**
+     * Publish the tempo settings to the mixer. Caller holds the object lock.
+     */
+    private void updateGrid() {
+        mGrid = mTempo > 0
+                ? new Grid(mSampleRate * 60 / mTempo, mBeatsPerBar, mStepsPerBeat, mMetronome)
+                : null;
+        wakeMixer();
+    }
+
+    private void wakeMixer() {
+        synchronized (mTriggerLock) {
+            mTriggerLock.notify();
+        }
+    }
+
+    /**
+     * Stop the mixing thread and free the samples. Does not wait: the mixer
+     * releases the track itself once its current write has returned.
+     */
+    @Override
+    public void close() {
+        mRunning = false;
+        wakeMixer();
+        for (int i = 0; i < MAX_SOUNDS; i++) {
+            mSamples.set(i, null);
+        }
+    }
+
+    /**
+     * Returns the number of voices that were sounding after the last mix block.
+     */
+    public int getActiveVoices() {
+        return mActiveVoices;
+    }
+
+    /**
+     * Returns the number of notes started so far.
+     */
+    public long getNotesPlayed() {
+        return mNotesPlayed;
+    }
+
+    /**
+     * Returns how many notes cut off an older voice because all voices were busy.
+     */
+    public long getVoicesStolen() {
+        return mVoicesStolen;
+    }
+
+    /**
+     * Returns how many notes were discarded because the trigger queue was full.
+     */
+    public long getTriggersDropped() {
+        return mTriggersDropped;
+    }
+
+    /**
+     * Returns how many sequenced notes arrived after their frame, or with a
+     * grid their grid line, was mixed and were started later instead.
+     */
+    public long getNotesLate() {
+        return mNotesLate;
+    }
+
+    private void mixLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        mTrack.play();
+        int idleBlocks = 0;
+        int maxIdleBlocks = (int) ((long) mSampleRate * IDLE_TIMEOUT_MS / 1000 / BLOCK_FRAMES);
+        while (mRunning) {
+            if (!takeTriggers(idleBlocks >= maxIdleBlocks)) {
+                break;
+            }
+            if (mGridSeen != null && mGridSeen.metronome) {
+                clickMetronome(mGridSeen);
+                idleBlocks = 0;
+            }
+            if (mixBlock()) {
+                idleBlocks = 0;
+            } else {
+                idleBlocks++;
+            }
+            // Blocks while the track buffer is full, which paces the loop
+            mTrack.write(mOut, 0, BLOCK_FRAMES);
+            mFrame += BLOCK_FRAMES;
+        }
+        // Only this thread writes to the track, so only it may free it
+        mTrack.stop();
+        mTrack.release();
+    }
+
+    /**
+     * Start a voice for every pending trigger. When idle is set, waits for
+     * the next trigger first. Returns false if the engine was closed.
+     */
+    private boolean takeTriggers(boolean idle) {
+        int taken = 0;
+        synchronized (mTriggerLock) {
+            if (idle && mTriggerCount == 0 && !isClicking()) {
+                mTrack.pause();
+                while (mRunning && mTriggerCount == 0 && !isClicking()) {
+                    try {
+                        mTriggerLock.wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                if (!mRunning) {
+                    return false;
+                }
+                mTrack.play();
+                // Frames stood still while paused
+                mClockTicks = 0;
+            }
+            tickClock();
+            Grid grid = mSequencer ? mGrid : null;
+            if (grid != mGridSeen) {
+                mGridSeen = grid;
+                mGridOrigin = mFrame;
+                mBeatCount = 0;
+            }
+            while (mTriggerCount > 0) {
+                int slot = mTriggerHead;
+                short[] data = mSamples.get(mTriggers[slot]);
+                PlayListener listener = mTriggerListeners[slot];
+                mTriggerListeners[slot] = null;
+                long started = 0;
+                if (data != null) {
+                    long frame = frameOf(mTriggerTimes[slot]);
+                    startVoice(data, frame);
+                    mNotesPlayed++;
+                    started = nanosOf(frame);
+                }
+                // else unloaded while it was queued
+                if (listener != null) {
+                    mTakenListeners[taken] = listener;
+                    mTakenReads[taken] = mTriggerReads[slot];
+                    mTakenPlayed[taken] = data != null;
+                    mTakenStarts[taken] = started;
+                    taken++;
+                }
+                mTriggerHead = (slot + 1) % TRIGGER_CAPACITY;
+                mTriggerCount--;
+            }
+        }
+        // Listeners may take their own locks; producers must not wait on them
+        for (int i = 0; i < taken; i++) {
+            PlayListener listener = mTakenListeners[i];
+            mTakenListeners[i] = null;
+            if (mTakenPlayed[i]) {
+                listener.onNoteStarted(mTakenReads[i], mTakenStarts[i]);
+            } else {
+                listener.onNoteDropped(mTakenReads[i]);
+            }
+        }
+        return mRunning;
+    }
+
+    private boolean isClicking() {
+        Grid grid = mGrid;
+        return mSequencer && grid != null && grid.metronome;
+    }
+
+    /**
+     * Fit the frame clock to the time the current block is mixed at. Single
+     * readings jitter with the track's write wakeups; the average does not.
+     */
+    private void tickClock() {
+        long now = System.nanoTime();
+        if (mClockTicks == 0) {
+            mClockBaseNanos = now;
+            mClockOffset = mFrame;
+        }
+        if (mClockTicks < CLOCK_SMOOTHING) {
+            mClockTicks++;
+        }
+        double offset = mFrame - (now - mClockBaseNanos) * mFramesPerNano;
+        mClockOffset += (offset - mClockOffset) / mClockTicks;
+    }
+
+    /**
+     * Returns the frame a note triggered at the given time starts at:
+     * SCHEDULE_AHEAD_MS after it on the frame clock, snapped to the grid,
+     * and never before the current block.
+     */
+    private long frameOf(long timeNanos) {
+        if (timeNanos == NOW) {
+            return mFrame;
+        }
+        long frame = (long) (mClockOffset + (timeNanos - mClockBaseNanos) * mFramesPerNano)
+                + mAheadFrames;
+        Grid grid = mGridSeen;
+        if (grid != null && grid.framesPerStep > 0) {
+            double step = Math.rint((frame - mGridOrigin) / grid.framesPerStep);
+            // The nearest grid line may already be mixed; take the next one then
+            double first = Math.ceil((mFrame - mGridOrigin) / grid.framesPerStep);
+            if (step < first) {
+                mNotesLate++;
+                step = first;
+            }
+            return Math.max(mFrame, mGridOrigin + Math.round(step * grid.framesPerStep));
+        }
+        if (frame < mFrame) {
+            mNotesLate++;
+            return mFrame;
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the given frame is due on the frame clock.
+     */
+    private long nanosOf(long frame) {
+        return mClockBaseNanos + (long) ((frame - mClockOffset) / mFramesPerNano);
+    }
+
+    /**
+     * Start the clicks of the beats that fall into the current block.
+     */
+    private void clickMetronome(Grid grid) {
+        long end = mFrame + BLOCK_FRAMES;
+        while (true) {
+            long beat = mGridOrigin + Math.round(mBeatCount * grid.framesPerBeat);
+            if (beat >= end) {
+                return;
+            }
+            startVoice(mBeatCount % grid.beatsPerBar == 0 ? mAccent : mClick,
+                    Math.max(beat, mFrame));
+            mBeatCount++;
+        }
+    }
+
+    private void startVoice(short[] data, long startFrame) {
+        if (data == null) {
+            return;
+        }
+        int target = -1;
+        int oldest = -1;
+        for (int v = 0; v < mVoiceData.length; v++) {
+            if (mVoiceData[v] == null) {
+                target = v;
+                break;
+            }
+            if (oldest < 0 || mVoiceStart[v] < mVoiceStart[oldest]) {
+                oldest = v;
+            }
+        }
+        if (target < 0) {
+            target = oldest;
+            mVoicesStolen++;
+        }
+        mVoiceData[target] = data;
+        mVoiceStart[target] = startFrame;
+    }
+
+    /**
+     * Mix one block of all active voices into mOut. Returns false if nothing
+     * was sounding.
+     */
+    private boolean mixBlock() {
+        int[] mix = mMix;
+        int active = 0;
+        for (int i = 0; i < BLOCK_FRAMES; i++) {
+            mix[i] = 0;
+        }
+        for (int v = 0; v < mVoiceData.length; v++) {
+            short[] data = mVoiceData[v];
+            if (data == null) {
+                continue;
+            }
+            // A voice may start anywhere in the block, or in a later one
+            long start = mVoiceStart[v];
+            int from = (int) Math.max(0, Math.min(BLOCK_FRAMES, start - mFrame));
+            int pos = (int) (mFrame + from - start);
+            int n = Math.min(BLOCK_FRAMES - from, data.length - pos);
+            for (int i = 0; i < n; i++) {
+                mix[from + i] += data[pos + i];
+            }
+            if (pos + n >= data.length) {
+                mVoiceData[v] = null;
+            } else {
+                active++;
+            }
+        }
+        short[] out = mOut;
+        for (int i = 0; i < BLOCK_FRAMES; i++) {
+            int s = mix[i];
+            out[i] = (short) (s > Short.MAX_VALUE ? Short.MAX_VALUE
+                    : s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+        }
+        boolean sounding = active > 0 || mActiveVoices > 0;
+        mActiveVoices = active;
+        return sounding;
+    }
+}
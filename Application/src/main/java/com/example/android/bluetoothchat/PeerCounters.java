@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and health counters of one peer, kept across its reconnects.
+ *
+ * <p>Every counter is its own atomic, so the connection's tasks update them
+ * without locks and {@link #snapshot()} can be taken from any thread at
+ * any time. Each counter has one or two writers at a time (the read task
+ * or the writer task of the current connection, and the sound engine for
+ * notes it drops), so they are hardly contended and striping them would
+ * gain nothing.</p>
+ */
+public class PeerCounters {
+
+    private final String mAddress;
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mEventsDecoded = new AtomicLong();
+    private final AtomicLong mEventsDropped = new AtomicLong();
+    private final AtomicLong mWriteErrors = new AtomicLong();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mLastSeenMillis = new AtomicLong();
+
+    public PeerCounters(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Count a chunk received from the peer and note the time.
+     */
+    public void onRead(int bytes) {
+        mBytesIn.addAndGet(bytes);
+        mLastSeenMillis.lazySet(System.currentTimeMillis());
+    }
+
+    /**
+     * Count the events decoded from one chunk, and how many of them were
+     * not played.
+     */
+    public void onDecoded(int events, int dropped) {
+        if (events > 0) {
+            mEventsDecoded.addAndGet(events);
+        }
+        if (dropped > 0) {
+            mEventsDropped.addAndGet(dropped);
+        }
+    }
+
+    public void onWritten(int bytes) {
+        mBytesOut.addAndGet(bytes);
+    }
+
+    public void onWriteError() {
+        mWriteErrors.incrementAndGet();
+    }
+
+    /**
+     * Count a link to the peer; every one after the first is a reconnect.
+     */
+    public void onConnected() {
+        mConnects.incrementAndGet();
+        mLastSeenMillis.lazySet(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the current counts. Each value is read atomically, the set
+     * of them is not, which is fine for monitoring.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.address = mAddress;
+        snapshot.bytesIn = mBytesIn.get();
+        snapshot.bytesOut = mBytesOut.get();
+        snapshot.eventsDecoded = mEventsDecoded.get();
+        snapshot.eventsDropped = mEventsDropped.get();
+        snapshot.writeErrors = mWriteErrors.get();
+        snapshot.reconnects = Math.max(0, mConnects.get() - 1);
+        snapshot.lastSeenMillis = mLastSeenMillis.get();
+        return snapshot;
+    }
+
+    /**
+     * Point-in-time counts of one peer.
+     */
+    public static class Snapshot {
+        /** Address of the peer. */
+        public String address;
+        /** Bytes received. */
+        public long bytesIn;
+        /** Bytes written to the peer's stream. */
+        public long bytesOut;
+        /** Notes decoded from the received bytes. */
+        public long eventsDecoded;
+        /** Decoded notes that were not played: unmapped, wrong kit or no engine. */
+        public long eventsDropped;
+        /** Writes that failed and took the link down. */
+        public long writeErrors;
+        /** Links established after the first one. */
+        public long reconnects;
+        /** Wall-clock time data last arrived or the link came up, 0 if never. */
+        public long lastSeenMillis;
+
+        @Override
+        public String toString() {
+            String lastSeen = lastSeenMillis == 0 ? "never"
+                    : (System.currentTimeMillis() - lastSeenMillis) + "ms ago";
+            return address + ": in " + bytesIn + "B, out " + bytesOut + "B"
+                    + ", events " + eventsDecoded + " (dropped " + eventsDropped + ")"
+                    + ", write errors " + writeErrors + ", reconnects " + reconnects
+                    + ", last seen " + lastSeen;
+        }
+    }
+}
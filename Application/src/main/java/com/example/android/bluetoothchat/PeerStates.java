@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection state of every peer, plus counts of peers per state.
+ *
+ * <p>Each peer moves through its own small state machine:</p>
+ * <pre>
+ * IDLE -> CONNECTING -> CONNECTED -> IDLE
+ *              |                      ^
+ *              +------- failed -------+
+ * </pre>
+ * <p>An incoming connection goes from IDLE straight to CONNECTED. Transitions
+ * are compare-and-set on the peer's own state, so peers never wait on each
+ * other, and the counts behind {@link #getConnectedCount()} and
+ * {@link #getConnectingCount()} are readable without a lock.</p>
+ */
+public class PeerStates {
+
+    /** Not connected and no attempt in progress. */
+    public static final int IDLE = 0;
+    /** An outgoing attempt is in progress. */
+    public static final int CONNECTING = 1;
+    /** A link is up. */
+    public static final int CONNECTED = 2;
+
+    private final ConcurrentHashMap<String, AtomicInteger> mStates =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    // Peers per state; only CONNECTING and CONNECTED are counted
+    private final AtomicInteger[] mCounts = {
+            new AtomicInteger(), new AtomicInteger(), new AtomicInteger()
+    };
+
+    /**
+     * Returns the state of a peer; unknown peers are {@link #IDLE}.
+     */
+    public int get(String address) {
+        AtomicInteger state = mStates.get(address);
+        return state == null ? IDLE : state.get();
+    }
+
+    /**
+     * Move a peer from one state to another.
+     *
+     * @return false if the peer was not in the expected state
+     */
+    public boolean transition(String address, int from, int to) {
+        AtomicInteger state = stateOf(address);
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        count(from, to);
+        return true;
+    }
+
+    /**
+     * Move a peer to a state from whatever state it is in.
+     *
+     * @return The previous state
+     */
+    public int moveTo(String address, int to) {
+        AtomicInteger state = stateOf(address);
+        int from = state.getAndSet(to);
+        count(from, to);
+        return from;
+    }
+
+    /**
+     * Put every peer back to {@link #IDLE}.
+     */
+    public void reset() {
+        for (AtomicInteger state : mStates.values()) {
+            count(state.getAndSet(IDLE), IDLE);
+        }
+    }
+
+    public int getConnectedCount() {
+        return mCounts[CONNECTED].get();
+    }
+
+    public int getConnectingCount() {
+        return mCounts[CONNECTING].get();
+    }
+
+    private AtomicInteger stateOf(String address) {
+        AtomicInteger state = mStates.get(address);
+        if (state == null) {
+            AtomicInteger created = new AtomicInteger(IDLE);
+            state = mStates.putIfAbsent(address, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    private void count(int from, int to) {
+        if (from != to) {
+            // Count the new state first, so a reader never sees the peer in neither
+            mCounts[to].incrementAndGet();
+            mCounts[from].decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Plays notes at the times chosen by the {@link JitterBuffer}s of all
+ * connections, from one high-priority thread.
+ *
+ * <p>Pending notes are kept in a binary heap of preallocated arrays, so
+ * scheduling does not allocate. The thread sleeps until the earliest note
+ * is due, waking early when an even earlier one is scheduled. If the heap
+ * is full the note is played at once.</p>
+ */
+public class PlayoutScheduler {
+
+    /**
+     * Plays a note when it is due.
+     */
+    public interface Player {
+        /**
+         * @param index     The sound index passed to {@link #schedule}
+         * @param readNanos The read time passed to {@link #schedule}
+         */
+        public void play(int index, long readNanos);
+    }
+
+    private static final int CAPACITY = 1024;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    // Min-heap by due time, guarded by mLock
+    private final long[] mDue = new long[CAPACITY];
+    private final int[] mIndex = new int[CAPACITY];
+    private final long[] mRead = new long[CAPACITY];
+    private final Player[] mPlayer = new Player[CAPACITY];
+    private int mSize;
+    private boolean mStopped;
+    private final Thread mThread;
+
+    private volatile long mScheduled;
+    private volatile long mOverflows;
+    private volatile long mMaxWakeupErrorNanos;
+
+    /**
+     * @param threads Creates the playout thread, e.g. one with audio priority
+     */
+    public PlayoutScheduler(ThreadFactory threads) {
+        mThread = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        });
+        mThread.setName("PlayoutScheduler");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Play a note at the given time, or right now if that has passed.
+     *
+     * @param dueNanos  {@link System#nanoTime()} at which to play
+     * @param player    Plays the note
+     * @param index     Sound index of the note
+     * @param readNanos Passed back to the player, e.g. for latency figures
+     */
+    public void schedule(long dueNanos, Player player, int index, long readNanos) {
+        mLock.lock();
+        try {
+            if (mSize < CAPACITY && !mStopped) {
+                int i = mSize++;
+                // Sift up
+                while (i > 0) {
+                    int parent = (i - 1) / 2;
+                    if (mDue[parent] - dueNanos <= 0) {
+                        break;
+                    }
+                    move(parent, i);
+                    i = parent;
+                }
+                set(i, dueNanos, player, index, readNanos);
+                mScheduled++;
+                if (i == 0) {
+                    // New earliest note; the thread may be sleeping for a later one
+                    mChanged.signal();
+                }
+                return;
+            }
+            mOverflows++;
+        } finally {
+            mLock.unlock();
+        }
+        player.play(index, readNanos);
+    }
+
+    /**
+     * Stop the thread. Notes still pending are dropped.
+     */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mStopped = true;
+            for (int i = 0; i < mSize; i++) {
+                mPlayer[i] = null;
+            }
+            mSize = 0;
+            mChanged.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Player player;
+            int index;
+            long read;
+            long due;
+            mLock.lock();
+            try {
+                while (true) {
+                    if (mStopped) {
+                        return;
+                    }
+                    if (mSize > 0) {
+                        long wait = mDue[0] - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        mChanged.awaitNanos(wait);
+                    } else {
+                        mChanged.await();
+                    }
+                }
+                due = mDue[0];
+                player = mPlayer[0];
+                index = mIndex[0];
+                read = mRead[0];
+                removeFirst();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mLock.unlock();
+            }
+            long error = System.nanoTime() - due;
+            if (error > mMaxWakeupErrorNanos) {
+                mMaxWakeupErrorNanos = error;
+            }
+            player.play(index, read);
+        }
+    }
+
+    private void removeFirst() {
+        int last = --mSize;
+        long due = mDue[last];
+        Player player = mPlayer[last];
+        int index = mIndex[last];
+        long read = mRead[last];
+        mPlayer[last] = null;
+        if (last == 0) {
+            return;
+        }
+        // Sift the last entry down from the root
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && mDue[child + 1] - mDue[child] < 0) {
+                child++;
+            }
+            if (due - mDue[child] <= 0) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        set(i, due, player, index, read);
+    }
+
+    private void move(int from, int to) {
+        set(to, mDue[from], mPlayer[from], mIndex[from], mRead[from]);
+    }
+
+    private void set(int i, long due, Player player, int index, long read) {
+        mDue[i] = due;
+        mPlayer[i] = player;
+        mIndex[i] = index;
+        mRead[i] = read;
+    }
+
+    /**
+     * Returns the number of notes queued so far.
+     */
+    public long getScheduled() {
+        return mScheduled;
+    }
+
+    /**
+     * Returns the number of notes played early because the heap was full.
+     */
+    public long getOverflows() {
+        return mOverflows;
+    }
+
+    /**
+     * Returns the worst lateness of the thread's wakeups.
+     */
+    public long getMaxWakeupErrorNanos() {
+        return mMaxWakeupErrorNanos;
+    }
+}
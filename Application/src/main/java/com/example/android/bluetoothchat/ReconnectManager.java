@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redials known peers after their link drops.
+ *
+ * <p>Every peer that connects over a redialable link (see
+ * {@link Transport.Channel#isRedialable()}) becomes known. When its link
+ * is lost the manager dials it again, and after each failed attempt waits
+ * an exponentially growing, jittered delay before the next one. The jitter
+ * keeps several sensors that dropped together from retrying in lockstep.
+ * Peers are handled independently, so they are redialed in parallel, bounded
+ * only by the scheduler's blocking pool.</p>
+ *
+ * <p>For each peer the manager records how long it took from losing the link
+ * to having it back.</p>
+ */
+public class ReconnectManager {
+    private static final String TAG = "ReconnectManager";
+
+    private static final long INITIAL_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 30000;
+
+    /** The peer is connected. */
+    public static final int PEER_CONNECTED = 0;
+    /** The link is down and the next attempt is scheduled. */
+    public static final int PEER_WAITING = 1;
+    /** An attempt is in progress. */
+    public static final int PEER_DIALING = 2;
+
+    private static final class Peer {
+        final String address;
+        boolean secure;
+        int state = PEER_CONNECTED;
+        // Bumped whenever a scheduled attempt becomes obsolete
+        int generation;
+        long backoffMs = INITIAL_DELAY_MS;
+        boolean lost;
+        long lostAt;
+        int attempts;
+        int reconnects;
+        long totalReconnectMs;
+        long lastReconnectMs;
+        long maxReconnectMs;
+
+        Peer(String address, boolean secure) {
+            this.address = address;
+            this.secure = secure;
+        }
+    }
+
+    private final IoScheduler mScheduler;
+    private final Dialer mDialer;
+    private final Random mRandom = new Random();
+    private final Map<String, Peer> mPeers = new LinkedHashMap<String, Peer>();
+    private boolean mEnabled = true;
+
+    /**
+     * @param scheduler Runs the backoff timers
+     * @param dialer    Starts attempts; their outcome must be reported back with
+     *                  {@link #onConnected(String, boolean)} or {@link #onAttemptFailed(String)}
+     */
+    public ReconnectManager(IoScheduler scheduler, Dialer dialer) {
+        mScheduler = scheduler;
+        mDialer = dialer;
+    }
+
+    /**
+     * Turn redialing on or off. Turning it off cancels scheduled attempts
+     * but keeps the known peers.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            cancelAll();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Remember a peer so it is redialed when lost, or dialed now if it is not connected.
+     *
+     * @param connected Whether the peer is connected at the moment
+     */
+    public synchronized void addPeer(String address, boolean secure, boolean connected) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer(address, secure);
+            mPeers.put(address, peer);
+        }
+        peer.secure = secure;
+        if (!connected && peer.state == PEER_CONNECTED) {
+            onConnectionLost(address);
+        }
+    }
+
+    /**
+     * Stop tracking a peer; a scheduled attempt for it is dropped.
+     */
+    public synchronized void forgetPeer(String address) {
+        Peer peer = mPeers.remove(address);
+        if (peer != null) {
+            peer.generation++;
+        }
+    }
+
+    /**
+     * Returns the addresses of the known peers.
+     */
+    public synchronized List<String> getPeers() {
+        return new ArrayList<String>(mPeers.keySet());
+    }
+
+    /**
+     * Cancel all scheduled attempts. Attempts already dialing run to
+     * completion, but their failure no longer schedules another; every peer
+     * is left in {@link #PEER_CONNECTED} so that a later loss or
+     * {@link #addPeer(String, boolean, boolean)} starts redialing afresh.
+     */
+    public synchronized void cancelAll() {
+        for (Peer peer : mPeers.values()) {
+            peer.generation++;
+            if (peer.state == PEER_WAITING || peer.state == PEER_DIALING) {
+                peer.state = PEER_CONNECTED;
+                peer.lost = false;
+            }
+        }
+    }
+
+    /**
+     * A link to the peer came up, incoming or outgoing. Makes it a known peer.
+     */
+    public synchronized void onConnected(String address, boolean secure) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            mPeers.put(address, new Peer(address, secure));
+            return;
+        }
+        if (peer.lost) {
+            long elapsed = nowMillis() - peer.lostAt;
+            peer.reconnects++;
+            peer.totalReconnectMs += elapsed;
+            peer.lastReconnectMs = elapsed;
+            peer.maxReconnectMs = Math.max(peer.maxReconnectMs, elapsed);
+            peer.lost = false;
+            if (Log.isLoggable(Log.INFO)) {
+                Log.i(TAG, address + " reconnected after " + elapsed + " ms, "
+                        + peer.attempts + " attempts");
+            }
+        }
+        peer.generation++;
+        peer.state = PEER_CONNECTED;
+        peer.backoffMs = INITIAL_DELAY_MS;
+        peer.attempts = 0;
+    }
+
+    /**
+     * The peer's link dropped. Schedules the first attempt if the peer is known.
+     */
+    public synchronized void onConnectionLost(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null || !mEnabled || peer.state != PEER_CONNECTED) {
+            return;
+        }
+        peer.lost = true;
+        peer.lostAt = nowMillis();
+        peer.backoffMs = INITIAL_DELAY_MS;
+        peer.attempts = 0;
+        scheduleAttempt(peer);
+    }
+
+    /**
+     * An outgoing attempt failed.
+     *
+     * @return true if it was one of ours and the next attempt is scheduled
+     */
+    public synchronized boolean onAttemptFailed(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null || peer.state != PEER_DIALING) {
+            return false;
+        }
+        if (!mEnabled) {
+            peer.state = PEER_CONNECTED;
+            peer.lost = false;
+            return false;
+        }
+        peer.backoffMs = Math.min(peer.backoffMs * 2, MAX_DELAY_MS);
+        scheduleAttempt(peer);
+        return true;
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private void scheduleAttempt(final Peer peer) {
+        peer.state = PEER_WAITING;
+        final int generation = ++peer.generation;
+        // Half the backoff fixed, half random
+        long half = peer.backoffMs / 2;
+        long delay = half + (long) (mRandom.nextDouble() * half);
+        mScheduler.schedule(new IoScheduler.Task() {
+            @Override
+            protected void runTask() {
+                attempt(peer, generation);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(Peer peer, int generation) {
+        synchronized (this) {
+            if (peer.generation != generation || peer.state != PEER_WAITING) {
+                return;
+            }
+            peer.state = PEER_DIALING;
+            peer.attempts++;
+        }
+        mDialer.dial(peer.address, peer.secure);
+    }
+
+    /**
+     * Returns a snapshot of every known peer.
+     */
+    public synchronized List<PeerStats> getStats() {
+        List<PeerStats> stats = new ArrayList<PeerStats>(mPeers.size());
+        for (Peer peer : mPeers.values()) {
+            PeerStats s = new PeerStats();
+            s.address = peer.address;
+            s.state = peer.state;
+            s.attempts = peer.attempts;
+            s.reconnects = peer.reconnects;
+            s.lastReconnectMillis = peer.lastReconnectMs;
+            s.meanReconnectMillis = peer.reconnects == 0 ? 0
+                    : peer.totalReconnectMs / peer.reconnects;
+            s.maxReconnectMillis = peer.maxReconnectMs;
+            stats.add(s);
+        }
+        return stats;
+    }
+
+    /**
+     * Monotonic milliseconds; only differences are meaningful.
+     */
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Point-in-time view of one peer.
+     */
+    public static class PeerStats {
+        public String address;
+        /** {@link #PEER_CONNECTED}, {@link #PEER_WAITING} or {@link #PEER_DIALING}. */
+        public int state;
+        /** Attempts since the link was lost; 0 while connected. */
+        public int attempts;
+        /** Times the link was restored. */
+        public int reconnects;
+        /** Time from losing the link to having it back, last time. */
+        public long lastReconnectMillis;
+        /** Mean time from losing the link to having it back. */
+        public long meanReconnectMillis;
+        /** Worst time from losing the link to having it back. */
+        public long maxReconnectMillis;
+
+        @Override
+        public String toString() {
+            return address + " state " + state + ", attempts " + attempts
+                    + ", reconnects " + reconnects + ", reconnect ms last "
+                    + lastReconnectMillis + " mean " + meanReconnectMillis
+                    + " max " + maxReconnectMillis;
+        }
+    }
+}
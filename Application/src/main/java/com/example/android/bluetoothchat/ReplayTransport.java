@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Transport} whose peers live in memory and are driven by the
+ * process itself, as {@link SessionReplayer} and {@link LoadGenerator} do.
+ * Each peer "dials in" with {@link #dialIn(String)}, is picked up by the
+ * service's listener like a real incoming link, and receives whatever is
+ * fed to its channel.
+ *
+ * <p>Outgoing connections are not possible; run the service with
+ * auto-reconnect off. Bytes the service writes are counted and discarded.</p>
+ */
+public class ReplayTransport implements Transport {
+
+    // Bytes buffered per peer before feed() waits for the service to read
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final long ACCEPT_POLL_MS = 100;
+
+    private final LinkedBlockingQueue<ReplayChannel> mIncoming =
+            new LinkedBlockingQueue<ReplayChannel>();
+
+    /**
+     * Create a peer and queue it for the next accept().
+     *
+     * @param address Address the service will see for the peer
+     * @return The channel to feed the peer's bytes into
+     */
+    public ReplayChannel dialIn(String address) {
+        ReplayChannel channel = new ReplayChannel(address);
+        mIncoming.add(channel);
+        return channel;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid, boolean secure) {
+        return new ServerChannel() {
+            private volatile boolean mmClosed;
+
+            @Override
+            public Channel accept() throws IOException {
+                // Secure and insecure listeners share the queue; poll so close() is noticed
+                while (!mmClosed) {
+                    try {
+                        ReplayChannel channel = mIncoming.poll(ACCEPT_POLL_MS,
+                                TimeUnit.MILLISECONDS);
+                        if (channel != null) {
+                            return channel;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                throw new IOException("listener closed");
+            }
+
+            @Override
+            public void close() {
+                mmClosed = true;
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid, boolean secure) throws IOException {
+        throw new IOException("replayed peers only connect in, cannot dial " + address);
+    }
+
+    /**
+     * One in-memory peer. The feeding side calls {@link #feed} and
+     * {@link #finish()}; the service reads through {@link #getInputStream()}.
+     */
+    public static class ReplayChannel implements Channel {
+        private final String mAddress;
+        private final byte[] mPipe = new byte[PIPE_SIZE];
+        // Guarded by mPipe
+        private int mHead;
+        private int mCount;
+        private boolean mFinished;
+        private boolean mClosed;
+        private final AtomicLong mBytesWritten = new AtomicLong();
+
+        private final InputStream mIn = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                synchronized (mPipe) {
+                    while (mCount == 0) {
+                        if (mClosed) {
+                            throw new IOException("channel closed");
+                        }
+                        if (mFinished) {
+                            return -1;
+                        }
+                        waitOnPipe();
+                    }
+                    int read = Math.min(length, mCount);
+                    int first = Math.min(read, mPipe.length - mHead);
+                    System.arraycopy(mPipe, mHead, buffer, offset, first);
+                    System.arraycopy(mPipe, 0, buffer, offset + first, read - first);
+                    mHead = (mHead + read) % mPipe.length;
+                    mCount -= read;
+                    mPipe.notifyAll();
+                    return read;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (mPipe) {
+                    return mCount;
+                }
+            }
+        };
+
+        private final OutputStream mOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                synchronized (mPipe) {
+                    if (mClosed) {
+                        throw new IOException("channel closed");
+                    }
+                }
+                mBytesWritten.addAndGet(length);
+            }
+        };
+
+        ReplayChannel(String address) {
+            mAddress = address;
+        }
+
+        /**
+         * Hand bytes to the service, waiting while its buffer is full.
+         *
+         * @return false if the service closed the channel; the bytes are dropped
+         */
+        public boolean feed(byte[] data, int offset, int length) throws InterruptedException {
+            synchronized (mPipe) {
+                while (length > 0) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    if (mCount == mPipe.length) {
+                        mPipe.wait();
+                        continue;
+                    }
+                    int tail = (mHead + mCount) % mPipe.length;
+                    int copy = Math.min(length, Math.min(mPipe.length - mCount,
+                            mPipe.length - tail));
+                    System.arraycopy(data, offset, mPipe, tail, copy);
+                    mCount += copy;
+                    offset += copy;
+                    length -= copy;
+                    mPipe.notifyAll();
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Hand bytes to the service unless its buffer lacks room for all of
+         * them. Never waits.
+         *
+         * @return false if nothing was taken: buffer full or channel closed
+         */
+        public boolean offer(byte[] data, int offset, int length) {
+            synchronized (mPipe) {
+                if (mClosed || mPipe.length - mCount < length) {
+                    return false;
+                }
+                try {
+                    return feed(data, offset, length);
+                } catch (InterruptedException e) {
+                    // Cannot happen, there is room for everything
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * End the peer's stream: the service reads what is buffered, then
+         * sees the link drop.
+         */
+        public void finish() {
+            synchronized (mPipe) {
+                mFinished = true;
+                mPipe.notifyAll();
+            }
+        }
+
+        /**
+         * Returns the number of bytes the service wrote to this peer.
+         */
+        public long getBytesWritten() {
+            return mBytesWritten.get();
+        }
+
+        private void waitOnPipe() throws IOException {
+            try {
+                mPipe.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        @Override
+        public void connect() {
+            // Replayed peers are always incoming, hence already connected
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mIn;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "replay " + mAddress;
+        }
+
+        @Override
+        public boolean isRedialable() {
+            // Replayed peers only ever dial in
+            return false;
+        }
+
+        @Override
+        public void close() {
+            synchronized (mPipe) {
+                mClosed = true;
+                mPipe.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} backed by Bluetooth RFCOMM sockets.
+ */
+public class RfcommTransport implements Transport {
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid, boolean secure) throws IOException {
+        final BluetoothServerSocket serverSocket;
+        if (secure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
+        }
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return new RfcommChannel(serverSocket.accept(), false);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket;
+        if (secure) {
+            socket = device.createRfcommSocketToServiceRecord(uuid);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(uuid);
+        }
+        return new RfcommChannel(socket, true);
+    }
+
+    private class RfcommChannel implements Channel {
+        private final BluetoothSocket mSocket;
+        private final boolean mOutgoing;
+
+        RfcommChannel(BluetoothSocket socket, boolean outgoing) {
+            mSocket = socket;
+            mOutgoing = outgoing;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!mOutgoing) {
+                return;
+            }
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public boolean isRedialable() {
+            // The MAC address works for accepted and dialed links alike
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
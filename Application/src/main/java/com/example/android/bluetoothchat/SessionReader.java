@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the records written by {@link SessionRecorder}, segment after
+ * segment, in the order they were recorded.
+ *
+ * <pre>
+ * SessionReader reader = new SessionReader(dir);
+ * while (reader.next()) {
+ *     use(reader.getType(), reader.getDeviceId(), reader.getData(), reader.getLength());
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * <p>The data buffer is reused by every {@link #next()}. A segment cut
+ * short, e.g. by a crash during recording, ends at its last whole record.
+ * Device records that a segment repeats from the previous one are skipped.
+ * Uses no Android APIs.</p>
+ */
+public class SessionReader implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<File> mSegments;
+    private int mNextSegment;
+    private DataInputStream mIn;
+    private long mStartMillis;
+
+    private int mType;
+    private int mDeviceId;
+    private long mTimeNanos;
+    private int mLength;
+    private final byte[] mData = new byte[0xffff];
+    // Devices open at the end of the previous segment, by id
+    private final List<Integer> mOpen = new ArrayList<Integer>();
+    private final List<Integer> mCarried = new ArrayList<Integer>();
+
+    /**
+     * @param dir A directory written by one {@link SessionRecorder}
+     * @throws IOException if it holds no segments
+     */
+    public SessionReader(File dir) throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.endsWith(SessionRecorder.SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new IOException("no recording in " + dir);
+        }
+        // Names carry the session start and a zero-padded segment number
+        Arrays.sort(files);
+        mSegments = Arrays.asList(files);
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return false at the end of the recording
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (mIn == null && !openNextSegment()) {
+                return false;
+            }
+            try {
+                mType = mIn.readUnsignedByte();
+                mDeviceId = mIn.readInt();
+                mTimeNanos = mIn.readLong();
+                mLength = mIn.readUnsignedShort();
+                mIn.readFully(mData, 0, mLength);
+            } catch (EOFException e) {
+                closeSegment();
+                continue;
+            }
+            if (mType == SessionRecorder.TYPE_DEVICE) {
+                if (mCarried.remove(Integer.valueOf(mDeviceId))) {
+                    // Repeated at the start of a segment; already reported
+                    continue;
+                }
+                mOpen.add(mDeviceId);
+            } else if (mType == SessionRecorder.TYPE_CLOSED) {
+                mOpen.remove(Integer.valueOf(mDeviceId));
+            }
+            return true;
+        }
+    }
+
+    private boolean openNextSegment() throws IOException {
+        if (mNextSegment == mSegments.size()) {
+            return false;
+        }
+        File file = mSegments.get(mNextSegment++);
+        mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (mIn.readInt() != SessionRecorder.MAGIC) {
+                throw new IOException(file + " is not a session segment");
+            }
+            int version = mIn.readUnsignedShort();
+            if (version != SessionRecorder.VERSION) {
+                throw new IOException(file + ": unknown version " + version);
+            }
+            mIn.readUnsignedShort();
+            mStartMillis = mIn.readLong();
+        } catch (IOException e) {
+            closeSegment();
+            throw e;
+        }
+        mCarried.clear();
+        mCarried.addAll(mOpen);
+        return true;
+    }
+
+    private void closeSegment() throws IOException {
+        if (mIn != null) {
+            mIn.close();
+            mIn = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+        mNextSegment = mSegments.size();
+    }
+
+    /**
+     * Returns {@link SessionRecorder#TYPE_IN}, TYPE_OUT, TYPE_DEVICE or TYPE_CLOSED.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    public int getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * Returns the time of the record since the session start, in ns.
+     */
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    /**
+     * Returns the record's data; valid up to {@link #getLength()} until the next call to next().
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns the address of a {@link SessionRecorder#TYPE_DEVICE} record.
+     */
+    public String getAddress() {
+        return new String(mData, 0, mLength, UTF8);
+    }
+
+    /**
+     * Returns the wall-clock time the session started, in ms, once a record was read.
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+}
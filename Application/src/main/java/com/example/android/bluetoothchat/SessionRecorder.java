@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the bytes received from and sent to every peer into a directory
+ * of append-only segment files.
+ *
+ * <p>The I/O tasks only copy each chunk into a preallocated slot of a
+ * lock-free ring, the same way {@link com.example.android.common.logger.AsyncLogNode}
+ * queues log lines; they never block, allocate or touch the file. A
+ * background flusher thread drains the ring into a direct buffer and
+ * writes it through a {@link FileChannel}, starting a new segment once the
+ * current one reaches its size limit. A chunk longer than a slot takes
+ * several records, reserved together; if the ring has no room for all of
+ * them the whole chunk is dropped and counted. A connection opened or
+ * closed while the ring is full is kept aside and written by the flusher
+ * in its place among the records. A write error ends the recording, see {@link #getFailure()}.
+ * Uses no Android APIs.</p>
+ *
+ * <p>A segment starts with a header and is followed by records:</p>
+ * <pre>
+ * header
+ * 0       4     MAGIC, "BTSR"
+ * 4       2     VERSION
+ * 6       2     segment number, counting from 0
+ * 8       8     wall-clock time of the session start, in ms
+ *
+ * record
+ * 0       1     type, {@link #TYPE_IN}, {@link #TYPE_OUT}, {@link #TYPE_DEVICE} or {@link #TYPE_CLOSED}
+ * 1       4     device id, as in {@link Constants#MESSAGE_READ}
+ * 5       8     monotonic time since the session start, in ns
+ * 13      2     n, length of the data
+ * 15      n     data; for TYPE_DEVICE the address in UTF-8
+ * </pre>
+ *
+ * <p>All values are big endian. Each segment begins with a TYPE_DEVICE
+ * record for every open connection, so it can be read on its own.</p>
+ */
+public class SessionRecorder {
+
+    public static final int MAGIC = 0x42545352;
+    public static final int VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 15;
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    /** Bytes received from the device. */
+    public static final int TYPE_IN = 1;
+    /** Bytes written to the device. */
+    public static final int TYPE_OUT = 2;
+    /** A connection was opened; the data is the device address. */
+    public static final int TYPE_DEVICE = 3;
+    /** The connection was closed. */
+    public static final int TYPE_CLOSED = 4;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SLOTS = 1024;
+    // Data bytes per slot; longer chunks take several records
+    private static final int SLOT_SIZE = 256;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = 20 * 1000 * 1000;
+
+    private final File mDir;
+    private final long mSegmentSize;
+    private final long mStartMillis = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+
+    // Ring of pending records; see AsyncLogNode for the sequence protocol
+    private final int mMask = SLOTS - 1;
+    private final AtomicLongArray mSequence = new AtomicLongArray(SLOTS);
+    private final byte[] mType = new byte[SLOTS];
+    private final int[] mDevice = new int[SLOTS];
+    private final long[] mTime = new long[SLOTS];
+    private final int[] mLength = new int[SLOTS];
+    private final byte[][] mData = new byte[SLOTS][SLOT_SIZE];
+    private final AtomicLong mTail = new AtomicLong();
+    // Device and closed records that found the ring full, in order
+    private final ConcurrentLinkedQueue<PendingRecord> mPending =
+            new ConcurrentLinkedQueue<PendingRecord>();
+
+    private final AtomicLong mRecorded = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mSegments = new AtomicLong();
+
+    private final Thread mFlusher;
+    private volatile boolean mStopped;
+    private volatile IOException mFailure;
+
+    // Only touched by the flusher thread
+    private long mHead;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final Map<Integer, String> mDevices = new HashMap<Integer, String>();
+    private FileChannel mChannel;
+    private long mSegmentBytes;
+    private int mSegmentNumber;
+
+    /**
+     * @param dir         Directory the segments are written to; created if needed
+     * @param segmentSize Size after which a new segment is started
+     * @throws IOException if the first segment cannot be created
+     */
+    public SessionRecorder(File dir, long segmentSize) throws IOException {
+        mDir = dir;
+        mSegmentSize = Math.max(segmentSize, WRITE_BUFFER_SIZE);
+        for (int i = 0; i < SLOTS; i++) {
+            mSequence.set(i, i);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        openSegment();
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "SessionRecorder");
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    /**
+     * Queue bytes received from or sent to a device. Never blocks.
+     *
+     * @param type {@link #TYPE_IN} or {@link #TYPE_OUT}
+     * @return false if the chunk was dropped because the ring was full
+     */
+    public boolean record(int type, int deviceId, byte[] data, int offset, int length) {
+        if (mStopped) {
+            return false;
+        }
+        if (!enqueue(type, deviceId, System.nanoTime() - mStartNanos, data, offset, length)) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Note that a connection was opened, so its records can be traced to the device.
+     */
+    public void deviceConnected(int deviceId, String address) {
+        byte[] name = address.getBytes(UTF8);
+        int length = Math.min(name.length, SLOT_SIZE);
+        long time = System.nanoTime() - mStartNanos;
+        long position = mTail.get();
+        if (!enqueue(TYPE_DEVICE, deviceId, time, name, 0, length)) {
+            // Without it the device's records could not be traced
+            keep(new PendingRecord(TYPE_DEVICE, deviceId, time, name, length, position));
+        }
+    }
+
+    /**
+     * Note that a connection was closed.
+     */
+    public void deviceClosed(int deviceId) {
+        long time = System.nanoTime() - mStartNanos;
+        long position = mTail.get();
+        if (!enqueue(TYPE_CLOSED, deviceId, time, null, 0, 0)) {
+            // Without it the device would look open to the end of the recording
+            keep(new PendingRecord(TYPE_CLOSED, deviceId, time, null, 0, position));
+        }
+    }
+
+    private void keep(PendingRecord record) {
+        mRecorded.incrementAndGet();
+        mPending.add(record);
+        LockSupport.unpark(mFlusher);
+    }
+
+    /**
+     * Queue one chunk as one record per SLOT_SIZE bytes, all or nothing.
+     *
+     * @return false if the ring has no room for the whole chunk
+     */
+    private boolean enqueue(int type, int deviceId, long time, byte[] data, int offset,
+                            int length) {
+        int count = Math.max(1, (length + SLOT_SIZE - 1) / SLOT_SIZE);
+        if (count > SLOTS) {
+            return false;
+        }
+        long pos = mTail.get();
+        while (true) {
+            long diff = mSequence.get((int) (pos & mMask)) - pos;
+            if (diff == 0) {
+                // The flusher frees slots in order, so the last one being
+                // free means the ones before it are too
+                long last = pos + count - 1;
+                if (mSequence.get((int) (last & mMask)) - last < 0) {
+                    return false;
+                }
+                if (mTail.compareAndSet(pos, pos + count)) {
+                    break;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // The flusher is a whole ring behind
+                return false;
+            } else {
+                pos = mTail.get();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = (int) ((pos + i) & mMask);
+            int size = Math.min(length, SLOT_SIZE);
+            mType[slot] = (byte) type;
+            mDevice[slot] = deviceId;
+            mTime[slot] = time;
+            mLength[slot] = size;
+            if (size > 0) {
+                System.arraycopy(data, offset, mData[slot], 0, size);
+            }
+            offset += size;
+            length -= size;
+            mSequence.lazySet(slot, pos + i + 1);
+        }
+        mRecorded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Write out what is queued, close the segment and stop the flusher.
+     * Records queued afterwards are ignored.
+     */
+    public void close() {
+        mStopped = true;
+        LockSupport.unpark(mFlusher);
+        try {
+            mFlusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * Returns the error that stopped the recording, or null.
+     */
+    public IOException getFailure() {
+        return mFailure;
+    }
+
+    private void flushLoop() {
+        try {
+            while (!mStopped) {
+                // Batch up writes, unless the ring is filling faster than that
+                if (drain() < SLOTS / 2) {
+                    LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+                }
+            }
+            drain();
+        } catch (IOException e) {
+            mFailure = e;
+            mStopped = true;
+        } finally {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Move everything queued into the segment. Returns the number of records.
+     */
+    private int drain() throws IOException {
+        int records = 0;
+        while (true) {
+            int slot = (int) (mHead & mMask);
+            boolean ready = mSequence.get(slot) == mHead + 1;
+            // Checked after the slot, so a record kept aside before this
+            // one was queued is written ahead of it
+            if (!mPending.isEmpty()) {
+                records += drainPending();
+            }
+            if (!ready) {
+                break;
+            }
+            int type = mType[slot];
+            int length = mLength[slot];
+            putDeviceRecord(type, mDevice[slot], mTime[slot], mData[slot], length);
+            mSequence.lazySet(slot, mHead + SLOTS);
+            mHead++;
+            records++;
+        }
+        if (records > 0) {
+            writeBuffer();
+        }
+        return records;
+    }
+
+    /**
+     * Write the kept records that are due before the ring record at mHead.
+     * Each one goes where the ring had no room for it: after everything
+     * queued before it, ahead of everything queued after it.
+     */
+    private int drainPending() throws IOException {
+        int records = 0;
+        PendingRecord record;
+        while ((record = mPending.peek()) != null && record.mmPosition <= mHead) {
+            mPending.poll();
+            putDeviceRecord(record.mmType, record.mmDeviceId, record.mmTime, record.mmData,
+                    record.mmLength);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Like putRecordChecked(), also tracking which devices are open.
+     */
+    private void putDeviceRecord(int type, int deviceId, long time, byte[] data, int length)
+            throws IOException {
+        putRecordChecked(type, deviceId, time, data, length);
+        if (type == TYPE_DEVICE) {
+            mDevices.put(deviceId, new String(data, 0, length, UTF8));
+        } else if (type == TYPE_CLOSED) {
+            mDevices.remove(deviceId);
+        }
+    }
+
+    /**
+     * Like putRecord(), starting a new segment or writing the buffer out first if needed.
+     */
+    private void putRecordChecked(int type, int deviceId, long time, byte[] data, int length)
+            throws IOException {
+        if (mSegmentBytes + mBuffer.position() + RECORD_HEADER_SIZE + length > mSegmentSize) {
+            writeBuffer();
+            closeSegment();
+            openSegment();
+        }
+        if (mBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+            writeBuffer();
+        }
+        putRecord(type, deviceId, time, data, length);
+    }
+
+    private void putRecord(int type, int deviceId, long time, byte[] data, int length) {
+        mBuffer.put((byte) type);
+        mBuffer.putInt(deviceId);
+        mBuffer.putLong(time);
+        mBuffer.putShort((short) length);
+        if (length > 0) {
+            mBuffer.put(data, 0, length);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            int written = mChannel.write(mBuffer);
+            mSegmentBytes += written;
+            mBytesWritten.addAndGet(written);
+        }
+        mBuffer.clear();
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(mDir, String.format(Locale.US, "session-%d-%04d%s",
+                mStartMillis, mSegmentNumber, SEGMENT_SUFFIX));
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        mChannel.truncate(0);
+        mSegmentBytes = 0;
+        mBuffer.clear();
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort((short) VERSION);
+        mBuffer.putShort((short) mSegmentNumber);
+        mBuffer.putLong(mStartMillis);
+        // Make the segment readable on its own
+        long time = System.nanoTime() - mStartNanos;
+        for (Map.Entry<Integer, String> device : mDevices.entrySet()) {
+            byte[] name = device.getValue().getBytes(UTF8);
+            putRecord(TYPE_DEVICE, device.getKey(), time, name, name.length);
+        }
+        writeBuffer();
+        mSegmentNumber++;
+        mSegments.incrementAndGet();
+    }
+
+    private void closeSegment() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+        }
+        mChannel = null;
+    }
+
+    /**
+     * A device or closed record kept until the flusher has room for it.
+     */
+    private static class PendingRecord {
+        final int mmType;
+        final int mmDeviceId;
+        final long mmTime;
+        final byte[] mmData;
+        final int mmLength;
+        // Ring position of the first record queued after this one
+        final long mmPosition;
+
+        PendingRecord(int type, int deviceId, long time, byte[] data, int length,
+                      long position) {
+            mmType = type;
+            mmDeviceId = deviceId;
+            mmTime = time;
+            mmData = data;
+            mmLength = length;
+            mmPosition = position;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.recorded = mRecorded.get();
+        stats.dropped = mDropped.get();
+        stats.bytesWritten = mBytesWritten.get();
+        stats.segments = mSegments.get();
+        return stats;
+    }
+
+    /**
+     * Point-in-time view of the recorder.
+     */
+    public static class Stats {
+        /** Chunks and connection events queued. */
+        public long recorded;
+        /** Chunks and connection events dropped because the flusher fell behind. */
+        public long dropped;
+        /** Bytes written to segment files. */
+        public long bytesWritten;
+        /** Segments started. */
+        public long segments;
+
+        @Override
+        public String toString() {
+            return "recorded " + recorded + ", dropped " + dropped
+                    + ", written " + bytesWritten + "B in " + segments + " segments";
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recording made by {@link SessionRecorder} back into a
+ * {@link BluetoothChatService} through a {@link ReplayTransport}, so the
+ * received bytes take the same path through the service as live ones.
+ *
+ * <pre>
+ * ReplayTransport transport = new ReplayTransport();
+ * BluetoothChatService service = new BluetoothChatService(events, sounds, transport);
+ * service.setAutoReconnect(false);
+ * service.start();
+ * SessionReplayer replayer = new SessionReplayer(dir, transport);
+ * replayer.setSpeed(4);
+ * replayer.start();
+ * replayer.await(1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * <p>Every recorded connection becomes a peer that dials in, gets exactly
+ * the bytes it sent, in the same order and at the same pace, and drops when it
+ * dropped. Bytes the app sent are not replayed. Records are fed at their
+ * recorded time divided by the speed, or back to back with {@link #ASAP};
+ * in that mode a peer whose buffer is full holds up the others.</p>
+ */
+public class SessionReplayer {
+    private static final String TAG = "SessionReplayer";
+
+    /** Speed that feeds the records without waiting. */
+    public static final double ASAP = 0;
+
+    private final File mDir;
+    private final ReplayTransport mTransport;
+    private volatile double mSpeed = 1;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    private volatile long mRecords;
+    private volatile long mBytes;
+    private volatile int mConnections;
+    private volatile long mMaxLagNanos;
+    private volatile long mElapsedNanos;
+
+    public SessionReplayer(File dir, ReplayTransport transport) {
+        mDir = dir;
+        mTransport = transport;
+    }
+
+    /**
+     * Set how many times faster than recorded to play; {@link #ASAP} for no waiting.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Start feeding on a thread of its own.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (IOException e) {
+                    Log.e(TAG, "replay of " + mDir + " failed", e);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "replay interrupted");
+                } finally {
+                    mDone.countDown();
+                }
+            }
+        }, "SessionReplayer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Wait for the end of the recording.
+     *
+     * @return false if it did not end in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDone.await(timeout, unit);
+    }
+
+    /**
+     * Stop feeding; the peers still connected see their links drop.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    private void replay() throws IOException, InterruptedException {
+        Map<Integer, ReplayTransport.ReplayChannel> channels =
+                new HashMap<Integer, ReplayTransport.ReplayChannel>();
+        SessionReader reader = new SessionReader(mDir);
+        long startNanos = System.nanoTime();
+        long firstRecordNanos = -1;
+        try {
+            while (!mStopped && reader.next()) {
+                int deviceId = reader.getDeviceId();
+                int type = reader.getType();
+                if (type == SessionRecorder.TYPE_OUT) {
+                    // Sent by the app; not part of the input
+                    continue;
+                }
+                if (firstRecordNanos < 0) {
+                    firstRecordNanos = reader.getTimeNanos();
+                }
+                waitUntil(startNanos, reader.getTimeNanos() - firstRecordNanos);
+                switch (type) {
+                    case SessionRecorder.TYPE_DEVICE:
+                        channels.put(deviceId, mTransport.dialIn(reader.getAddress()));
+                        mConnections++;
+                        break;
+                    case SessionRecorder.TYPE_CLOSED:
+                        ReplayTransport.ReplayChannel closed = channels.remove(deviceId);
+                        if (closed != null) {
+                            closed.finish();
+                        }
+                        break;
+                    case SessionRecorder.TYPE_IN:
+                        ReplayTransport.ReplayChannel channel = channels.get(deviceId);
+                        if (channel == null) {
+                            // Recording started while this device was connected
+                            channel = mTransport.dialIn("replay-" + deviceId);
+                            channels.put(deviceId, channel);
+                            mConnections++;
+                        }
+                        channel.feed(reader.getData(), 0, reader.getLength());
+                        mRecords++;
+                        mBytes += reader.getLength();
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+            for (ReplayTransport.ReplayChannel channel : channels.values()) {
+                channel.finish();
+            }
+            mElapsedNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Wait for the moment a record is due, and note how late it is.
+     */
+    private void waitUntil(long startNanos, long offsetNanos) throws InterruptedException {
+        double speed = mSpeed;
+        if (speed == ASAP) {
+            return;
+        }
+        long due = startNanos + (long) (offsetNanos / speed);
+        long now = System.nanoTime();
+        while (now < due) {
+            LockSupport.parkNanos(due - now);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            now = System.nanoTime();
+        }
+        if (now - due > mMaxLagNanos) {
+            mMaxLagNanos = now - due;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.records = mRecords;
+        stats.bytes = mBytes;
+        stats.connections = mConnections;
+        stats.maxLagNanos = mMaxLagNanos;
+        stats.elapsedNanos = mElapsedNanos;
+        return stats;
+    }
+
+    /**
+     * Point-in-time view of a replay.
+     */
+    public static class Stats {
+        /** Received chunks fed so far. */
+        public long records;
+        /** Bytes fed so far. */
+        public long bytes;
+        /** Peers that dialed in. */
+        public int connections;
+        /** Worst delay of a chunk behind its schedule. */
+        public long maxLagNanos;
+        /** Duration of the replay, once it has ended. */
+        public long elapsedNanos;
+
+        @Override
+        public String toString() {
+            return records + " chunks, " + bytes + "B from " + connections + " peers"
+                    + ", max lag " + maxLagNanos / 1000 + "us"
+                    + ", took " + elapsedNanos / 1000000 + "ms";
+        }
+    }
+}
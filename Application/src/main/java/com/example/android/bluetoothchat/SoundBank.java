@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process-wide, reference-counted holder of the instrument samples.
+ *
+ * <p>The first connection to {@link #acquire(Context)} the bank creates the
+ * selected {@link SoundEngine}. Every later connection shares the same
+ * instance. When the last connection calls {@link #release()} the engine
+ * and its decoded PCM are freed.</p>
+ *
+ * <p>{@link #ENGINE_SOUNDPOOL}, the original SoundPool path, is the default.
+ * {@link #ENGINE_PCM} mixes in-process on a low-latency AudioTrack; select it
+ * with {@link #setEngineType(int)}, or by turning on the sequencer.</p>
+ *
+ * <p>Samples are loaded per kit (see {@link NoteMap}) and only while some
+ * connection is bound to the kit with {@link #bindKit(String)}. Loading runs
+ * on one background thread, so neither the connect path nor a reader ever
+ * waits for WAV decoding. Kits nobody is bound to stay cached up to
+ * {@link #setMaxIdleKits(int)}, least recently used evicted first. The same
+ * thread closes released engines, so an engine is never closed while
+ * samples are being decoded into it.</p>
+ *
+ * <p>Which samples form a kit is decided by the {@link NoteMap}. On first use
+ * the bank reads {@link NoteMap#CONFIG_FILE} from the external files
+ * directory if it exists; {@link #setNoteMap(NoteMap)} remaps at
+ * runtime. A new map only goes live after its samples are loaded.</p>
+ *
+ * <p>The PCM engine can also run as a sequencer, see
+ * {@link #setSequencer(boolean)}; the setting carries over to new engines.</p>
+ */
+public final class SoundBank {
+    private static final String TAG = "SoundBank";
+
+    /** Samples are played through a SoundPool. */
+    public static final int ENGINE_SOUNDPOOL = 0;
+
+    /** Samples are mixed by {@link PcmAudioEngine}. */
+    public static final int ENGINE_PCM = 1;
+
+    public static final double DEFAULT_TEMPO = 120;
+
+    private static SoundEngine sManager;
+    private static Context sContext;
+    private static int sRefCount;
+    private static int sEngineType = ENGINE_SOUNDPOOL;
+    private static int sPolyphony = PcmAudioEngine.DEFAULT_POLYPHONY;
+    private static int sMaxIdleKits = 1;
+    // Guards the one-time read of the config file, which is done without
+    // holding the class lock
+    private static final Object sConfigLock = new Object();
+    private static boolean sConfigRead;
+
+    // Sequencer settings of the PCM engine
+    private static boolean sSequencer;
+    private static double sTempo = DEFAULT_TEMPO;
+    private static int sBeatsPerBar = 4;
+    private static int sStepsPerBeat;
+    private static boolean sMetronome;
+
+    // Kit name -> number of bound connections, least recently used first
+    private static final Map<String, Integer> sKits =
+            new LinkedHashMap<String, Integer>(8, 0.75f, true);
+    // Map waiting for its samples before it is installed
+    private static NoteMap sPendingMap;
+    private static boolean sLoadPending;
+    // Released engines waiting for the loader thread to close them
+    private static final List<SoundEngine> sClosing = new ArrayList<SoundEngine>();
+    private static Thread sLoader;
+
+    // Sample name held in each slot of sManager; the contents are only
+    // touched by the loader thread
+    private static String[] sLoadedNames;
+
+    private SoundBank() {
+    }
+
+    /**
+     * Select the engine used the next time the bank is created. A bank that
+     * is already in use keeps its engine until every connection releases it.
+     *
+     * @param engineType {@link #ENGINE_PCM} or {@link #ENGINE_SOUNDPOOL}
+     */
+    public static synchronized void setEngineType(int engineType) {
+        sEngineType = engineType;
+    }
+
+    /**
+     * Set the number of simultaneous voices for the next PCM engine.
+     */
+    public static synchronized void setPolyphony(int polyphony) {
+        sPolyphony = polyphony;
+    }
+
+    /**
+     * Time notes on the audio clock of the PCM engine, see
+     * {@link PcmAudioEngine#setSequencer(boolean)}. Turning it on selects the
+     * PCM engine; a SoundPool bank in use ignores it until it is recreated.
+     */
+    public static synchronized void setSequencer(boolean enabled) {
+        sSequencer = enabled;
+        if (enabled) {
+            sEngineType = ENGINE_PCM;
+        }
+        applySequencer();
+    }
+
+    public static synchronized boolean isSequencer() {
+        return sSequencer;
+    }
+
+    /**
+     * Set the sequencer's tempo grid, see
+     * {@link PcmAudioEngine#setTempo(double, int, int)}.
+     */
+    public static synchronized void setTempo(double bpm, int beatsPerBar, int stepsPerBeat) {
+        sTempo = bpm;
+        sBeatsPerBar = beatsPerBar;
+        sStepsPerBeat = stepsPerBeat;
+        applySequencer();
+    }
+
+    /**
+     * Returns the grid lines per beat notes are snapped to; 0 if they are not.
+     */
+    public static synchronized int getStepsPerBeat() {
+        return sStepsPerBeat;
+    }
+
+    /**
+     * Click the beats of the tempo grid while the sequencer runs.
+     */
+    public static synchronized void setMetronome(boolean enabled) {
+        sMetronome = enabled;
+        applySequencer();
+    }
+
+    public static synchronized boolean isMetronome() {
+        return sMetronome;
+    }
+
+    /**
+     * Hand the sequencer settings to a PCM engine. Caller holds the class lock.
+     */
+    private static void applySequencer() {
+        if (sManager instanceof PcmAudioEngine) {
+            PcmAudioEngine engine = (PcmAudioEngine) sManager;
+            engine.setTempo(sTempo, sBeatsPerBar, sStepsPerBeat);
+            engine.setMetronome(sMetronome);
+            engine.setSequencer(sSequencer);
+        }
+    }
+
+    /**
+     * Set how many kits without bound connections stay loaded.
+     */
+    public static synchronized void setMaxIdleKits(int maxIdleKits) {
+        sMaxIdleKits = maxIdleKits;
+        requestLoad();
+    }
+
+    /**
+     * Returns the bank as the {@link SoundSource} of a {@link BluetoothChatService}.
+     *
+     * @param context Any Context; only its application Context is retained
+     */
+    public static SoundSource source(Context context) {
+        return new ContextSource(context.getApplicationContext());
+    }
+
+    private static final class ContextSource implements SoundSource {
+        private final Context mContext;
+
+        ContextSource(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public SoundEngine acquire() {
+            return SoundBank.acquire(mContext);
+        }
+
+        @Override
+        public void release() {
+            SoundBank.release();
+        }
+
+        @Override
+        public void bindKit(String kit) {
+            SoundBank.bindKit(kit);
+        }
+
+        @Override
+        public void unbindKit(String kit) {
+            SoundBank.unbindKit(kit);
+        }
+
+        @Override
+        public ThreadFactory getAudioThreadFactory() {
+            return AUDIO_THREADS;
+        }
+    }
+
+    // Threads that play notes run at audio priority
+    private static final ThreadFactory AUDIO_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    r.run();
+                }
+            });
+        }
+    };
+
+    /**
+     * Take a reference to the shared sound bank, creating it if needed.
+     *
+     * @param context Any Context; only its application Context is retained
+     * @return The shared engine. Sounds become playable once their kit is bound and loaded.
+     */
+    public static SoundEngine acquire(Context context) {
+        // File I/O; done before taking the class lock so the loader, players
+        // and other connections are not held up by it
+        synchronized (sConfigLock) {
+            if (!sConfigRead) {
+                sConfigRead = true;
+                readConfig(context);
+            }
+        }
+        synchronized (SoundBank.class) {
+            return acquireEngine(context);
+        }
+    }
+
+    /**
+     * Caller holds the class lock.
+     */
+    private static SoundEngine acquireEngine(Context context) {
+        if (sRefCount++ == 0) {
+            Log.d(TAG, "creating shared sound bank, engine " + sEngineType);
+            sContext = context.getApplicationContext();
+            if (sEngineType == ENGINE_PCM) {
+                sManager = new PcmAudioEngine(sContext, sPolyphony);
+            } else {
+                SoundPoolManager soundPool = new SoundPoolManager();
+                soundPool.initSounds(sContext);
+                sManager = soundPool;
+            }
+            sLoadedNames = new String[SoundEngine.MAX_SOUNDS];
+            applySequencer();
+            requestLoad();
+        }
+        return sManager;
+    }
+
+    /**
+     * Drop a reference taken with {@link #acquire(Context)}. The samples are
+     * released once nobody holds a reference any more.
+     */
+    public static synchronized void release() {
+        if (sRefCount == 0) {
+            Log.w(TAG, "release() without matching acquire()");
+            return;
+        }
+        if (--sRefCount == 0) {
+            Log.d(TAG, "releasing shared sound bank");
+            // Closed by the loader once it is done with the engine; callers
+            // are I/O threads and must not wait for that
+            sClosing.add(sManager);
+            sManager = null;
+            sLoadedNames = null;
+            sKits.clear();
+            if (sPendingMap != null) {
+                NoteMap.setCurrent(sPendingMap);
+                sPendingMap = null;
+            }
+            startLoader();
+        }
+    }
+
+    /**
+     * Returns the number of connections currently holding the bank.
+     */
+    public static synchronized int getRefCount() {
+        return sRefCount;
+    }
+
+    /**
+     * Register a connection's use of a kit, loading it in the background if
+     * needed. Each call must be matched by {@link #unbindKit(String)}.
+     */
+    public static synchronized void bindKit(String kit) {
+        Integer bindings = sKits.get(kit);
+        sKits.put(kit, bindings == null ? 1 : bindings + 1);
+        if (bindings == null || bindings == 0) {
+            requestLoad();
+        }
+    }
+
+    /**
+     * Drop a binding taken with {@link #bindKit(String)}. The kit stays
+     * cached while it is among the most recently used idle kits.
+     */
+    public static synchronized void unbindKit(String kit) {
+        Integer bindings = sKits.get(kit);
+        if (bindings == null || bindings == 0) {
+            Log.w(TAG, "unbindKit(" + kit + ") without matching bindKit()");
+            return;
+        }
+        sKits.put(kit, bindings - 1);
+        if (bindings == 1) {
+            requestLoad();
+        }
+    }
+
+    /**
+     * Returns the kits that are bound or cached, least recently used first.
+     */
+    public static synchronized List<String> getKits() {
+        return new ArrayList<String>(sKits.keySet());
+    }
+
+    /**
+     * Switch to a different code-to-sample mapping. If the bank is in use,
+     * the samples the map needs are loaded in the background and the map
+     * is installed afterwards; otherwise it is installed immediately.
+     */
+    public static synchronized void setNoteMap(NoteMap map) {
+        if (sManager == null) {
+            NoteMap.setCurrent(map);
+        } else {
+            sPendingMap = map;
+            requestLoad();
+        }
+    }
+
+    private static void readConfig(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        File file = dir != null ? new File(dir, NoteMap.CONFIG_FILE) : null;
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        try {
+            NoteMap.setCurrent(NoteMap.load(file));
+            Log.i(TAG, "note map loaded from " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "ignoring " + file, e);
+        }
+    }
+
+    /**
+     * Have the loader thread bring the loaded samples in line with the bound
+     * kits. Requests made while it is busy are merged into one more pass.
+     * Caller holds the class lock.
+     */
+    private static void requestLoad() {
+        if (sManager == null || sLoadPending) {
+            return;
+        }
+        sLoadPending = true;
+        startLoader();
+    }
+
+    /**
+     * Wake the loader thread, starting it if needed. Caller holds the class lock.
+     */
+    private static void startLoader() {
+        if (sLoader != null) {
+            SoundBank.class.notifyAll();
+            return;
+        }
+        sLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoader();
+            }
+        }, "SoundBankLoader");
+        sLoader.setDaemon(true);
+        sLoader.start();
+    }
+
+    /**
+     * Body of the loader thread. It ends once the bank is released and
+     * nothing is left to do, and is started again by the next request.
+     */
+    private static void runLoader() {
+        while (true) {
+            List<SoundEngine> closing;
+            synchronized (SoundBank.class) {
+                while (!sLoadPending && sClosing.isEmpty()) {
+                    if (sManager == null) {
+                        sLoader = null;
+                        return;
+                    }
+                    try {
+                        SoundBank.class.wait();
+                    } catch (InterruptedException e) {
+                        sLoader = null;
+                        return;
+                    }
+                }
+                closing = sClosing.isEmpty() ? Collections.<SoundEngine>emptyList()
+                        : new ArrayList<SoundEngine>(sClosing);
+                sClosing.clear();
+            }
+            for (SoundEngine engine : closing) {
+                engine.close();
+            }
+            syncSamples();
+        }
+    }
+
+    private static synchronized boolean isCurrent(SoundEngine spm) {
+        return sManager == spm;
+    }
+
+    private static void syncSamples() {
+        SoundEngine spm;
+        Context context;
+        String[] loaded;
+        NoteMap map;
+        List<String> wanted = new ArrayList<String>();
+        synchronized (SoundBank.class) {
+            if (!sLoadPending) {
+                return;
+            }
+            sLoadPending = false;
+            spm = sManager;
+            context = sContext;
+            loaded = sLoadedNames;
+            if (spm == null) {
+                // Released before we got here
+                return;
+            }
+            map = sPendingMap != null ? sPendingMap : NoteMap.getCurrent();
+            selectKits(wanted);
+        }
+
+        String[] samples = map.getSamples();
+        String[] target = new String[SoundEngine.MAX_SOUNDS];
+        for (String kit : wanted) {
+            for (int index : map.samplesOf(kit)) {
+                target[index] = samples[index];
+            }
+        }
+        // Only this thread closes engines, so spm stays usable throughout; once
+        // it is released the rest of the work is pointless and skipped
+        for (int i = 0; i < target.length; i++) {
+            if (loaded[i] != null && !loaded[i].equals(target[i])) {
+                if (!isCurrent(spm)) {
+                    return;
+                }
+                spm.removeSound(i);
+                loaded[i] = null;
+            }
+        }
+        for (int i = 0; i < target.length; i++) {
+            if (target[i] == null || loaded[i] != null) {
+                continue;
+            }
+            if (!isCurrent(spm)) {
+                return;
+            }
+            int resId = context.getResources().getIdentifier(target[i], "raw",
+                    context.getPackageName());
+            if (resId == 0) {
+                Log.w(TAG, "no raw resource named " + target[i]);
+                continue;
+            }
+            spm.addSound(i, resId);
+            loaded[i] = target[i];
+        }
+        Log.d(TAG, "loaded kits " + wanted);
+
+        synchronized (SoundBank.class) {
+            if (sPendingMap == map) {
+                sPendingMap = null;
+                NoteMap.setCurrent(map);
+            }
+        }
+    }
+
+    /**
+     * Collect the bound kits plus the most recently used idle ones, and
+     * forget idle kits beyond the cache size. Caller holds the class lock.
+     */
+    private static void selectKits(List<String> wanted) {
+        List<String> idle = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : sKits.entrySet()) {
+            if (entry.getValue() > 0) {
+                wanted.add(entry.getKey());
+            } else {
+                idle.add(entry.getKey());
+            }
+        }
+        int evict = Math.max(0, idle.size() - sMaxIdleKits);
+        for (int i = 0; i < idle.size(); i++) {
+            if (i < evict) {
+                sKits.remove(idle.get(i));
+            } else {
+                wanted.add(idle.get(i));
+            }
+        }
+    }
+}
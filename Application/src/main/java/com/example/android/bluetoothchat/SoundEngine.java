@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+/**
+ * Plays preloaded instrument samples by index. Implementations are shared by
+ * every connection, so {@link #playSound(int)} must be safe to call from any
+ * reader thread and must not block.
+ */
+public interface SoundEngine {
+
+    /**
+     * Number of sample slots; valid indexes are 0 to MAX_SOUNDS - 1.
+     */
+    int MAX_SOUNDS = 64;
+
+    /**
+     * Load a raw resource under the given sample index. May block while the
+     * sample is decoded; called from the SoundBank loader thread.
+     */
+    void addSound(int index, int resId);
+
+    /**
+     * Free the sample at the given index. Voices already playing it may finish.
+     */
+    void removeSound(int index);
+
+    /**
+     * Returns true if the sample at the given index is loaded and can be played.
+     */
+    boolean isLoaded(int index);
+
+    /**
+     * Start playing the sample at the given index. Unknown or not yet loaded
+     * indices are ignored.
+     */
+    void playSound(int index);
+
+    /**
+     * Start playing the sample at the given System.nanoTime(), which may lie
+     * ahead, if the engine can time notes itself. The note is only queued;
+     * the listener learns whether and when it starts.
+     *
+     * @param listener  Told when the note starts or is dropped; may be null
+     * @param readNanos Passed back to the listener, e.g. for latency figures
+     * @return false if the engine cannot; the note was not played and the
+     *         caller has to time it
+     */
+    boolean playSoundAt(int index, long timeNanos, PlayListener listener, long readNanos);
+
+    /**
+     * Learns the fate of a note queued with {@link #playSoundAt}. May be
+     * called on the engine's own thread, so it must not block.
+     */
+    interface PlayListener {
+        /**
+         * @param readNanos  The read time passed to {@link #playSoundAt}
+         * @param startNanos System.nanoTime() at which the note's first sample is due
+         */
+        void onNoteStarted(long readNanos, long startNanos);
+
+        /**
+         * The note was not played, e.g. because its sample was unloaded or
+         * the engine was too far behind.
+         *
+         * @param readNanos The read time passed to {@link #playSoundAt}
+         */
+        void onNoteDropped(long readNanos);
+    }
+
+    /**
+     * Stop playback and free all samples.
+     */
+    void close();
+}
@@ -6,24 +6,25 @@ import android.media.AudioManager;
 import android.media.SoundPool;
 import android.os.Handler;
 
-import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 
 /**
  * Created by Venus on 16/09/2015.
  */
 /* reference http://stackoverflow.com/questions/3039078/playing-multiple-sounds-using-soundmanager */
-public class SoundPoolManager {
+public class SoundPoolManager implements SoundEngine {
         private SoundPool mSoundPool;
-        private HashMap<Integer, Integer> mSoundPoolMap;
+        // Sample index -> SoundPool sample id, 0 if none
+        private AtomicIntegerArray mSoundPoolMap;
         private AudioManager mAudioManager;
         private Context mContext;
-        private Vector<Integer> mAvailableSounds = new Vector<Integer>();
         private Vector<Integer> mKillSoundQueue = new Vector<Integer>();
         //private Handler mHandler = new Handler();
         private SoundPool.Builder sp21;
-        private boolean sploaded = false;
+        // Sample index -> 1 once its load has completed successfully
+        private AtomicIntegerArray mLoaded;
 
         public SoundPoolManager(){
 
@@ -33,33 +34,59 @@ public class SoundPoolManager {
                 mContext = theContext;
                 mSoundPool = new SoundPool(10, AudioManager.STREAM_MUSIC, 0);
 
-                mSoundPoolMap = new HashMap<Integer, Integer>();
+                // Filled by the SoundBank loader thread while readers play
+                mSoundPoolMap = new AtomicIntegerArray(MAX_SOUNDS);
+                mLoaded = new AtomicIntegerArray(MAX_SOUNDS);
                 mAudioManager = (AudioManager)mContext.getSystemService(Context.AUDIO_SERVICE);
-                sploaded = false;
                 mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
                         @Override
                         public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
-                                sploaded = true;
+                                // addSound() holds the lock until the id is stored
+                                synchronized (SoundPoolManager.this) {
+                                        for (int i = 0; i < MAX_SOUNDS; i++) {
+                                                if (mSoundPoolMap.get(i) == sampleId) {
+                                                        mLoaded.set(i, status == 0 ? 1 : 0);
+                                                }
+                                        }
+                                }
                         }
                 });
 
         }
 
-        public void addSound(int Index, int SoundID)
+        @Override
+        public synchronized void addSound(int Index, int SoundID)
         {
-                mAvailableSounds.add(Index);
                 try {
-                        mSoundPoolMap.put(Index, mSoundPool.load(mContext, SoundID, 1));
+                        mLoaded.set(Index, 0);
+                        mSoundPoolMap.set(Index, mSoundPool.load(mContext, SoundID, 1));
                 } catch (Exception e){}
         }
 
+        @Override
+        public synchronized void removeSound(int index)
+        {
+                int sampleId = mSoundPoolMap.getAndSet(index, 0);
+                mLoaded.set(index, 0);
+                if (sampleId != 0 && mSoundPool != null) {
+                        mSoundPool.unload(sampleId);
+                }
+        }
+
+        @Override
+        public boolean isLoaded(int index) {
+                return index >= 0 && index < MAX_SOUNDS && mLoaded.get(index) != 0;
+        }
+
+        @Override
         public void playSound(int index) {
-                // dont have a sound for this obj, return.
-                if(mAvailableSounds.contains(index) && sploaded){
+                // dont have a sound for this obj, or it is still loading, return.
+                if(index >= 0 && index < MAX_SOUNDS && mLoaded.get(index) != 0){
                         try {
-                                int streamVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
-                                //int streamVolume = 1;
-                                int soundId = mSoundPool.play(mSoundPoolMap.get(index), streamVolume, streamVolume, 1, 0, 1f);
+                                int sampleId = mSoundPoolMap.get(index);
+                                // play() volume is relative to the stream volume, so full scale
+                                // here follows the user's setting without querying it every hit
+                                int soundId = mSoundPool.play(sampleId, 1f, 1f, 1, 0, 1f);
                                 /*
                                 int soundID;
                                 int volume = 1;
@@ -83,6 +110,14 @@ public class SoundPoolManager {
                 }
         }
 
+        @Override
+        public boolean playSoundAt(int index, long timeNanos, PlayListener listener,
+                                   long readNanos) {
+                // SoundPool starts every sound as soon as it can
+                return false;
+        }
+
+        @Override
         public void close() {
                 mSoundPool.release();
                 mSoundPool = null;
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Supplies the shared {@link SoundEngine} to the connections of
+ * {@link BluetoothChatService}, and loads the instrument kits they use.
+ * On Android it is backed by {@link SoundBank}; without a sound output,
+ * e.g. in a JVM harness, any engine will do.
+ */
+public interface SoundSource {
+
+    /**
+     * Take a reference to the shared engine. Each call must be matched by
+     * {@link #release()}.
+     */
+    SoundEngine acquire();
+
+    /**
+     * Drop a reference taken with {@link #acquire()}.
+     */
+    void release();
+
+    /**
+     * Register a connection's use of a kit, loading it if needed.
+     */
+    void bindKit(String kit);
+
+    /**
+     * Drop a binding taken with {@link #bindKit(String)}.
+     */
+    void unbindKit(String kit);
+
+    /**
+     * Returns a factory for threads that play notes, e.g. with raised priority.
+     */
+    ThreadFactory getAudioThreadFactory();
+}
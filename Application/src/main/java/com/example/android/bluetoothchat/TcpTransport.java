@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over TCP, a stand-in for RFCOMM when load testing the
+ * service without radios: on an emulator with ports forwarded to a
+ * generator on the host, or on a plain JVM (see the Benchmark module).
+ *
+ * <p>Secure and insecure listeners need separate ports because the service
+ * opens both. Use port 0 to get ephemeral ports, then ask
+ * {@link #getLocalPort(boolean)} after {@link #listen}. Addresses passed to
+ * {@link #createChannel} are "host:port".</p>
+ *
+ * <p>An accepted peer is known by its source "ip:port", which is an
+ * ephemeral port nobody listens on, so only dialed links are redialable.</p>
+ */
+public class TcpTransport implements Transport {
+
+    private final InetAddress mBindAddress;
+    private final int mSecurePort;
+    private final int mInsecurePort;
+    private volatile int mBoundSecurePort = -1;
+    private volatile int mBoundInsecurePort = -1;
+
+    /**
+     * Listen on the loopback interface.
+     *
+     * @param securePort   Port of the "secure" listener, 0 for any free port
+     * @param insecurePort Port of the "insecure" listener, 0 for any free port
+     */
+    public TcpTransport(int securePort, int insecurePort) {
+        this(loopback(), securePort, insecurePort);
+    }
+
+    private static InetAddress loopback() {
+        try {
+            // A literal address, so no lookup happens
+            return InetAddress.getByName("127.0.0.1");
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public TcpTransport(InetAddress bindAddress, int securePort, int insecurePort) {
+        mBindAddress = bindAddress;
+        mSecurePort = securePort;
+        mInsecurePort = insecurePort;
+    }
+
+    /**
+     * Returns the port a listener was bound to, or -1 if it is not listening.
+     */
+    public int getLocalPort(boolean secure) {
+        return secure ? mBoundSecurePort : mBoundInsecurePort;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid, boolean secure) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mBindAddress, secure ? mSecurePort : mInsecurePort));
+        if (secure) {
+            mBoundSecurePort = serverSocket.getLocalPort();
+        } else {
+            mBoundInsecurePort = serverSocket.getLocalPort();
+        }
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                return new TcpChannel(socket, null, null);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid, boolean secure) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Expected host:port, got " + address);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad port in " + address);
+        }
+        return new TcpChannel(new Socket(),
+                new InetSocketAddress(address.substring(0, colon), port), address);
+    }
+
+    private static class TcpChannel implements Channel {
+        private final Socket mSocket;
+        // Dialed channels only: where to connect, and the address as given
+        private final InetSocketAddress mTarget;
+        private final String mAddress;
+
+        TcpChannel(Socket socket, InetSocketAddress target, String address) {
+            mSocket = socket;
+            mTarget = target;
+            mAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mTarget != null) {
+                mSocket.connect(mTarget);
+                mSocket.setTcpNoDelay(true);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            if (mAddress != null) {
+                // Redials and the caller's bookkeeping use the same key
+                return mAddress;
+            }
+            return mSocket.getInetAddress().getHostAddress() + ":" + mSocket.getPort();
+        }
+
+        @Override
+        public boolean isRedialable() {
+            return mTarget != null;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "tcp:" + getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * The link layer used by {@link BluetoothChatService}. It covers listening
+ * for peers, accepting them, dialing out, and the byte streams of an
+ * established link.
+ *
+ * <p>{@link RfcommTransport} is the production backend. {@link TcpTransport}
+ * carries the links over TCP instead, so the service can be load tested
+ * without radios, on an emulator or on a plain JVM.</p>
+ */
+public interface Transport {
+
+    /**
+     * One link to a remote device.
+     */
+    public interface Channel extends Closeable {
+        /**
+         * Establish an outgoing link. This is a blocking call and returns
+         * only on success or an exception. Accepted channels are already
+         * connected and return immediately.
+         */
+        public void connect() throws IOException;
+
+        public InputStream getInputStream() throws IOException;
+
+        public OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Returns a stable identifier of the remote device, e.g. its MAC address.
+         */
+        public String getRemoteAddress();
+
+        /**
+         * Returns a human readable name of the remote device, may be null.
+         */
+        public String getRemoteName();
+
+        /**
+         * Returns true if {@link Transport#createChannel} with
+         * {@link #getRemoteAddress()} reaches the same device again, so
+         * the link may be redialed when it drops.
+         */
+        public boolean isRedialable();
+
+        /**
+         * Close the link. Unblocks any thread waiting in connect() or a read.
+         */
+        @Override
+        public void close() throws IOException;
+    }
+
+    /**
+     * A listening endpoint that hands out incoming links.
+     */
+    public interface ServerChannel extends Closeable {
+        /**
+         * This is a blocking call and will only return on a successful
+         * connection or an exception.
+         */
+        public Channel accept() throws IOException;
+
+        @Override
+        public void close() throws IOException;
+    }
+
+    /**
+     * Start listening for incoming links.
+     *
+     * @param name   Service name, used for the SDP record on RFCOMM
+     * @param uuid   Service UUID
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public ServerChannel listen(String name, UUID uuid, boolean secure) throws IOException;
+
+    /**
+     * Create a channel to a remote device. The channel is not connected yet,
+     * see {@link Channel#connect()}.
+     *
+     * @param address Address of the remote device in this transport's format
+     * @param uuid    Service UUID
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public Channel createChannel(String address, UUID uuid, boolean secure) throws IOException;
+}
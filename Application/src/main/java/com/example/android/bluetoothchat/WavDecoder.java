@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes PCM WAV files into 16 bit mono samples at a given output rate.
+ *
+ * <p>Handles 8, 16, 24 and 32 bit integer PCM (plain or
+ * WAVE_FORMAT_EXTENSIBLE with a PCM subformat; float and compressed data
+ * are rejected), any channel count (down-mixed), and skips
+ * chunks other than "fmt " and "data". Samples at a different rate are
+ * linearly resampled, which is adequate for short percussive one-shots.</p>
+ */
+public final class WavDecoder {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    // Size of the fmt chunk up to and including the bit depth
+    private static final int FMT_PCM_SIZE = 16;
+    // Offset of the subformat GUID, whose first two bytes are the format code
+    private static final int EXTENSIBLE_SUBFORMAT = 24;
+
+    private WavDecoder() {
+    }
+
+    /**
+     * Read and decode a whole WAV stream. The stream is not closed.
+     *
+     * @param in         The WAV file contents
+     * @param outputRate Sample rate of the returned samples
+     * @return Mono 16 bit samples
+     * @throws IOException if the stream is not a supported WAV file
+     */
+    public static short[] decode(InputStream in, int outputRate) throws IOException {
+        byte[] file = readFully(in);
+        if (file.length < 12 || !tag(file, 0, "RIFF") || !tag(file, 8, "WAVE")) {
+            throw new IOException("not a RIFF/WAVE file");
+        }
+
+        int channels = 0;
+        int sampleRate = 0;
+        int bits = 0;
+        int dataOffset = -1;
+        int dataLength = 0;
+        int pos = 12;
+        while (pos + 8 <= file.length) {
+            int chunkLength = le32(file, pos + 4);
+            int body = pos + 8;
+            if (chunkLength < 0 || chunkLength > file.length - body) {
+                // Truncated files are common; take what is there
+                chunkLength = file.length - body;
+            }
+            if (tag(file, pos, "fmt ")) {
+                if (chunkLength < FMT_PCM_SIZE) {
+                    throw new IOException("truncated fmt chunk");
+                }
+                int format = le16(file, body);
+                if (format == FORMAT_EXTENSIBLE) {
+                    if (chunkLength < EXTENSIBLE_SUBFORMAT + 16) {
+                        throw new IOException("truncated WAVE_FORMAT_EXTENSIBLE header");
+                    }
+                    format = le16(file, body + EXTENSIBLE_SUBFORMAT);
+                }
+                if (format != FORMAT_PCM) {
+                    throw new IOException("unsupported WAV format " + format);
+                }
+                channels = le16(file, body + 2);
+                sampleRate = le32(file, body + 4);
+                bits = le16(file, body + 14);
+            } else if (tag(file, pos, "data")) {
+                dataOffset = body;
+                dataLength = chunkLength;
+            }
+            // Chunks are padded to an even length
+            pos = body + chunkLength + (chunkLength & 1);
+        }
+        if (channels <= 0 || sampleRate <= 0 || dataOffset < 0) {
+            throw new IOException("missing fmt or data chunk");
+        }
+        if (bits != 8 && bits != 16 && bits != 24 && bits != 32) {
+            throw new IOException("unsupported bit depth " + bits);
+        }
+
+        int bytesPerSample = bits / 8;
+        int frames = dataLength / (bytesPerSample * channels);
+        short[] mono = new short[frames];
+        int p = dataOffset;
+        for (int f = 0; f < frames; f++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += sample16(file, p, bits);
+                p += bytesPerSample;
+            }
+            mono[f] = (short) (sum / channels);
+        }
+        return sampleRate == outputRate ? mono : resample(mono, sampleRate, outputRate);
+    }
+
+    private static int sample16(byte[] b, int p, int bits) {
+        switch (bits) {
+            case 8:
+                // 8 bit WAV is unsigned
+                return ((b[p] & 0xFF) - 128) << 8;
+            case 16:
+                return (short) ((b[p] & 0xFF) | (b[p + 1] << 8));
+            case 24:
+                return (short) ((b[p + 1] & 0xFF) | (b[p + 2] << 8));
+            default:
+                return (short) ((b[p + 2] & 0xFF) | (b[p + 3] << 8));
+        }
+    }
+
+    private static short[] resample(short[] in, int inRate, int outRate) {
+        int outLength = (int) ((long) in.length * outRate / inRate);
+        short[] out = new short[outLength];
+        double step = (double) inRate / outRate;
+        for (int i = 0; i < outLength; i++) {
+            double x = i * step;
+            int i0 = (int) x;
+            int i1 = Math.min(i0 + 1, in.length - 1);
+            double frac = x - i0;
+            out[i] = (short) (in[i0] + (in[i1] - in[i0]) * frac);
+        }
+        return out;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[16 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean tag(byte[] b, int p, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (b[p + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int le16(byte[] b, int p) {
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8);
+    }
+
+    private static int le32(byte[] b, int p) {
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16)
+                | ((b[p + 3] & 0xFF) << 24);
+    }
+}
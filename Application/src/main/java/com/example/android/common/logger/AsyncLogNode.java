@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LogNode that hands log data to the rest of the chain on another thread.
+ *
+ * <p>{@link #println} only copies the four arguments into a slot of a
+ * preallocated ring and returns; it never blocks, allocates or formats.
+ * Any number of threads may log at once. The slots are drained in batches
+ * on the Looper given to the constructor (the main thread by default), at
+ * most once per flush interval, so the nodes after this one, such as a
+ * {@link LogView}, run on the UI thread and are touched once per frame.</p>
+ *
+ * <p>If the ring is full the line is dropped rather than making the
+ * caller wait; the next flush reports how many were lost.</p>
+ */
+public class AsyncLogNode implements LogNode {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long FLUSH_INTERVAL_MS = 16;
+    // Lines delivered per flush before yielding the Looper
+    private static final int MAX_FLUSH_LINES = 256;
+
+    private LogNode mNext;
+
+    private final Handler mHandler;
+    private final int mMask;
+    // Each slot's sequence says whose turn it is: the producer at position
+    // p may write when it equals p, the consumer may read when it is p + 1.
+    private final AtomicLongArray mSequence;
+    private final int[] mPriority;
+    private final String[] mTag;
+    private final String[] mMsg;
+    private final Throwable[] mThrowable;
+    private final AtomicLong mTail = new AtomicLong();
+    // Only touched by the flushing thread
+    private long mHead;
+
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mDroppedReported;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Deliver on the main thread.
+     */
+    public AsyncLogNode() {
+        this(Looper.getMainLooper(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param looper   The Looper whose thread the rest of the chain runs on
+     * @param capacity Lines that can be waiting; rounded up to a power of two
+     */
+    public AsyncLogNode(Looper looper, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mHandler = new Handler(looper);
+        mMask = size - 1;
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mPriority = new int[size];
+        mTag = new String[size];
+        mMsg = new String[size];
+        mThrowable = new Throwable[size];
+    }
+
+    /**
+     * Returns the next LogNode in the linked list.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Returns the number of lines dropped because the ring was full.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Queues the log data for the next flush.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        long pos = mTail.get();
+        int slot;
+        while (true) {
+            slot = (int) (pos & mMask);
+            long diff = mSequence.get(slot) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // The slot still holds a line from one lap ago: full
+                mDropped.incrementAndGet();
+                scheduleFlush();
+                return;
+            } else {
+                // Another producer took this position
+                pos = mTail.get();
+            }
+        }
+        mPriority[slot] = priority;
+        mTag[slot] = tag;
+        mMsg[slot] = msg;
+        mThrowable[slot] = tr;
+        // Ordered store: the fields above are visible before the slot is
+        mSequence.lazySet(slot, pos + 1);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mFlush, FLUSH_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Deliver waiting lines to the next node. Runs on the Looper thread.
+     */
+    void flush() {
+        // Cleared first so a line queued during the drain schedules another flush
+        mFlushScheduled.set(false);
+        LogNode next = mNext;
+        long dropped = mDropped.get();
+        if (dropped != mDroppedReported && next != null) {
+            next.println(Log.WARN, "AsyncLogNode",
+                    (dropped - mDroppedReported) + " log lines dropped", null);
+        }
+        mDroppedReported = dropped;
+
+        int lines = 0;
+        while (lines < MAX_FLUSH_LINES) {
+            int slot = (int) (mHead & mMask);
+            if (mSequence.get(slot) != mHead + 1) {
+                return;
+            }
+            int priority = mPriority[slot];
+            String tag = mTag[slot];
+            String msg = mMsg[slot];
+            Throwable tr = mThrowable[slot];
+            mTag[slot] = null;
+            mMsg[slot] = null;
+            mThrowable[slot] = null;
+            mSequence.lazySet(slot, mHead + mMask + 1);
+            mHead++;
+            lines++;
+            if (next != null) {
+                next.println(priority, tag, msg, tr);
+            }
+        }
+        // More left over; let other messages on the Looper run first
+        scheduleFlush();
+    }
+}
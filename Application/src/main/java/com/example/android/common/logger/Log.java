@@ -24,18 +24,22 @@ package com.example.android.common.logger;
  * in LogNode.</p>
  */
 public class Log {
-    // Grabbing the native values from Android's native logging facilities,
-    // to make for easy migration and interop.
+    // The values of Android's native logging facilities, to make for easy
+    // migration and interop. Spelled out so that the service classes that log
+    // through here also build without the Android framework.
     public static final int NONE = -1;
-    public static final int VERBOSE = android.util.Log.VERBOSE;
-    public static final int DEBUG = android.util.Log.DEBUG;
-    public static final int INFO = android.util.Log.INFO;
-    public static final int WARN = android.util.Log.WARN;
-    public static final int ERROR = android.util.Log.ERROR;
-    public static final int ASSERT = android.util.Log.ASSERT;
+    public static final int VERBOSE = 2;  // android.util.Log.VERBOSE
+    public static final int DEBUG = 3;    // android.util.Log.DEBUG
+    public static final int INFO = 4;     // android.util.Log.INFO
+    public static final int WARN = 5;     // android.util.Log.WARN
+    public static final int ERROR = 6;    // android.util.Log.ERROR
+    public static final int ASSERT = 7;   // android.util.Log.ASSERT
 
     // Stores the beginning of the LogNode topology.
-    private static LogNode mLogNode;
+    private static volatile LogNode mLogNode;
+
+    // Lines below this priority are discarded before they reach the LogNode.
+    private static volatile int mMinPriority = VERBOSE;
 
     /**
      * Returns the next LogNode in the linked list.
@@ -51,6 +55,30 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Sets the lowest priority that is passed on to the LogNode.
+     */
+    public static void setMinPriority(int priority) {
+        mMinPriority = priority;
+    }
+
+    /**
+     * Returns the lowest priority that is passed on to the LogNode.
+     */
+    public static int getMinPriority() {
+        return mMinPriority;
+    }
+
+    /**
+     * Returns whether data at this priority would reach a LogNode. Check it before
+     * building a message that is costly to format.
+     *
+     * @param priority Log level of the data to be logged. Verbose, Error, etc.
+     */
+    public static boolean isLoggable(int priority) {
+        return mLogNode != null && priority >= mMinPriority;
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,8 +90,9 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
-            mLogNode.println(priority, tag, msg, tr);
+        LogNode node = mLogNode;
+        if (node != null && priority >= mMinPriority) {
+            node.println(priority, tag, msg, tr);
         }
     }
 
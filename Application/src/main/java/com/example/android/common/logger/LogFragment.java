@@ -34,8 +34,6 @@ package com.example.android.common.logger;
 import android.graphics.Typeface;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
-import android.text.Editable;
-import android.text.TextWatcher;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -48,6 +46,9 @@ import android.widget.ScrollView;
  */
 public class LogFragment extends Fragment {
 
+    // Lines kept in the on-screen log
+    private static final int MAX_LOG_LINES = 500;
+
     private LogView mLogView;
     private ScrollView mScrollView;
 
@@ -77,6 +78,7 @@ public class LogFragment extends Fragment {
 
         mLogView.setGravity(Gravity.BOTTOM);
         mLogView.setTextAppearance(getActivity(), android.R.style.TextAppearance_Holo_Medium);
+        mLogView.setMaxLogLines(MAX_LOG_LINES);
 
         mScrollView.addView(mLogView);
         return mScrollView;
@@ -88,15 +90,10 @@ public class LogFragment extends Fragment {
 
         View result = inflateViews();
 
-        mLogView.addTextChangedListener(new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
-
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {}
-
+        // Scroll once per batch of lines rather than on every text change
+        mLogView.setOnLogFlushListener(new LogView.OnLogFlushListener() {
             @Override
-            public void afterTextChanged(Editable s) {
+            public void onLogFlushed(LogView view) {
                 mScrollView.fullScroll(ScrollView.FOCUS_DOWN);
             }
         });
@@ -17,10 +17,15 @@ package com.example.android.common.logger;
 
 import android.app.Activity;
 import android.content.Context;
+import android.text.Editable;
 import android.util.*;
 import android.widget.TextView;
 
 /** Simple TextView which is used to output log data received through the LogNode interface.
+ *
+ * Lines appended within one frame are collected and added to the view in a single append,
+ * so a burst of log data costs one layout pass. With {@link #setMaxLogLines(int)} the view
+ * keeps only the newest lines, and its cost stays flat however long the session runs.
 */
 public class LogView extends TextView implements LogNode {
 
@@ -91,14 +96,16 @@ public class LogView extends TextView implements LogNode {
         appendIfNotNull(outputBuilder, exceptionStr, delimiter);
 
         // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
+        // make sure the update occurs within the UI thread. runOnUiThread appends at once
+        // when already there, e.g. behind an AsyncLogNode.
+        final String output = outputBuilder.toString();
+        ((Activity) getContext()).runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
+                appendToLog(output);
             }
-        })));
+        });
 
         if (mNext != null) {
             mNext.println(priority, tag, msg, tr);
@@ -136,9 +143,106 @@ public class LogView extends TextView implements LogNode {
     // The next LogNode in the chain.
     LogNode mNext;
 
-    /** Outputs the string as a new line of log data in the LogView. */
+    /** Receives a callback after each batch of lines is added to the view. */
+    public interface OnLogFlushListener {
+        void onLogFlushed(LogView view);
+    }
+
+    private static final long FLUSH_INTERVAL_MS = 16;
+
+    private OnLogFlushListener mFlushListener;
+
+    // Lines waiting for the next flush, each preceded by a newline.
+    private final StringBuilder mPending = new StringBuilder();
+    private boolean mFlushPosted;
+
+    // Line budget, and the lengths of the newest lines (on screen, then pending), oldest first.
+    private int mMaxLogLines;
+    private int[] mLineLengths;
+    private int mLineHead;
+    private int mLineCount;
+    private int mScreenLines;
+    // Characters to remove from the front of the view, and of mPending, on the next flush.
+    private int mEvictChars;
+    private int mPendingSkip;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushLog();
+        }
+    };
+
+    /**
+     * Keeps at most this many lines, dropping the oldest. 0 keeps everything. Clears the log.
+     */
+    public void setMaxLogLines(int maxLines) {
+        mMaxLogLines = Math.max(0, maxLines);
+        mLineLengths = mMaxLogLines > 0 ? new int[mMaxLogLines] : null;
+        mLineHead = 0;
+        mLineCount = 0;
+        mScreenLines = 0;
+        mEvictChars = 0;
+        mPendingSkip = 0;
+        mPending.setLength(0);
+        setText("");
+    }
+
+    public int getMaxLogLines() {
+        return mMaxLogLines;
+    }
+
+    public void setOnLogFlushListener(OnLogFlushListener listener) {
+        mFlushListener = listener;
+    }
+
+    /** Outputs the string as a new line of log data in the LogView. Must be called on the UI
+     * thread; the line shows up with the next flush, within a frame. */
     public void appendToLog(String s) {
-        append("\n" + s);
+        mPending.append('\n').append(s);
+        if (mMaxLogLines > 0) {
+            if (mLineCount == mMaxLogLines) {
+                // Evict the oldest line, from the screen or, in a large burst, from mPending
+                int oldest = mLineLengths[mLineHead];
+                mLineHead = (mLineHead + 1) % mMaxLogLines;
+                mLineCount--;
+                if (mScreenLines > 0) {
+                    mScreenLines--;
+                    mEvictChars += oldest;
+                } else {
+                    mPendingSkip += oldest;
+                }
+            }
+            mLineLengths[(mLineHead + mLineCount) % mMaxLogLines] = s.length() + 1;
+            mLineCount++;
+        }
+        if (!mFlushPosted) {
+            mFlushPosted = true;
+            postDelayed(mFlush, FLUSH_INTERVAL_MS);
+        }
+    }
+
+    private void flushLog() {
+        mFlushPosted = false;
+        if (mPending.length() == 0) {
+            return;
+        }
+        if (mEvictChars > 0) {
+            Editable text = getEditableText();
+            if (text != null && text.length() >= mEvictChars) {
+                text.delete(0, mEvictChars);
+            } else {
+                setText("");
+            }
+        }
+        append(mPending.substring(mPendingSkip));
+        mPending.setLength(0);
+        mEvictChars = 0;
+        mPendingSkip = 0;
+        mScreenLines = mLineCount;
+        if (mFlushListener != null) {
+            mFlushListener.onLogFlushed(this);
+        }
     }
 
 
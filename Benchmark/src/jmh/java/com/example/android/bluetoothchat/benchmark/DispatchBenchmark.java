@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import com.example.android.bluetoothchat.EventBatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hand-off from the read loop to the UI thread. android.os.Handler is
+ * not available on a plain JVM, so the MessageQueue is modelled by a queue
+ * drained on the same thread. One operation is one received event.
+ *
+ * <p>{@link #postAndHandle} is the former path: per read a name update with
+ * a Bundle-like map plus a MESSAGE_READ. {@link #coalesced} is the current
+ * path: reads go into an {@link EventBatcher} that is drained once per
+ * frame.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+
+    static final int EVENTS = 4096;
+
+    /** Bytes handed over per read; 1 is the old one-read-per-byte loop. */
+    @Param({"1", "16", "256"})
+    public int chunk;
+
+    /** Bytes received per frame (16 ms) before the UI drains the batch. */
+    static final int FRAME_BYTES = 256;
+
+    private byte[] mStream;
+    private final ArrayDeque<Object[]> mQueue = new ArrayDeque<Object[]>();
+    private final EventBatcher mBatcher = new EventBatcher(4096);
+
+    @Setup
+    public void setUp() {
+        mStream = SyntheticStream.notes(EVENTS, 11);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void postAndHandle(Blackhole blackhole) {
+        for (int offset = 0; offset < EVENTS; offset += chunk) {
+            int bytes = Math.min(chunk, EVENTS - offset);
+            // MESSAGE_CHANGE_DEVICE_NAME with a fresh Bundle
+            HashMap<String, Object> bundle = new HashMap<String, Object>(4);
+            bundle.put("device_name", "sensor");
+            mQueue.add(new Object[]{6, bundle});
+            // MESSAGE_READ with a copy of the receive buffer
+            mQueue.add(new Object[]{2, Arrays.copyOfRange(mStream, offset, offset + bytes)});
+
+            // The UI thread side: one String per message
+            Object[] message;
+            while ((message = mQueue.poll()) != null) {
+                if (message[1] instanceof byte[]) {
+                    byte[] data = (byte[]) message[1];
+                    blackhole.consume(new String(data, 0, data.length));
+                } else {
+                    blackhole.consume(message[1]);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void coalesced(Blackhole blackhole) {
+        int sinceFlush = 0;
+        for (int offset = 0; offset < EVENTS; offset += chunk) {
+            int bytes = Math.min(chunk, EVENTS - offset);
+            mBatcher.append(mStream, offset, bytes);
+            sinceFlush += bytes;
+            if (sinceFlush >= FRAME_BYTES) {
+                drain(blackhole);
+                sinceFlush = 0;
+            }
+        }
+        drain(blackhole);
+    }
+
+    private void drain(Blackhole blackhole) {
+        // The UI thread side: one MESSAGE_READ and one String per batch
+        byte[] batch = mBatcher.drain();
+        if (batch != null) {
+            mQueue.add(new Object[]{2, batch});
+            Object[] message = mQueue.poll();
+            byte[] data = (byte[]) message[1];
+            blackhole.consume(new String(data, 0, data.length));
+        }
+    }
+}
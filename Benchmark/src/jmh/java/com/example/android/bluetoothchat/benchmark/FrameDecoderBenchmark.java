@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import com.example.android.bluetoothchat.EventDecoder;
+import com.example.android.bluetoothchat.FrameCodec;
+import com.example.android.bluetoothchat.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the framed protocol, fed in read-sized chunks that split frames
+ * at arbitrary points. One operation is one note frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecoderBenchmark {
+
+    static final int EVENTS = 4096;
+
+    @Param({"16", "1024"})
+    public int chunk;
+
+    private byte[] mStream;
+    private int mStreamLength;
+    private final FrameDecoder mDecoder = new FrameDecoder(true);
+    private EventDecoder.EventSink mSink;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        byte[] codes = SyntheticStream.notes(EVENTS, 3);
+        mStream = new byte[EVENTS * (FrameCodec.HEADER_SIZE + 2)];
+        for (int i = 0; i < EVENTS; i++) {
+            mStreamLength += FrameCodec.encodeNote(mStream, mStreamLength, 1, i, i * 10000L,
+                    codes[i], FrameCodec.DEFAULT_VELOCITY);
+        }
+        mSink = new EventDecoder.EventSink() {
+            @Override
+            public void onEvent(int code) {
+                blackhole.consume(code);
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int decode() {
+        int events = 0;
+        for (int offset = 0; offset < mStreamLength; offset += chunk) {
+            events += mDecoder.decode(mStream, offset, Math.min(chunk, mStreamLength - offset), mSink);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import com.example.android.bluetoothchat.BluetoothChatService;
+import com.example.android.bluetoothchat.ChatEvents;
+import com.example.android.bluetoothchat.PeerCounters;
+import com.example.android.bluetoothchat.SoundEngine;
+import com.example.android.bluetoothchat.SoundSource;
+import com.example.android.bluetoothchat.Transport;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link BluetoothChatService} without a screen or speakers: what it
+ * reports to the UI is discarded on a thread standing in for the UI thread,
+ * and every sample counts as loaded but plays nothing.
+ */
+final class Headless {
+
+    private static final ScheduledExecutorService UI_THREAD =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HeadlessUi");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ChatEvents EVENTS = new ChatEvents() {
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onDeviceConnected(int deviceId, String name) {
+        }
+
+        @Override
+        public void onNotes(int deviceId, byte[] codes) {
+        }
+
+        @Override
+        public void onWritten(byte[] buffer) {
+        }
+
+        @Override
+        public void onToast(String text) {
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            UI_THREAD.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            // A flush that runs after its link dropped finds nothing to deliver
+        }
+    };
+
+    private static final SoundEngine ENGINE = new SoundEngine() {
+        @Override
+        public void addSound(int index, int resId) {
+        }
+
+        @Override
+        public void removeSound(int index) {
+        }
+
+        @Override
+        public boolean isLoaded(int index) {
+            return true;
+        }
+
+        @Override
+        public void playSound(int index) {
+        }
+
+        @Override
+        public boolean playSoundAt(int index, long timeNanos, PlayListener listener,
+                                   long readNanos) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final SoundSource SOUNDS = new SoundSource() {
+        @Override
+        public SoundEngine acquire() {
+            return ENGINE;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void bindKit(String kit) {
+        }
+
+        @Override
+        public void unbindKit(String kit) {
+        }
+
+        @Override
+        public ThreadFactory getAudioThreadFactory() {
+            return Executors.defaultThreadFactory();
+        }
+    };
+
+    private Headless() {
+    }
+
+    /**
+     * Returns a started service listening on the transport, which only
+     * takes incoming links.
+     */
+    static BluetoothChatService start(Transport transport) {
+        BluetoothChatService service = new BluetoothChatService(EVENTS, SOUNDS, transport);
+        service.setAutoReconnect(false);
+        service.start();
+        return service;
+    }
+
+    /**
+     * Returns the bytes the service has read from all peers so far.
+     */
+    static long bytesIn(BluetoothChatService service) {
+        long bytes = 0;
+        for (PeerCounters.Snapshot counters : service.getPeerCounters()) {
+            bytes += counters.bytesIn;
+        }
+        return bytes;
+    }
+}
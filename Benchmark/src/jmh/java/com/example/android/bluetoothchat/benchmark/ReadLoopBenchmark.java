@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import com.example.android.bluetoothchat.ChunkReader;
+import com.example.android.bluetoothchat.EventDecoder;
+import com.example.android.bluetoothchat.NoteDecoder;
+import com.example.android.bluetoothchat.NoteMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ConnectedThread read loop: read from the stream, decode, map every
+ * note code to a sample. One operation is one received event.
+ *
+ * <p>The input is random note codes unless {@code -p session=<dir>} points
+ * at a recording pulled from the device; its received bytes are used then.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadLoopBenchmark {
+
+    static final int EVENTS = 4096;
+
+    @Param({"true", "false"})
+    public boolean bulk;
+
+    @Param({""})
+    public String session;
+
+    private ByteArrayInputStream mStream;
+    private ChunkReader mReader;
+    private final EventDecoder mDecoder = new NoteDecoder();
+    private MappingSink mSink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        byte[] input = session.isEmpty() ? SyntheticStream.notes(EVENTS, 42)
+                : RecordedStream.received(new File(session), EVENTS);
+        mStream = new ByteArrayInputStream(input);
+        mReader = new ChunkReader(mStream, 1024, bulk);
+        mSink = new MappingSink(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int readDecodeMap() throws IOException {
+        mStream.reset();
+        int events = 0;
+        int bytes;
+        while ((bytes = mReader.read()) > 0) {
+            events += mDecoder.decode(mReader.getBuffer(), 0, bytes, mSink);
+        }
+        return events;
+    }
+
+    /** Stands in for ConnectedThread.onEvent(): map the code, "play" the sample. */
+    static final class MappingSink implements EventDecoder.EventSink {
+        private final Blackhole mBlackhole;
+
+        MappingSink(Blackhole blackhole) {
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        public void onEvent(int code) {
+            mBlackhole.consume(NoteMap.soundIndex((char) code));
+        }
+    }
+}
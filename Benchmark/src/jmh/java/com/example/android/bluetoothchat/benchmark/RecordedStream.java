@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import com.example.android.bluetoothchat.SessionReader;
+import com.example.android.bluetoothchat.SessionRecorder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Benchmark input taken from a real session recorded by the app (see
+ * {@link SessionRecorder}), for when uniform random notes are too tidy.
+ */
+final class RecordedStream {
+
+    private RecordedStream() {
+    }
+
+    /**
+     * Returns the first length bytes received in the recording, from all
+     * peers in arrival order, starting over from the beginning if it is shorter.
+     *
+     * @param dir Directory holding the segment files, e.g. pulled from the device
+     */
+    static byte[] received(File dir, int length) throws IOException {
+        byte[] data = new byte[length];
+        int filled = 0;
+        while (filled < length) {
+            int before = filled;
+            SessionReader reader = new SessionReader(dir);
+            try {
+                while (filled < length && reader.next()) {
+                    if (reader.getType() == SessionRecorder.TYPE_IN) {
+                        int copy = Math.min(reader.getLength(), length - filled);
+                        System.arraycopy(reader.getData(), 0, data, filled, copy);
+                        filled += copy;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (filled == before) {
+                throw new IOException("nothing received in " + dir);
+            }
+        }
+        return data;
+    }
+}
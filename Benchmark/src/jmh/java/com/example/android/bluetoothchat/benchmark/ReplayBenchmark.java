@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import com.example.android.bluetoothchat.BluetoothChatService;
+import com.example.android.bluetoothchat.ReplayTransport;
+import com.example.android.bluetoothchat.SessionReader;
+import com.example.android.bluetoothchat.SessionRecorder;
+import com.example.android.bluetoothchat.SessionReplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A whole session replayed into {@link BluetoothChatService} through a
+ * {@link ReplayTransport}, as fast as the service takes it: accept, read,
+ * decode and playback of every peer. One operation is one replay, until
+ * the service has read everything and every peer has dropped again.
+ *
+ * <p>The session is {@link #PEERS} peers sending random note codes unless
+ * {@code -p session=<dir>} points at a recording pulled from the device;
+ * that recording is replayed then.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplayBenchmark {
+
+    static final int PEERS = 7;
+    static final int EVENTS_PER_PEER = 4096;
+    static final int CHUNK = 16;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @Param({""})
+    public String session;
+
+    private File mDir;
+    private boolean mSynthetic;
+    private long mBytes;
+    private ReplayTransport mTransport;
+    private BluetoothChatService mService;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        mSynthetic = session.isEmpty();
+        if (mSynthetic) {
+            mDir = File.createTempFile("replay", "");
+            if (!mDir.delete()) {
+                throw new IOException("cannot replace " + mDir);
+            }
+            record(mDir);
+        } else {
+            mDir = new File(session);
+        }
+        SessionReader reader = new SessionReader(mDir);
+        try {
+            while (reader.next()) {
+                if (reader.getType() == SessionRecorder.TYPE_IN) {
+                    mBytes += reader.getLength();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (mBytes == 0) {
+            throw new IOException("nothing received in " + mDir);
+        }
+        mTransport = new ReplayTransport();
+        mService = Headless.start(mTransport);
+    }
+
+    /**
+     * Record the peers taking turns, one chunk each.
+     */
+    private static void record(File dir) throws IOException, InterruptedException {
+        SessionRecorder recorder = new SessionRecorder(dir, SessionRecorder.DEFAULT_SEGMENT_SIZE);
+        byte[][] streams = new byte[PEERS][];
+        for (int peer = 0; peer < PEERS; peer++) {
+            recorder.deviceConnected(peer + 1, "00:00:00:00:00:0" + (peer + 1));
+            streams[peer] = SyntheticStream.notes(EVENTS_PER_PEER, peer);
+        }
+        for (int offset = 0; offset < EVENTS_PER_PEER; offset += CHUNK) {
+            for (int peer = 0; peer < PEERS; peer++) {
+                // Give the flusher time rather than drop the chunk
+                while (!recorder.record(SessionRecorder.TYPE_IN, peer + 1, streams[peer],
+                        offset, CHUNK)) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        for (int peer = 0; peer < PEERS; peer++) {
+            recorder.deviceClosed(peer + 1);
+        }
+        recorder.close();
+        if (recorder.getFailure() != null) {
+            throw recorder.getFailure();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mService.stop();
+        if (!mSynthetic) {
+            return;
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long replay() throws InterruptedException {
+        long before = Headless.bytesIn(mService);
+        SessionReplayer replayer = new SessionReplayer(mDir, mTransport);
+        replayer.setSpeed(SessionReplayer.ASAP);
+        replayer.start();
+        if (!replayer.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("replay did not end");
+        }
+        // Fed is not yet read; the peers drop once the service reads their end
+        long bytes;
+        while ((bytes = Headless.bytesIn(mService) - before) < mBytes
+                || mService.getConnectedCount() > 0) {
+            LockSupport.parkNanos(50000);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible byte streams made of the sensor note codes.
+ */
+final class SyntheticStream {
+
+    /** Every note code understood by the current firmware. */
+    static final String NOTE_CODES = "cdefgabCwxyz12345678";
+
+    private SyntheticStream() {
+    }
+
+    /**
+     * Returns length random note codes, the same sequence for the same seed.
+     */
+    static byte[] notes(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) NOTE_CODES.charAt(random.nextInt(NOTE_CODES.length()));
+        }
+        return data;
+    }
+}
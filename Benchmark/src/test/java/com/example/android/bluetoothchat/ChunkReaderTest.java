@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds scripted streams through {@link ChunkReader} and {@link NoteDecoder}
+ * as the connection read loop does.
+ */
+public class ChunkReaderTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    /**
+     * Runs the read loop to end of stream and returns the decoded events.
+     */
+    private static byte[] decodeAll(ChunkReader reader) throws IOException {
+        final ByteArrayOutputStream events = new ByteArrayOutputStream();
+        EventDecoder.EventSink sink = new EventDecoder.EventSink() {
+            @Override
+            public void onEvent(int code) {
+                events.write(code);
+            }
+        };
+        NoteDecoder decoder = new NoteDecoder();
+        int bytes;
+        while ((bytes = reader.read()) >= 0) {
+            assertEquals(bytes, decoder.decode(reader.getBuffer(), 0, bytes, sink));
+        }
+        return events.toByteArray();
+    }
+
+    @Test
+    public void bulkReadReturnsWholeChunks() throws IOException {
+        ScriptedInputStream in = new ScriptedInputStream(bytes("cdefg"), bytes("ab"));
+        ChunkReader reader = new ChunkReader(in, 64, true);
+        assertEquals(5, reader.read());
+        assertEquals('c', reader.getBuffer()[0]);
+        assertEquals('g', reader.getBuffer()[4]);
+        assertEquals(2, reader.read());
+        assertEquals('a', reader.getBuffer()[0]);
+        assertEquals(-1, reader.read());
+    }
+
+    @Test
+    public void singleByteModeReadsOneEventPerCall() throws IOException {
+        ScriptedInputStream in = new ScriptedInputStream(bytes("cdefg"), bytes("ab"));
+        ChunkReader reader = new ChunkReader(in, 64, false);
+        assertArrayEquals(bytes("cdefgab"), decodeAll(reader));
+        // Seven events plus the read that saw end of stream
+        assertEquals(8, in.getReads());
+    }
+
+    @Test
+    public void chunkLargerThanBufferIsSplit() throws IOException {
+        ScriptedInputStream in = new ScriptedInputStream(bytes("cdefgabCwx"), bytes("yz"));
+        ChunkReader reader = new ChunkReader(in, 4, true);
+        assertEquals(4, reader.read());
+        assertEquals(4, reader.read());
+        assertEquals(2, reader.read());
+        assertEquals('w', reader.getBuffer()[0]);
+        assertEquals(2, reader.read());
+        assertEquals(-1, reader.read());
+    }
+
+    @Test
+    public void splitChunksDecodeToTheSameEvents() throws IOException {
+        byte[] expected = bytes("cdefgabCwxyz12345678");
+        ChunkReader whole = new ChunkReader(new ScriptedInputStream(expected), 1024, true);
+        ChunkReader split = new ChunkReader(new ScriptedInputStream(
+                bytes("cdefgab"), bytes("C"), bytes("wxyz1234"), bytes("5678")), 3, true);
+        assertArrayEquals(expected, decodeAll(whole));
+        assertArrayEquals(expected, decodeAll(split));
+    }
+
+    @Test
+    public void endOfStreamReturnsMinusOne() throws IOException {
+        assertEquals(-1, new ChunkReader(new ScriptedInputStream(), 16, true).read());
+        assertEquals(-1, new ChunkReader(new ScriptedInputStream(), 16, false).read());
+
+        ChunkReader reader = new ChunkReader(new ScriptedInputStream(bytes("c")), 16, false);
+        assertEquals(1, reader.read());
+        assertEquals(-1, reader.read());
+        assertEquals(-1, reader.read());
+    }
+
+    @Test
+    public void bulkModeDecodesAtLeastAMillionEventsPerSecond() throws IOException {
+        // 1 MiB of notes arriving in 1 KiB bursts
+        byte[][] chunks = new byte[1024][];
+        byte[] codes = bytes("cdefgabCwxyz12345678");
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new byte[1024];
+            for (int j = 0; j < chunks[i].length; j++) {
+                chunks[i][j] = codes[(i + j) % codes.length];
+            }
+        }
+        final long[] events = new long[1];
+        EventDecoder.EventSink sink = new EventDecoder.EventSink() {
+            @Override
+            public void onEvent(int code) {
+                events[0]++;
+            }
+        };
+        NoteDecoder decoder = new NoteDecoder();
+        long start = System.nanoTime();
+        ChunkReader reader = new ChunkReader(new ScriptedInputStream(chunks), 1024, true);
+        int bytes;
+        while ((bytes = reader.read()) >= 0) {
+            decoder.decode(reader.getBuffer(), 0, bytes, sink);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(1024 * 1024, events[0]);
+        // Far below what a JVM does; catches a per-event read or allocation creeping back
+        double perSecond = events[0] * 1e9 / elapsed;
+        assertTrue("only " + (long) perSecond + " events/s", perSecond > 1e6);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChatEvents} that collects what the service reports, with one
+ * thread standing in for the UI thread.
+ */
+class CollectingEvents implements ChatEvents {
+
+    private final ScheduledExecutorService mUiThread =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TestUi");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Map<Runnable, ScheduledFuture<?>> mPosted =
+            new HashMap<Runnable, ScheduledFuture<?>>();
+    // Device id -> note codes received, in order
+    private final Map<Integer, ByteArrayOutputStream> mNotes =
+            new HashMap<Integer, ByteArrayOutputStream>();
+    private final Map<Integer, String> mNames = new HashMap<Integer, String>();
+    private final List<String> mToasts = new ArrayList<String>();
+    private int mNoteCount;
+    private long mWritten;
+
+    @Override
+    public synchronized void onStateChanged(int state) {
+    }
+
+    @Override
+    public synchronized void onDeviceConnected(int deviceId, String name) {
+        mNames.put(deviceId, name);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onNotes(int deviceId, byte[] codes) {
+        ByteArrayOutputStream notes = mNotes.get(deviceId);
+        if (notes == null) {
+            notes = new ByteArrayOutputStream();
+            mNotes.put(deviceId, notes);
+        }
+        notes.write(codes, 0, codes.length);
+        mNoteCount += codes.length;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onWritten(byte[] buffer) {
+        mWritten += buffer.length;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onToast(String text) {
+        mToasts.add(text);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void postDelayed(final Runnable task, long delayMs) {
+        mPosted.put(task, mUiThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CollectingEvents.this) {
+                    mPosted.remove(task);
+                }
+                task.run();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable task) {
+        ScheduledFuture<?> posted = mPosted.remove(task);
+        if (posted != null) {
+            posted.cancel(false);
+        }
+    }
+
+    /**
+     * Wait until at least count note codes arrived, from all devices together.
+     *
+     * @return false on timeout
+     */
+    synchronized boolean awaitNotes(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mNoteCount < count) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until at least count devices connected.
+     *
+     * @return false on timeout
+     */
+    synchronized boolean awaitDevices(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mNames.size() < count) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    synchronized int getNoteCount() {
+        return mNoteCount;
+    }
+
+    /**
+     * Returns the note codes received from one device, by its name.
+     */
+    synchronized byte[] getNotes(String name) {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (Map.Entry<Integer, String> entry : mNames.entrySet()) {
+            ByteArrayOutputStream notes = mNotes.get(entry.getKey());
+            if (name.equals(entry.getValue()) && notes != null) {
+                byte[] bytes = notes.toByteArray();
+                all.write(bytes, 0, bytes.length);
+            }
+        }
+        return all.toByteArray();
+    }
+
+    synchronized List<String> getNames() {
+        return new ArrayList<String>(mNames.values());
+    }
+
+    synchronized List<String> getToasts() {
+        return new ArrayList<String>(mToasts);
+    }
+
+    synchronized long getWritten() {
+        return mWritten;
+    }
+}
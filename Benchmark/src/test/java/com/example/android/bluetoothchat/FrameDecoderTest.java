@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encodes streams with {@link FrameCodec} and decodes them with
+ * {@link FrameDecoder}, the way the connection read loop does.
+ */
+public class FrameDecoderTest {
+
+    private final ByteArrayOutputStream mEvents = new ByteArrayOutputStream();
+    private final EventDecoder.EventSink mSink = new EventDecoder.EventSink() {
+        @Override
+        public void onEvent(int code) {
+            mEvents.write(code);
+        }
+    };
+
+    private static byte[] note(int sequence, long timestampUs, int code) {
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + 2];
+        FrameCodec.encodeNote(frame, 0, 7, sequence, timestampUs, code, 90);
+        return frame;
+    }
+
+    private static byte[] frame(int sequence, int type, byte[] payload) {
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + payload.length];
+        FrameCodec.encode(frame, 0, 7, sequence, 0, type, payload, 0, payload.length);
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsHeaderAndPayload() {
+        final long[] seen = new long[5];
+        FrameDecoder decoder = new FrameDecoder(false);
+        decoder.setFrameListener(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int deviceId, int sequence, long timestampUs, int type,
+                                byte[] payload, int offset, int length) {
+                seen[0] = deviceId;
+                seen[1] = sequence;
+                seen[2] = timestampUs;
+                seen[3] = type;
+                seen[4] = payload[offset + 1];
+            }
+        });
+        byte[] stream = note(0xBEEF, 0xFEDCBA98L, 'c');
+        assertEquals(1, decoder.decode(stream, 0, stream.length, mSink));
+        assertArrayEquals(new byte[]{'c'}, mEvents.toByteArray());
+        assertArrayEquals(new long[]{7, 0xBEEF, 0xFEDCBA98L, FrameCodec.TYPE_NOTE, 90}, seen);
+        assertEquals(1, decoder.getFrames());
+    }
+
+    @Test
+    public void framesSplitAtEveryByteDecodeTheSame() {
+        byte[] stream = concat(note(1, 10, 'c'), frame(2, FrameCodec.TYPE_HEARTBEAT, new byte[0]),
+                note(3, 30, 'd'));
+        for (int split = 1; split < stream.length; split++) {
+            mEvents.reset();
+            FrameDecoder decoder = new FrameDecoder(false);
+            int events = decoder.decode(stream, 0, split, mSink)
+                    + decoder.decode(stream, split, stream.length - split, mSink);
+            assertEquals("split at " + split, 2, events);
+            assertArrayEquals("split at " + split, new byte[]{'c', 'd'}, mEvents.toByteArray());
+            assertEquals(3, decoder.getFrames());
+            assertEquals(0, decoder.getLostFrames());
+        }
+    }
+
+    @Test
+    public void byteByByteDecodeTheSame() {
+        byte[] stream = concat(note(1, 10, 'e'), note(2, 20, 'f'));
+        FrameDecoder decoder = new FrameDecoder(false);
+        for (int i = 0; i < stream.length; i++) {
+            decoder.decode(stream, i, 1, mSink);
+        }
+        assertArrayEquals(new byte[]{'e', 'f'}, mEvents.toByteArray());
+    }
+
+    @Test
+    public void badLengthResyncsOnTheNextFrame() {
+        // SYNC followed by a length shorter than the header is noise
+        byte[] stream = concat(new byte[]{(byte) FrameCodec.SYNC, 3}, note(1, 0, 'g'));
+        FrameDecoder decoder = new FrameDecoder(false);
+        assertEquals(1, decoder.decode(stream, 0, stream.length, mSink));
+        assertArrayEquals(new byte[]{'g'}, mEvents.toByteArray());
+        assertEquals(1, decoder.getBadFrames());
+        assertEquals(1, decoder.getFrames());
+    }
+
+    @Test
+    public void noiseBetweenFramesIsSkipped() {
+        byte[] noise = {(byte) 0x80, (byte) 0xFF, (byte) 0xA0};
+        byte[] stream = concat(noise, note(1, 0, 'a'), noise, note(2, 0, 'b'));
+        FrameDecoder decoder = new FrameDecoder(false);
+        assertEquals(2, decoder.decode(stream, 0, stream.length, mSink));
+        assertArrayEquals(new byte[]{'a', 'b'}, mEvents.toByteArray());
+    }
+
+    @Test
+    public void sequenceGapsCountAsLostFrames() {
+        byte[] stream = concat(note(65534, 0, 'a'), note(1, 0, 'b'));
+        FrameDecoder decoder = new FrameDecoder(false);
+        decoder.decode(stream, 0, stream.length, mSink);
+        // 65535 and 0 are missing
+        assertEquals(2, decoder.getLostFrames());
+    }
+
+    @Test
+    public void legacyBytesMixWithFrames() {
+        byte[] stream = concat("cd".getBytes(), note(1, 0, 'e'), "f".getBytes(),
+                frame(2, FrameCodec.TYPE_HEARTBEAT, new byte[0]), "g".getBytes());
+        FrameDecoder decoder = new FrameDecoder(true);
+        assertEquals(5, decoder.decode(stream, 0, stream.length, mSink));
+        assertArrayEquals("cdefg".getBytes(), mEvents.toByteArray());
+    }
+
+    @Test
+    public void legacyBytesAreDroppedWithoutLegacyMode() {
+        byte[] stream = concat("cd".getBytes(), note(1, 0, 'e'));
+        FrameDecoder decoder = new FrameDecoder(false);
+        assertEquals(1, decoder.decode(stream, 0, stream.length, mSink));
+        assertArrayEquals(new byte[]{'e'}, mEvents.toByteArray());
+    }
+
+    @Test
+    public void emptyNoteFrameYieldsNoEvent() {
+        final int[] frames = new int[1];
+        byte[] stream = concat(frame(1, FrameCodec.TYPE_NOTE, new byte[0]), "c".getBytes());
+        FrameDecoder decoder = new FrameDecoder(true);
+        decoder.setFrameListener(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int deviceId, int sequence, long timestampUs, int type,
+                                byte[] payload, int offset, int length) {
+                frames[0]++;
+                assertEquals(0, length);
+            }
+        });
+        assertEquals(1, decoder.decode(stream, 0, stream.length, mSink));
+        assertEquals(1, frames[0]);
+        // Only the legacy byte after it
+        assertArrayEquals(new byte[]{'c'}, mEvents.toByteArray());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the service's accept and read path with simulated sensors from a
+ * {@link LoadGenerator} over a {@link ReplayTransport}, and checks that
+ * every note sent was decoded and played.
+ *
+ * <p>The load can be raised from the command line, e.g.
+ * {@code -Dload.sensors=64 -Dload.rate=100 -Dload.seconds=30}; the figures
+ * of each run are printed.</p>
+ */
+public class LoadGeneratorTest {
+
+    private static final int SENSORS = Integer.getInteger("load.sensors", 16);
+    private static final int RATE = Integer.getInteger("load.rate", 100);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 2);
+    private static final long TIMEOUT_MS = 10000;
+
+    private final CollectingEvents mEvents = new CollectingEvents();
+    private final SilentSounds mSounds = new SilentSounds();
+    private final ReplayTransport mTransport = new ReplayTransport();
+    private BluetoothChatService mService;
+
+    @Before
+    public void setUp() {
+        mService = new BluetoothChatService(mEvents, mSounds, mTransport);
+        mService.setAutoReconnect(false);
+        mService.start();
+    }
+
+    @After
+    public void tearDown() {
+        mService.stop();
+    }
+
+    /**
+     * Run the load and wait until the service has read all of it and every
+     * sensor has dropped.
+     */
+    private LoadGenerator.Stats run(LoadGenerator load) throws InterruptedException {
+        load.start(TimeUnit.SECONDS.toMillis(SECONDS));
+        assertTrue(load.await(SECONDS * 1000 + TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        LoadGenerator.Stats stats = load.getStats();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mService.getConnectedCount() > 0 || decoded() < stats.notesSent) {
+            assertTrue("decoded " + decoded() + " of " + stats,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        System.out.println(getClass().getSimpleName() + ": " + stats + ", decoded "
+                + decoded() + "; " + mService.getIoStats());
+        return stats;
+    }
+
+    private long decoded() {
+        long events = 0;
+        for (PeerCounters.Snapshot counters : mService.getPeerCounters()) {
+            events += counters.eventsDecoded;
+        }
+        return events;
+    }
+
+    private long connects() {
+        long connects = 0;
+        for (PeerCounters.Snapshot counters : mService.getPeerCounters()) {
+            connects += counters.reconnects + 1;
+        }
+        return connects;
+    }
+
+    @Test
+    public void everyNoteSentIsDecoded() throws InterruptedException {
+        LoadGenerator load = new LoadGenerator(mTransport);
+        load.setSensors(SENSORS);
+        load.setRate(RATE);
+        load.setBurst(8, 0.1);
+        LoadGenerator.Stats stats = run(load);
+
+        assertTrue(stats.notesSent > 0);
+        assertEquals(0, stats.notesOverflowed);
+        assertEquals(stats.notesSent, decoded());
+        assertEquals(stats.notesSent, mSounds.getPlayed());
+        assertEquals(SENSORS, stats.connects);
+        assertEquals(SENSORS, mService.getPeerCounters().size());
+    }
+
+    @Test
+    public void sensorsThatRedialLoseNothing() throws InterruptedException {
+        LoadGenerator load = new LoadGenerator(mTransport);
+        load.setSensors(SENSORS);
+        load.setRate(RATE);
+        // Away long enough that the old link is read to its end first
+        load.setDisconnects(0.02, 100);
+        LoadGenerator.Stats stats = run(load);
+
+        assertTrue(stats.disconnects > 0);
+        assertEquals(stats.notesSent, decoded());
+        assertEquals(stats.connects, connects());
+        assertEquals(0, mSounds.getRefCount());
+    }
+}
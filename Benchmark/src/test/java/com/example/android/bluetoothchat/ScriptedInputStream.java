@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.InputStream;
+
+/**
+ * InputStream that hands out a fixed script of chunks the way a socket
+ * does: a read never crosses into the next chunk, and available() only
+ * reports what is left of the current one. After the last chunk it
+ * returns end of stream.
+ */
+class ScriptedInputStream extends InputStream {
+
+    private final byte[][] mChunks;
+    private int mChunk;
+    private int mPos;
+    private int mReads;
+
+    ScriptedInputStream(byte[]... chunks) {
+        mChunks = chunks;
+    }
+
+    @Override
+    public int read() {
+        byte[] buffer = new byte[1];
+        return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        mReads++;
+        while (mChunk < mChunks.length && mPos == mChunks[mChunk].length) {
+            mChunk++;
+            mPos = 0;
+        }
+        if (mChunk == mChunks.length) {
+            return -1;
+        }
+        int n = Math.min(length, mChunks[mChunk].length - mPos);
+        System.arraycopy(mChunks[mChunk], mPos, buffer, offset, n);
+        mPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return mChunk < mChunks.length ? mChunks[mChunk].length - mPos : 0;
+    }
+
+    /**
+     * Returns the number of read calls made so far.
+     */
+    int getReads() {
+        return mReads;
+    }
+}
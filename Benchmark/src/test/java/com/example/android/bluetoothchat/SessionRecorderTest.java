@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records into a temporary directory with {@link SessionRecorder} and reads
+ * the segments back with {@link SessionReader}.
+ */
+public class SessionRecorderTest {
+
+    private static final int CHUNK = 1000;
+
+    private File mDir;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("session", "");
+        assertTrue(mDir.delete());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static byte[] filled(int value, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
+    @Test
+    public void longChunkIsWrittenWhole() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mDir, SessionRecorder.DEFAULT_SEGMENT_SIZE);
+        byte[] data = new byte[CHUNK];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertTrue(recorder.record(SessionRecorder.TYPE_IN, 1, data, 0, data.length));
+        recorder.close();
+
+        SessionReader reader = new SessionReader(mDir);
+        int read = 0;
+        while (reader.next()) {
+            assertEquals(SessionRecorder.TYPE_IN, reader.getType());
+            for (int i = 0; i < reader.getLength(); i++) {
+                assertEquals(data[read++], reader.getData()[i]);
+            }
+        }
+        reader.close();
+        assertEquals(CHUNK, read);
+        assertEquals(1, recorder.getStats().recorded);
+    }
+
+    @Test
+    public void fullRingDropsWholeChunks() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mDir, SessionRecorder.DEFAULT_SEGMENT_SIZE);
+        int attempts = 5000;
+        int accepted = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (recorder.record(SessionRecorder.TYPE_IN, 1, filled(i, CHUNK), 0, CHUNK)) {
+                accepted++;
+            }
+        }
+        recorder.close();
+        SessionRecorder.Stats stats = recorder.getStats();
+        assertEquals(accepted, stats.recorded);
+        assertEquals(attempts - accepted, stats.dropped);
+
+        // Every chunk comes back in full, its records one after another
+        SessionReader reader = new SessionReader(mDir);
+        int chunks = 0;
+        int length = 0;
+        int value = 0;
+        while (reader.next()) {
+            if (length == 0) {
+                value = reader.getData()[0];
+            }
+            for (int i = 0; i < reader.getLength(); i++) {
+                assertEquals(value, reader.getData()[i]);
+            }
+            length += reader.getLength();
+            if (length == CHUNK) {
+                chunks++;
+                length = 0;
+            }
+        }
+        reader.close();
+        assertEquals(0, length);
+        assertEquals(accepted, chunks);
+    }
+
+    @Test
+    public void deviceIsKeptWhenRingIsFull() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mDir, SessionRecorder.DEFAULT_SEGMENT_SIZE);
+        byte[] data = filled(1, CHUNK);
+        for (int i = 0; i < 100000; i++) {
+            if (!recorder.record(SessionRecorder.TYPE_IN, 1, data, 0, CHUNK)) {
+                break;
+            }
+        }
+        recorder.deviceConnected(7, "00:11:22:33:44:55");
+        recorder.record(SessionRecorder.TYPE_IN, 7, filled(7, 4), 0, 4);
+        recorder.close();
+
+        SessionReader reader = new SessionReader(mDir);
+        boolean connected = false;
+        while (reader.next()) {
+            if (reader.getDeviceId() != 7) {
+                continue;
+            }
+            if (reader.getType() == SessionRecorder.TYPE_DEVICE) {
+                assertEquals("00:11:22:33:44:55", reader.getAddress());
+                connected = true;
+            } else {
+                assertTrue("data before the device record", connected);
+            }
+        }
+        reader.close();
+        assertTrue(connected);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records several devices that come and go with {@link SessionRecorder},
+ * then reads the recording back with {@link SessionReader} and replays it
+ * into a {@link BluetoothChatService} with {@link SessionReplayer}.
+ */
+public class SessionReplayerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final String NOTE_CODES = "cdefgabC";
+
+    private File mDir;
+    private final Random mRandom = new Random(42);
+    // Device id -> address, and the bytes each device sent, as recorded
+    private final Map<Integer, String> mAddresses = new HashMap<Integer, String>();
+    private final Map<Integer, ByteArrayOutputStream> mSent =
+            new HashMap<Integer, ByteArrayOutputStream>();
+    private long mSegments;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("session", "");
+        assertTrue(mDir.delete());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Record devices 1 and 2, then 3 replacing 1 halfway, each sending
+     * chunks of the given size every round, the app writing to them in between.
+     */
+    private void record(int rounds, int chunk) throws IOException, InterruptedException {
+        // The smallest segments the recorder makes, so big recordings span several
+        SessionRecorder recorder = new SessionRecorder(mDir, 0);
+        connect(recorder, 1, "00:00:00:00:00:01");
+        connect(recorder, 2, "00:00:00:00:00:02");
+        for (int i = 0; i < rounds; i++) {
+            if (i == rounds / 2) {
+                recorder.deviceClosed(1);
+                connect(recorder, 3, "00:00:00:00:00:03");
+            }
+            send(recorder, i < rounds / 2 ? 1 : 3, chunk);
+            send(recorder, 2, chunk / 2 + 1);
+            byte[] out = "ping".getBytes();
+            record(recorder, SessionRecorder.TYPE_OUT, 2, out);
+        }
+        recorder.deviceClosed(2);
+        recorder.deviceClosed(3);
+        recorder.close();
+        mSegments = recorder.getStats().segments;
+    }
+
+    private void connect(SessionRecorder recorder, int deviceId, String address) {
+        recorder.deviceConnected(deviceId, address);
+        mAddresses.put(deviceId, address);
+        mSent.put(deviceId, new ByteArrayOutputStream());
+    }
+
+    private void send(SessionRecorder recorder, int deviceId, int length)
+            throws InterruptedException {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) NOTE_CODES.charAt(mRandom.nextInt(NOTE_CODES.length()));
+        }
+        record(recorder, SessionRecorder.TYPE_IN, deviceId, data);
+        mSent.get(deviceId).write(data, 0, length);
+    }
+
+    private static void record(SessionRecorder recorder, int type, int deviceId, byte[] data)
+            throws InterruptedException {
+        // Wait for the flusher rather than let the ring drop the chunk
+        while (!recorder.record(type, deviceId, data, 0, data.length)) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Read a recording back, checking that no device sends before it
+     * connected or after it closed, and that every device closed.
+     *
+     * @param opened Filled with the device ids in the order they connected
+     * @param closed Filled with the device ids in the order they closed
+     * @return The bytes received from each device, by address
+     */
+    private static Map<String, byte[]> readBack(File dir, List<Integer> opened,
+                                                List<Integer> closed) throws IOException {
+        Map<Integer, String> addresses = new HashMap<Integer, String>();
+        Map<String, ByteArrayOutputStream> received =
+                new HashMap<String, ByteArrayOutputStream>();
+        SessionReader reader = new SessionReader(dir);
+        try {
+            while (reader.next()) {
+                int id = reader.getDeviceId();
+                switch (reader.getType()) {
+                    case SessionRecorder.TYPE_DEVICE:
+                        // Reported once, although later segments repeat it
+                        assertFalse(opened.contains(id));
+                        opened.add(id);
+                        addresses.put(id, reader.getAddress());
+                        received.put(reader.getAddress(), new ByteArrayOutputStream());
+                        break;
+                    case SessionRecorder.TYPE_IN:
+                        assertTrue("data of " + id + " before it connected", opened.contains(id));
+                        assertFalse("data of " + id + " after it closed", closed.contains(id));
+                        received.get(addresses.get(id)).write(reader.getData(), 0,
+                                reader.getLength());
+                        break;
+                    case SessionRecorder.TYPE_CLOSED:
+                        assertTrue(opened.contains(id));
+                        assertFalse(closed.contains(id));
+                        closed.add(id);
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(opened.size(), closed.size());
+        Map<String, byte[]> streams = new HashMap<String, byte[]>();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : received.entrySet()) {
+            streams.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return streams;
+    }
+
+    private void assertSent(Map<String, byte[]> received) {
+        assertEquals(mSent.size(), received.size());
+        for (int id : mSent.keySet()) {
+            String address = mAddresses.get(id);
+            assertArrayEquals(address, mSent.get(id).toByteArray(), received.get(address));
+        }
+    }
+
+    @Test
+    public void readerKeepsStreamsAndOrder() throws Exception {
+        record(400, 600);
+        assertTrue("segments " + mSegments, mSegments > 1);
+
+        List<Integer> opened = new ArrayList<Integer>();
+        List<Integer> closed = new ArrayList<Integer>();
+        assertSent(readBack(mDir, opened, closed));
+        assertEquals(Arrays.asList(1, 2, 3), opened);
+        assertEquals(Arrays.asList(1, 2, 3), closed);
+    }
+
+    @Test
+    public void replayedSessionIsRecordedAgain() throws Exception {
+        record(20, 100);
+        int total = 0;
+        for (ByteArrayOutputStream sent : mSent.values()) {
+            total += sent.size();
+        }
+        File replayed = new File(mDir, "replayed");
+        SilentSounds sounds = new SilentSounds();
+        ReplayTransport transport = new ReplayTransport();
+        BluetoothChatService service = new BluetoothChatService(new CollectingEvents(),
+                sounds, transport);
+        service.setAutoReconnect(false);
+        service.start();
+        try {
+            // The service records what it reads, so the two recordings must match
+            service.startRecording(replayed);
+            SessionReplayer replayer = new SessionReplayer(mDir, transport);
+            replayer.setSpeed(SessionReplayer.ASAP);
+            replayer.start();
+            assertTrue(replayer.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            SessionReplayer.Stats stats = replayer.getStats();
+            assertEquals(3, stats.connections);
+            assertEquals(total, stats.bytes);
+
+            // Every peer is read to its end and then dropped
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (service.getConnectedCount() > 0 || decoded(service) < total) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            service.stopRecording();
+            assertEquals(total, sounds.getPlayed());
+            assertSent(readBack(replayed, new ArrayList<Integer>(), new ArrayList<Integer>()));
+        } finally {
+            service.stop();
+            File[] files = replayed.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            replayed.delete();
+        }
+    }
+
+    private static long decoded(BluetoothChatService service) {
+        long events = 0;
+        for (PeerCounters.Snapshot counters : service.getPeerCounters()) {
+            events += counters.eventsDecoded;
+        }
+        return events;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SoundSource} without sound output: every sample counts as loaded,
+ * and played notes are only counted.
+ */
+class SilentSounds implements SoundSource {
+
+    private final AtomicInteger mPlayed = new AtomicInteger();
+    private final AtomicInteger mRefs = new AtomicInteger();
+
+    private final SoundEngine mEngine = new SoundEngine() {
+        @Override
+        public void addSound(int index, int resId) {
+        }
+
+        @Override
+        public void removeSound(int index) {
+        }
+
+        @Override
+        public boolean isLoaded(int index) {
+            return true;
+        }
+
+        @Override
+        public void playSound(int index) {
+            mPlayed.incrementAndGet();
+        }
+
+        @Override
+        public boolean playSoundAt(int index, long timeNanos, PlayListener listener,
+                                   long readNanos) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Override
+    public SoundEngine acquire() {
+        mRefs.incrementAndGet();
+        return mEngine;
+    }
+
+    @Override
+    public void release() {
+        mRefs.decrementAndGet();
+    }
+
+    @Override
+    public void bindKit(String kit) {
+    }
+
+    @Override
+    public void unbindKit(String kit) {
+    }
+
+    @Override
+    public ThreadFactory getAudioThreadFactory() {
+        return Executors.defaultThreadFactory();
+    }
+
+    int getPlayed() {
+        return mPlayed.get();
+    }
+
+    /**
+     * Returns the number of connections holding the engine.
+     */
+    int getRefCount() {
+        return mRefs.get();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.UUID;
+
+/**
+ * {@link Transport} whose peers live in the test. Channels handed to
+ * {@link #offer} are accepted by the service; their input stays silent until
+ * they are closed, and their output is either collected or stalls.
+ */
+class StubTransport implements Transport {
+
+    private final Queue<StubChannel> mIncoming = new ArrayDeque<StubChannel>();
+    private boolean mClosed;
+
+    /**
+     * Let the service accept the channel.
+     */
+    synchronized void offer(StubChannel channel) {
+        mIncoming.add(channel);
+        notifyAll();
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid, boolean secure) {
+        synchronized (this) {
+            mClosed = false;
+        }
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                synchronized (StubTransport.this) {
+                    while (mIncoming.isEmpty()) {
+                        if (mClosed) {
+                            throw new IOException("closed");
+                        }
+                        try {
+                            StubTransport.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    return mIncoming.remove();
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (StubTransport.this) {
+                    mClosed = true;
+                    StubTransport.this.notifyAll();
+                }
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid, boolean secure) throws IOException {
+        throw new IOException("cannot dial " + address);
+    }
+
+    /**
+     * One link. Writes to a stalling channel block until it is closed.
+     */
+    static class StubChannel implements Channel {
+        private final String mAddress;
+        private final boolean mStall;
+        private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        private boolean mClosed;
+
+        StubChannel(String address, boolean stall) {
+            mAddress = address;
+            mStall = stall;
+        }
+
+        /**
+         * Wait until the given bytes have been written in total.
+         */
+        synchronized boolean awaitWritten(byte[] expected, long timeoutMs)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!Arrays.equals(expected, mWritten.toByteArray())) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    synchronized (StubChannel.this) {
+                        while (!mClosed) {
+                            try {
+                                StubChannel.this.wait();
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                        }
+                        return -1;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    synchronized (StubChannel.this) {
+                        while (mStall && !mClosed) {
+                            try {
+                                StubChannel.this.wait();
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                        }
+                        if (mClosed) {
+                            throw new IOException("closed");
+                        }
+                        mWritten.write(b, off, len);
+                        StubChannel.this.notifyAll();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean isRedialable() {
+            return false;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link BluetoothChatService} over {@link TcpTransport} on the
+ * loopback interface: peers dial in and are dialed, and the notes they
+ * send reach the {@link ChatEvents}.
+ */
+public class TcpTransportTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final CollectingEvents mEvents = new CollectingEvents();
+    private final SilentSounds mSounds = new SilentSounds();
+    private TcpTransport mTransport;
+    private BluetoothChatService mService;
+
+    @Before
+    public void setUp() {
+        mTransport = new TcpTransport(0, 0);
+        mService = new BluetoothChatService(mEvents, mSounds, mTransport);
+        mService.setAutoReconnect(false);
+        mService.start();
+    }
+
+    @After
+    public void tearDown() {
+        mService.stop();
+    }
+
+    private static void waitFor(BluetoothChatService service, int connected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (service.getConnectedCount() != connected) {
+            assertTrue("connected count stayed " + service.getConnectedCount(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void acceptsPeersAndReadsTheirNotes() throws Exception {
+        assertTrue(mTransport.getLocalPort(false) > 0);
+        Socket first = new Socket(LOOPBACK, mTransport.getLocalPort(false));
+        Socket second = new Socket(LOOPBACK, mTransport.getLocalPort(true));
+        assertTrue(mEvents.awaitDevices(2, TIMEOUT_MS));
+        assertEquals(BluetoothChatService.STATE_CONNECTED, mService.getState());
+
+        first.getOutputStream().write("cde".getBytes());
+        second.getOutputStream().write("ab".getBytes());
+        first.getOutputStream().write("fg".getBytes());
+        assertTrue(mEvents.awaitNotes(7, TIMEOUT_MS));
+        assertArrayEquals("cdefg".getBytes(), mEvents.getNotes(
+                "tcp:127.0.0.1:" + first.getLocalPort()));
+        assertArrayEquals("ab".getBytes(), mEvents.getNotes(
+                "tcp:127.0.0.1:" + second.getLocalPort()));
+        assertEquals(7, mSounds.getPlayed());
+
+        first.close();
+        waitFor(mService, 1);
+        second.close();
+        waitFor(mService, 0);
+        assertEquals(BluetoothChatService.STATE_LISTEN, mService.getState());
+    }
+
+    @Test
+    public void dialsOutReadsAndWrites() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, LOOPBACK);
+        try {
+            String address = "127.0.0.1:" + server.getLocalPort();
+            mService.connect(address, false);
+            Socket peer = server.accept();
+            assertTrue(mEvents.awaitDevices(1, TIMEOUT_MS));
+            assertEquals(address, mService.getConnectedAddresses().get(0));
+
+            peer.getOutputStream().write("Cab".getBytes());
+            assertTrue(mEvents.awaitNotes(3, TIMEOUT_MS));
+            assertArrayEquals("Cab".getBytes(), mEvents.getNotes("tcp:" + address));
+
+            mService.write("hello".getBytes());
+            byte[] received = new byte[5];
+            InputStream in = peer.getInputStream();
+            for (int n = 0; n < received.length; ) {
+                int read = in.read(received, n, received.length - n);
+                assertTrue(read > 0);
+                n += read;
+            }
+            assertArrayEquals("hello".getBytes(), received);
+            peer.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void failedDialIsReported() throws Exception {
+        // Bound but never listening, so the connect is refused
+        ServerSocket closed = new ServerSocket(0, 1, LOOPBACK);
+        int port = closed.getLocalPort();
+        closed.close();
+        mService.connect("127.0.0.1:" + port, false);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mEvents.getToasts().isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals("Unable to connect device", mEvents.getToasts().get(0));
+        assertEquals(0, mService.getConnectedCount());
+    }
+
+    @Test
+    public void stopClosesEverything() throws IOException, InterruptedException {
+        Socket peer = new Socket(LOOPBACK, mTransport.getLocalPort(false));
+        assertTrue(mEvents.awaitDevices(1, TIMEOUT_MS));
+        mService.stop();
+        assertEquals(0, mService.getConnectedCount());
+        assertEquals(0, mSounds.getRefCount());
+        // The service closed its end
+        assertEquals(-1, peer.getInputStream().read());
+        peer.close();
+        assertEquals(BluetoothChatService.STATE_NONE, mService.getState());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes WAV files built in memory with {@link WavDecoder}.
+ */
+public class WavDecoderTest {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_FLOAT = 3;
+
+    /**
+     * Builds a RIFF/WAVE file from the given chunks, each a four letter id
+     * followed by its body.
+     */
+    private static byte[] riff(Object... chunks) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write('W');
+        body.write('A');
+        body.write('V');
+        body.write('E');
+        for (int i = 0; i < chunks.length; i += 2) {
+            byte[] data = (byte[]) chunks[i + 1];
+            ascii(body, (String) chunks[i]);
+            le(body, data.length, 4);
+            body.write(data, 0, data.length);
+            if ((data.length & 1) != 0) {
+                body.write(0);
+            }
+        }
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        ascii(file, "RIFF");
+        le(file, body.size(), 4);
+        byte[] bytes = body.toByteArray();
+        file.write(bytes, 0, bytes.length);
+        return file.toByteArray();
+    }
+
+    private static byte[] fmt(int format, int channels, int rate, int bits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        le(out, format, 2);
+        le(out, channels, 2);
+        le(out, rate, 4);
+        le(out, rate * channels * bits / 8, 4);
+        le(out, channels * bits / 8, 2);
+        le(out, bits, 2);
+        return out.toByteArray();
+    }
+
+    private static byte[] extensibleFmt(int subformat, int channels, int rate, int bits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] head = fmt(0xFFFE, channels, rate, bits);
+        out.write(head, 0, head.length);
+        le(out, 22, 2);
+        le(out, bits, 2);
+        le(out, channels == 1 ? 0x4 : 0x3, 4);
+        // KSDATAFORMAT_SUBTYPE_PCM / _IEEE_FLOAT: the format code, then a fixed GUID tail
+        le(out, subformat, 2);
+        byte[] tail = {0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00,
+                0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71};
+        out.write(tail, 0, tail.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] pcm16(int... samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int s : samples) {
+            le(out, s, 2);
+        }
+        return out.toByteArray();
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    private static void le(ByteArrayOutputStream out, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write(value >> (8 * i));
+        }
+    }
+
+    private static short[] decode(byte[] file, int rate) throws IOException {
+        return WavDecoder.decode(new ByteArrayInputStream(file), rate);
+    }
+
+    private static void assertRejected(byte[] file) {
+        try {
+            decode(file, 44100);
+            fail("decoded an unsupported file");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void decodes16BitMono() throws IOException {
+        byte[] file = riff("fmt ", fmt(FORMAT_PCM, 1, 44100, 16),
+                "data", pcm16(0, 1000, -1000, 32767, -32768));
+        assertArrayEquals(new short[]{0, 1000, -1000, 32767, -32768}, decode(file, 44100));
+    }
+
+    @Test
+    public void decodes8BitUnsigned() throws IOException {
+        byte[] file = riff("fmt ", fmt(FORMAT_PCM, 1, 44100, 8),
+                "data", new byte[]{(byte) 128, (byte) 255, 0});
+        assertArrayEquals(new short[]{0, 127 << 8, -128 << 8}, decode(file, 44100));
+    }
+
+    @Test
+    public void decodes24BitToTheTop16Bits() throws IOException {
+        byte[] file = riff("fmt ", fmt(FORMAT_PCM, 1, 44100, 24),
+                "data", new byte[]{0x12, 0x34, 0x56, 0x00, 0x00, (byte) 0x80});
+        assertArrayEquals(new short[]{0x5634, -32768}, decode(file, 44100));
+    }
+
+    @Test
+    public void downMixesStereo() throws IOException {
+        byte[] file = riff("fmt ", fmt(FORMAT_PCM, 2, 44100, 16),
+                "data", pcm16(1000, 3000, -2000, 2000));
+        assertArrayEquals(new short[]{2000, 0}, decode(file, 44100));
+    }
+
+    @Test
+    public void skipsOtherChunksAndPadding() throws IOException {
+        byte[] file = riff("LIST", new byte[]{1, 2, 3},
+                "fmt ", fmt(FORMAT_PCM, 1, 44100, 16),
+                "data", pcm16(5, 6));
+        assertArrayEquals(new short[]{5, 6}, decode(file, 44100));
+    }
+
+    @Test
+    public void resamplesToTheOutputRate() throws IOException {
+        byte[] file = riff("fmt ", fmt(FORMAT_PCM, 1, 22050, 16),
+                "data", pcm16(0, 100, 200, 300));
+        short[] out = decode(file, 44100);
+        assertEquals(8, out.length);
+        assertEquals(50, out[1]);
+        assertEquals(300, out[6]);
+    }
+
+    @Test
+    public void decodesExtensiblePcm() throws IOException {
+        byte[] file = riff("fmt ", extensibleFmt(FORMAT_PCM, 1, 44100, 16),
+                "data", pcm16(7, -7));
+        assertArrayEquals(new short[]{7, -7}, decode(file, 44100));
+    }
+
+    @Test
+    public void rejectsExtensibleFloat() {
+        assertRejected(riff("fmt ", extensibleFmt(FORMAT_FLOAT, 1, 44100, 32),
+                "data", new byte[8]));
+    }
+
+    @Test
+    public void rejectsPlainFloat() {
+        assertRejected(riff("fmt ", fmt(FORMAT_FLOAT, 1, 44100, 32), "data", new byte[8]));
+    }
+
+    @Test
+    public void rejectsTruncatedFmt() {
+        byte[] shortFmt = new byte[14];
+        System.arraycopy(fmt(FORMAT_PCM, 1, 44100, 16), 0, shortFmt, 0, shortFmt.length);
+        assertRejected(riff("fmt ", shortFmt, "data", pcm16(1, 2)));
+        assertRejected(riff("fmt ", new byte[0], "data", pcm16(1, 2)));
+    }
+
+    @Test
+    public void rejectsMissingDataAndNonWav() {
+        assertRejected(riff("fmt ", fmt(FORMAT_PCM, 1, 44100, 16)));
+        assertRejected("not a wav file at all".getBytes());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Broadcasts to one peer whose writes never return and one healthy peer.
+ */
+public class WriteStallTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private final CollectingEvents mEvents = new CollectingEvents();
+    private final StubTransport mTransport = new StubTransport();
+    private final StubTransport.StubChannel mStalled =
+            new StubTransport.StubChannel("stalled", true);
+    private final StubTransport.StubChannel mHealthy =
+            new StubTransport.StubChannel("healthy", false);
+    private BluetoothChatService mService;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mService = new BluetoothChatService(mEvents, new SilentSounds(), mTransport);
+        mService.setAutoReconnect(false);
+        mService.start();
+        mTransport.offer(mStalled);
+        mTransport.offer(mHealthy);
+        assertTrue(mEvents.awaitDevices(2, TIMEOUT_MS));
+    }
+
+    @After
+    public void tearDown() {
+        mService.stop();
+    }
+
+    @Test
+    public void stalledPeerDoesNotHoldUpOthers() throws InterruptedException {
+        mService.setWriteTimeout(0);
+        mService.write("a".getBytes());
+        assertTrue(mHealthy.awaitWritten("a".getBytes(), TIMEOUT_MS));
+        // The stalled writer is now blocked for good
+        mService.write("b".getBytes());
+        mService.write("c".getBytes());
+        assertTrue(mHealthy.awaitWritten("abc".getBytes(), TIMEOUT_MS));
+        assertEquals(2, mService.getConnectedCount());
+        assertFalse(mStalled.isClosed());
+    }
+
+    @Test
+    public void stalledPeerIsDroppedAfterWriteTimeout() throws InterruptedException {
+        mService.setWriteTimeout(100);
+        mService.write("a".getBytes());
+        assertTrue(mHealthy.awaitWritten("a".getBytes(), TIMEOUT_MS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mService.getConnectedCount() != 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(mStalled.isClosed());
+        assertEquals("healthy", mService.getConnectedAddresses().get(0));
+        assertEquals(1, mService.getPeerCounters("stalled").writeErrors);
+        assertEquals(0, mService.getPeerCounters("healthy").writeErrors);
+
+        mService.write("b".getBytes());
+        assertTrue(mHealthy.awaitWritten("ab".getBytes(), TIMEOUT_MS));
+    }
+}